@@ -22,7 +22,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,7 +68,7 @@ public class BOHMap implements Map<Binary, Binary> {
   private final int addressSize;
   private final int partitionCount;
   private final long partitionAddress;
-  private final Function<byte[], Integer> hashFunction;
+  private final ToIntFunction<byte[]> hashFunction;
   private long bytes = 0l;
   private static long totalBytes = 0l;
 
@@ -101,7 +101,7 @@ public class BOHMap implements Map<Binary, Binary> {
    * @param partitionCount A positive number of partitions
    * @param hashFunction Hash function to use when calculating key hashes
    */
-  public BOHMap(int partitionCount, Function<byte[], Integer> hashFunction) {
+  public BOHMap(int partitionCount, ToIntFunction<byte[]> hashFunction) {
     this.bytes = 0l;
     this.unsafe = getUnsafe();
     this.addressSize = unsafe.addressSize();
@@ -127,9 +127,7 @@ public class BOHMap implements Map<Binary, Binary> {
   private long allocate(long size, boolean init) {
     final long address = unsafe.allocateMemory(size);
 
-    for (long offset = 0; init && offset < size; offset++) {
-      unsafe.putByte(address + offset, (byte) 0);
-    }
+    if (init) unsafe.setMemory(address, size, (byte) 0);
     this.bytes += size;
     totalBytes += size;
 
@@ -137,7 +135,7 @@ public class BOHMap implements Map<Binary, Binary> {
   }
 
   private long getPartitionOffset(byte[] keyData) {
-    return Math.abs(hashFunction.apply(keyData) % partitionCount);
+    return Math.abs(hashFunction.applyAsInt(keyData) % partitionCount);
   }
 
   @Override
@@ -336,6 +334,176 @@ public class BOHMap implements Map<Binary, Binary> {
     return null;
   }
 
+  /*
+   * Returns the address of the entry with the given key among entryCount
+   * entries starting at entriesAddress, or 0 if there is no such entry.
+   */
+  private long findEntry(long entriesAddress, int entryCount, byte[] keyData) {
+    final int keySize = keyData.length;
+    for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+      final long entryAddress = entriesAddress + (locationOffset * addressSize * 2);
+      long keyAddress = unsafe.getAddress(entryAddress);
+      if (unsafe.getInt(keyAddress) != keySize) continue;
+      keyAddress += Integer.BYTES;
+      boolean isEqual = true;
+      for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
+        if (keyData[keyOffset] != unsafe.getByte(keyAddress + keyOffset)) {
+          isEqual = false;
+          break;
+        }
+      }
+      if (isEqual) return entryAddress;
+    }
+    return 0;
+  }
+
+  // Values are stored big endian, the same way ByteBuffer writes them
+  private int readInt(long address) {
+    return (unsafe.getByte(address) << 24)
+        | ((unsafe.getByte(address + 1) & 0xff) << 16)
+        | ((unsafe.getByte(address + 2) & 0xff) << 8)
+        | (unsafe.getByte(address + 3) & 0xff);
+  }
+
+  private void writeInt(long address, int value) {
+    unsafe.putByte(address, (byte) (value >>> 24));
+    unsafe.putByte(address + 1, (byte) (value >>> 16));
+    unsafe.putByte(address + 2, (byte) (value >>> 8));
+    unsafe.putByte(address + 3, (byte) value);
+  }
+
+  /**
+   * Get the value of a key holding a 4 byte value, without allocating anything on the heap.
+   *
+   * @param keyData Key to look up
+   * @param noValue Value to return if the key is not in the map or its value is not 4 bytes long
+   * @return Value of the key interpreted as a big endian int
+   */
+  public int getInt(byte[] keyData, int noValue) {
+    final long offset = getPartitionOffset(keyData);
+    final long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+    if (locationAddress == 0) return noValue;
+
+    final int entryCount = unsafe.getInt(locationAddress);
+    final long entryAddress = findEntry(locationAddress + Integer.BYTES, entryCount, keyData);
+    if (entryAddress == 0) return noValue;
+
+    final long valueAddress = unsafe.getAddress(entryAddress + addressSize);
+    if (valueAddress == 0 || unsafe.getInt(valueAddress) != Integer.BYTES) return noValue;
+    return readInt(valueAddress + Integer.BYTES);
+  }
+
+  /**
+   * Associate a 4 byte value with the key, without allocating anything on the heap. The key data is
+   * copied, so the array can be reused by the caller.
+   *
+   * @param keyData Key to store
+   * @param value Value to store as a big endian int
+   * @return True if the key was not in the map before
+   */
+  public boolean putInt(byte[] keyData, int value) {
+    final int keySize = keyData.length;
+    final long offset = getPartitionOffset(keyData);
+    final long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+    final int entryCount = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress);
+
+    if (locationAddress != 0) {
+      final long entryAddress = findEntry(locationAddress + Integer.BYTES, entryCount, keyData);
+      if (entryAddress != 0) {
+        long valueAddress = unsafe.getAddress(entryAddress + addressSize);
+        if (valueAddress == 0 || unsafe.getInt(valueAddress) != Integer.BYTES) {
+          if (valueAddress != 0) unsafe.freeMemory(valueAddress);
+          valueAddress = allocate(Integer.BYTES * 2, false);
+          unsafe.putInt(valueAddress, Integer.BYTES);
+          unsafe.putAddress(entryAddress + addressSize, valueAddress);
+        }
+        writeInt(valueAddress + Integer.BYTES, value);
+        return false;
+      }
+    }
+
+    itemCount++;
+
+    final long keyAddress = allocate(Integer.BYTES + keySize, false);
+    unsafe.putInt(keyAddress, keySize);
+    for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
+      unsafe.putByte(keyAddress + Integer.BYTES + keyOffset, keyData[keyOffset]);
+    }
+
+    final long valueAddress = allocate(Integer.BYTES * 2, false);
+    unsafe.putInt(valueAddress, Integer.BYTES);
+    writeInt(valueAddress + Integer.BYTES, value);
+
+    appendEntry(offset, keyAddress, valueAddress);
+    return true;
+  }
+
+  // Adds an entry to the end of a partition, the key must not be in the partition already
+  private void appendEntry(long offset, long keyAddress, long valueAddress) {
+    long locationAddress = unsafe.getAddress(partitionAddress + (offset * addressSize));
+    final int entryCount = locationAddress == 0 ? 0 : unsafe.getInt(locationAddress);
+    if (locationAddress == 0) {
+      locationAddress = allocate(Integer.BYTES + addressSize + addressSize, false);
+    } else {
+      locationAddress =
+          unsafe.reallocateMemory(
+              locationAddress, Integer.BYTES + (addressSize * 2 * (entryCount + 1)));
+    }
+    unsafe.putAddress(locationAddress + Integer.BYTES + (addressSize * 2 * entryCount), keyAddress);
+    unsafe.putAddress(
+        locationAddress + Integer.BYTES + (addressSize * 2 * entryCount) + addressSize,
+        valueAddress);
+    unsafe.putInt(locationAddress, entryCount + 1);
+    unsafe.putAddress(partitionAddress + (offset * addressSize), locationAddress);
+  }
+
+  public int getPartitionCount() {
+    return partitionCount;
+  }
+
+  /**
+   * Move all entries of one partition to another map, which must not contain any of their keys.
+   * Keys and values are not copied, only the partition index of the target map is updated.
+   *
+   * @param partition Index of the partition, from 0 to getPartitionCount() - 1
+   * @param target Map to move the entries to
+   * @return Number of entries moved
+   */
+  public int movePartition(int partition, BOHMap target) {
+    final long partitionOffset = partitionAddress + ((long) partition * addressSize);
+    final long locationAddress = unsafe.getAddress(partitionOffset);
+    if (locationAddress == 0) return 0;
+
+    final int entryCount = unsafe.getInt(locationAddress);
+    byte[] keyData = new byte[0];
+    long movedBytes = 0;
+    for (long locationOffset = 0; locationOffset < entryCount; locationOffset++) {
+      final long entryAddress =
+          locationAddress + Integer.BYTES + (locationOffset * addressSize * 2);
+      final long keyAddress = unsafe.getAddress(entryAddress);
+      final long valueAddress = unsafe.getAddress(entryAddress + addressSize);
+
+      // The key is needed on heap to compute its hash
+      final int keySize = unsafe.getInt(keyAddress);
+      if (keyData.length != keySize) keyData = new byte[keySize];
+      for (int keyOffset = 0; keyOffset < keySize; keyOffset++) {
+        keyData[keyOffset] = unsafe.getByte(keyAddress + Integer.BYTES + keyOffset);
+      }
+      target.appendEntry(target.getPartitionOffset(keyData), keyAddress, valueAddress);
+
+      movedBytes += Integer.BYTES + keySize;
+      if (valueAddress != 0) movedBytes += Integer.BYTES + unsafe.getInt(valueAddress);
+    }
+    target.itemCount += entryCount;
+    target.bytes += movedBytes;
+    this.itemCount -= entryCount;
+    this.bytes -= movedBytes;
+
+    unsafe.freeMemory(locationAddress);
+    unsafe.putAddress(partitionOffset, 0);
+    return entryCount;
+  }
+
   @Override
   public Binary put(Binary key, Binary value) {
     final byte[] keyData = key.getValue();
@@ -36,6 +36,18 @@ public class CubeApplication extends ResourceConfig {
     config.port = Integer.parseInt(args[0]);
     config.path = args[1];
     config.defaultPartitionName = Constants.DEFAULT_PARTITION_NAME;
+    if (args.length > 2) {
+      config.executorParallelism = Integer.parseInt(args[2]);
+    }
+    if (args.length > 3) {
+      config.executorMaxQueuedTasks = Integer.parseInt(args[3]);
+    }
+    if (args.length > 4) {
+      config.walSyncIntervalMs = Long.parseLong(args[4]);
+    }
+    if (args.length > 5) {
+      config.loadLastPartitions = Integer.parseInt(args[5]);
+    }
     runWithConfig(config);
   }
 
@@ -58,13 +70,27 @@ public class CubeApplication extends ResourceConfig {
     // ResourceConfig rConfig = new
     // ResourceConfig(QueryResource.class).register;
 
-    MultiCube cube = new MultiCubeImpl(new File(config.path).getAbsolutePath());
-    cube.load(cube.getPath());
+    // has to be set before the shared executor gets created
+    Constants.EXECUTOR_PARALLELISM = config.executorParallelism;
+    Constants.EXECUTOR_MAX_QUEUED_TASKS = config.executorMaxQueuedTasks;
+    Constants.WAL_SYNC_INTERVAL_MS = config.walSyncIntervalMs;
+    Constants.LOAD_LAST_PARTITIONS = config.loadLastPartitions;
+    MultiCubeImpl cube = new MultiCubeImpl(new File(config.path).getAbsolutePath());
+    // requests are answered with 503 until the cubes they need are loaded
+    cube.setLoading(true);
     CubeApplication rConfig = new CubeApplication(config, cube);
     registerStuff(rConfig);
     HttpServer server = GrizzlyHttpServerFactory.createHttpServer(baseUri, rConfig);
     Log.info("Starting server");
     server.start();
+    // cubes can be searched while the others are still loading
+    try {
+      cube.load(cube.getPath());
+    } catch (RuntimeException e) {
+      Log.error("Could not load the cubes, shutting down", e);
+      server.shutdownNow();
+      System.exit(1);
+    }
     Thread.currentThread().join();
     Log.info("Shutting down");
   }
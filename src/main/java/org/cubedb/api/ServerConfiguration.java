@@ -1,7 +1,13 @@
 package org.cubedb.api;
 
+import org.cubedb.core.Constants;
+
 public class ServerConfiguration {
   public int port;
   public String path;
   public String defaultPartitionName;
+  public int executorParallelism = Constants.EXECUTOR_PARALLELISM;
+  public int executorMaxQueuedTasks = Constants.EXECUTOR_MAX_QUEUED_TASKS;
+  public long walSyncIntervalMs = Constants.WAL_SYNC_INTERVAL_MS;
+  public int loadLastPartitions = Constants.LOAD_LAST_PARTITIONS;
 }
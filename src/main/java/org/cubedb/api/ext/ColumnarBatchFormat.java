@@ -0,0 +1,148 @@
+package org.cubedb.api.ext;
+
+import org.cubedb.core.Constants;
+import org.cubedb.core.beans.ColumnarBatch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of {@link ColumnarBatch}es, accepted by the insert endpoint as {@link
+ * #MEDIA_TYPE}. A body is a sequence of batches, each of them laid out as follows (numbers are
+ * big endian, strings are written with {@link DataOutputStream#writeUTF(String)}, lists of
+ * strings as an int count followed by (boolean isNull, string if not null) for every element):
+ *
+ * <pre>
+ * int     magic number, 0x43444231
+ * utf     cube name
+ * utf     partition name
+ * list    F field names
+ * list    M metric names
+ * list    V dictionary values
+ * int     number of rows N
+ * F x N x int   for every field, dictionary index of the value of each row, -1 for no value
+ * M x N x long  for every metric, value of each row
+ * </pre>
+ *
+ * Batches of more than {@link Constants#COLUMNAR_BATCH_MAX_VALUES} values, or with longer lists,
+ * are rejected before their columns are allocated.
+ */
+public class ColumnarBatchFormat {
+  public static final String MEDIA_TYPE = "application/x-cubedb-columnar";
+  public static final int MAGIC = 0x43444231;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Reads the next batch, returns null if the stream has ended. */
+  public static ColumnarBatch read(DataInputStream in) throws IOException {
+    final int firstByte = in.read();
+    if (firstByte < 0) {
+      return null;
+    }
+    final int magic = (firstByte << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+    if (magic != MAGIC) {
+      throw new MalformedBatchException(String.format("Unexpected batch header %08x", magic));
+    }
+    final String cubeName = in.readUTF();
+    final String partition = in.readUTF();
+    final String[] fieldNames = readStrings(in);
+    final String[] metricNames = readStrings(in);
+    final String[] values = readStrings(in);
+    checkNames(fieldNames);
+    checkNames(metricNames);
+    final int numRows = readCount(in);
+    final long numValues = (long) (fieldNames.length + metricNames.length) * numRows;
+    if (numValues > Constants.COLUMNAR_BATCH_MAX_VALUES) {
+      throw new MalformedBatchException(
+          String.format(
+              "Batch of %d values exceeds the limit of %d",
+              numValues, Constants.COLUMNAR_BATCH_MAX_VALUES));
+    }
+
+    final int[][] fieldValues = new int[fieldNames.length][numRows];
+    final long[][] metricValues = new long[metricNames.length][numRows];
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    for (int[] column : fieldValues) {
+      for (int offset = 0; offset < numRows; ) {
+        final int count = Math.min(numRows - offset, buffer.length / Integer.BYTES);
+        in.readFully(buffer, 0, count * Integer.BYTES);
+        ByteBuffer.wrap(buffer, 0, count * Integer.BYTES).asIntBuffer().get(column, offset, count);
+        offset += count;
+      }
+    }
+    for (long[] column : metricValues) {
+      for (int offset = 0; offset < numRows; ) {
+        final int count = Math.min(numRows - offset, buffer.length / Long.BYTES);
+        in.readFully(buffer, 0, count * Long.BYTES);
+        ByteBuffer.wrap(buffer, 0, count * Long.BYTES).asLongBuffer().get(column, offset, count);
+        offset += count;
+      }
+    }
+    try {
+      return new ColumnarBatch(
+          cubeName, partition, fieldNames, metricNames, values, numRows, fieldValues, metricValues);
+    } catch (IllegalArgumentException e) {
+      throw new MalformedBatchException("Malformed batch: " + e.getMessage(), e);
+    }
+  }
+
+  public static void write(DataOutputStream out, ColumnarBatch batch) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeUTF(batch.getCubeName());
+    out.writeUTF(batch.getPartition());
+    writeStrings(out, batch.getFieldNames());
+    writeStrings(out, batch.getMetricNames());
+    writeStrings(out, batch.getValues());
+    out.writeInt(batch.getNumRows());
+    for (int[] column : batch.getFieldValues()) {
+      for (int row = 0; row < batch.getNumRows(); row++) {
+        out.writeInt(column[row]);
+      }
+    }
+    for (long[] column : batch.getMetricValues()) {
+      for (int row = 0; row < batch.getNumRows(); row++) {
+        out.writeLong(column[row]);
+      }
+    }
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    final int count = in.readInt();
+    if (count < 0) {
+      throw new MalformedBatchException("Negative count " + count);
+    }
+    if (count > Constants.COLUMNAR_BATCH_MAX_VALUES) {
+      throw new MalformedBatchException(
+          String.format(
+              "Count %d exceeds the limit of %d", count, Constants.COLUMNAR_BATCH_MAX_VALUES));
+    }
+    return count;
+  }
+
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    final String[] strings = new String[readCount(in)];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = in.readBoolean() ? null : in.readUTF();
+    }
+    return strings;
+  }
+
+  private static void checkNames(String[] names) throws IOException {
+    for (String name : names) {
+      if (name == null) {
+        throw new MalformedBatchException("Field and metric names can not be null");
+      }
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeInt(strings.length);
+    for (String s : strings) {
+      out.writeBoolean(s == null);
+      if (s != null) {
+        out.writeUTF(s);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.cubedb.api.ext;
+
+import org.cubedb.core.Constants;
+import org.cubedb.core.beans.DataRow;
+
+import com.jsoniter.JsonIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a JSON array of {@link DataRow}s from a stream one row at a time, so that a request body
+ * never has to be held in memory as a whole.
+ */
+public class DataRowReader implements Closeable {
+  private final JsonIterator iter;
+  private boolean started = false;
+  private boolean finished = false;
+
+  public DataRowReader(InputStream in) {
+    this.iter = JsonIterator.parse(in, Constants.JSON_READ_BUFFER_SIZE);
+  }
+
+  /** Returns the next row, or null when the end of the array has been reached. */
+  public DataRow next() throws IOException {
+    if (finished) {
+      return null;
+    }
+    if (!started) {
+      started = true;
+      if (iter.readNull()) {
+        finished = true;
+        return null;
+      }
+    }
+    // consumes either the opening bracket or the comma before the row
+    if (!iter.readArray()) {
+      finished = true;
+      return null;
+    }
+    return readRow();
+  }
+
+  /** Returns up to maxRows next rows, an empty list when there are no rows left. */
+  public List<DataRow> next(int maxRows) throws IOException {
+    List<DataRow> rows = new ArrayList<DataRow>(Math.min(maxRows, 1024));
+    DataRow row;
+    while (rows.size() < maxRows && (row = next()) != null) {
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  protected DataRow readRow() throws IOException {
+    DataRow row = new DataRow();
+    for (String field = iter.readObject(); field != null; field = iter.readObject()) {
+      switch (field) {
+        case "cubeName":
+          row.setCubeName(iter.readString());
+          break;
+        case "partition":
+          row.setPartition(iter.readString());
+          break;
+        case "fields":
+          row.setFields(readFields());
+          break;
+        case "counters":
+          row.setCounters(readCounters());
+          break;
+        default:
+          iter.skip();
+      }
+    }
+    return row;
+  }
+
+  protected Map<String, String> readFields() throws IOException {
+    if (iter.readNull()) {
+      return null;
+    }
+    Map<String, String> fields = new HashMap<String, String>();
+    for (String name = iter.readObject(); name != null; name = iter.readObject()) {
+      fields.put(name, iter.readString());
+    }
+    return fields;
+  }
+
+  protected Map<String, Long> readCounters() throws IOException {
+    if (iter.readNull()) {
+      return null;
+    }
+    Map<String, Long> counters = new HashMap<String, Long>();
+    for (String name = iter.readObject(); name != null; name = iter.readObject()) {
+      counters.put(name, iter.readNull() ? null : iter.readLong());
+    }
+    return counters;
+  }
+
+  @Override
+  public void close() throws IOException {
+    iter.close();
+  }
+}
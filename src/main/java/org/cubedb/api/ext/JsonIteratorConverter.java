@@ -8,7 +8,6 @@ import org.apache.commons.io.IOUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import javax.ws.rs.Consumes;
@@ -28,7 +27,8 @@ public class JsonIteratorConverter implements MessageBodyReader<Object>, Message
   @Override
   public boolean isReadable(
       Class<?> aClass, Type type, Annotation[] annotations, MediaType mediaType) {
-    return true;
+    // streams are handed over to resources as is, see CubeResource.insert
+    return !InputStream.class.isAssignableFrom(aClass);
   }
 
   @Override
@@ -40,11 +40,7 @@ public class JsonIteratorConverter implements MessageBodyReader<Object>, Message
       MultivaluedMap<String, String> multivaluedMap,
       InputStream inputStream)
       throws IOException, WebApplicationException {
-    StringWriter writer = new StringWriter();
-    IOUtils.copy(inputStream, writer);
-    String theString = writer.toString();
-
-    JsonIterator smth = JsonIterator.parse(theString);
+    JsonIterator smth = JsonIterator.parse(IOUtils.toByteArray(inputStream));
     Object retval = smth.read(type);
     return retval;
   }
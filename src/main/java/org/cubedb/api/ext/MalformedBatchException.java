@@ -0,0 +1,17 @@
+package org.cubedb.api.ext;
+
+import java.io.IOException;
+
+/** Thrown when a columnar batch in a request body is not valid, the request is then rejected. */
+public class MalformedBatchException extends IOException {
+
+  public MalformedBatchException(String message) {
+    super(message);
+  }
+
+  public MalformedBatchException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  private static final long serialVersionUID = 6150483620581305367L;
+}
@@ -1,9 +1,13 @@
 package org.cubedb.api.filters;
 
+import org.cubedb.api.ext.MalformedBatchException;
+import org.cubedb.api.resources.PartialInsertException;
+
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -23,7 +27,23 @@ public class GenericExceptionMapper implements ExceptionMapper<Throwable> {
     response.put("trace", throwableToString(ex));
     response.put("causedBy", throwableToString(ex.getCause()));
 
-    return Response.status(Status.INTERNAL_SERVER_ERROR)
+    Throwable reason = ex;
+    if (ex instanceof PartialInsertException) {
+      // rows inserted before the failure stay inserted, clients must not resend them
+      response.put(
+          "numInsertedRows", String.valueOf(((PartialInsertException) ex).getNumInsertedRows()));
+      reason = ex.getCause();
+    }
+    final Status status;
+    if (reason instanceof RejectedExecutionException) {
+      // the server is overloaded, the request can be retried later
+      status = Status.SERVICE_UNAVAILABLE;
+    } else if (reason instanceof MalformedBatchException) {
+      status = Status.BAD_REQUEST;
+    } else {
+      status = Status.INTERNAL_SERVER_ERROR;
+    }
+    return Response.status(status)
       .entity(response)
       .type(MediaType.APPLICATION_JSON)
       .build();
@@ -1,8 +1,12 @@
 package org.cubedb.api.resources;
 
 
+import org.cubedb.api.ext.ColumnarBatchFormat;
+import org.cubedb.api.ext.DataRowReader;
 import org.cubedb.api.utils.APIResponse;
+import org.cubedb.core.Constants;
 import org.cubedb.core.MultiCube;
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.GroupedSearchResultRow;
@@ -12,13 +16,18 @@ import jersey.repackaged.com.google.common.collect.ImmutableMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import javax.inject.Singleton;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
@@ -56,10 +65,7 @@ public class CubeResource {
     final long startTime = System.currentTimeMillis();
     final MultivaluedMap<String, String> filterCriterias = info.getQueryParameters();
 
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
     Map<GroupedSearchResultRow, Long> result =
         cube.get(cubeName, fromPartition, toPartition, buildFilters(filterCriterias));
     return new APIResponse<>(CubeUtils.searchResultsToMap(result), info, startTime);
@@ -76,10 +82,7 @@ public class CubeResource {
     final long startTime = System.currentTimeMillis();
     final MultivaluedMap<String, String> filterCriterias = info.getQueryParameters();
 
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
     Map<GroupedSearchResultRow, Long> result =
         cube.get(cubeName, fromPartition, toPartition, buildFilters(filterCriterias), groupBy);
     final long timeBeforeGrouping = System.currentTimeMillis();
@@ -100,10 +103,7 @@ public class CubeResource {
     final long startTime = System.currentTimeMillis();
     final MultivaluedMap<String, String> filterCriterias = info.getQueryParameters();
 
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
     Map<GroupedSearchResultRow, Long> result =
         cube.get(cubeName, range, buildFilters(filterCriterias));
     return new APIResponse<>(CubeUtils.searchResultsToMap(result), info, startTime);
@@ -119,10 +119,7 @@ public class CubeResource {
     final long startTime = System.currentTimeMillis();
     final MultivaluedMap<String, String> filterCriterias = info.getQueryParameters();
 
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
 
     Map<GroupedSearchResultRow, Long> result =
         cube.get(cubeName, range, buildFilters(filterCriterias), groupBy);
@@ -134,6 +131,19 @@ public class CubeResource {
     return new APIResponse<>(groups, info, startTime);
   }
 
+  private void checkCubeExists(String cubeName) {
+    if (cube.hasCube(cubeName)) {
+      return;
+    }
+    // the cube may not be loaded yet
+    if (cube.isLoading()) {
+      throw new RejectedExecutionException(
+          String.format("Cube %s is not loaded yet, please retry later", cubeName));
+    }
+    log.warn("Could not find cube {}", cubeName);
+    throw new NotFoundException(String.format("Could not find cube %s", cubeName));
+  }
+
   private List<Filter> buildFilters(MultivaluedMap<String, String> filterCriterias) {
     List<Filter> filters = new ArrayList<Filter>();
     for (Entry<String, List<String>> filterE : filterCriterias.entrySet()) {
@@ -148,11 +158,46 @@ public class CubeResource {
 
   @POST
   @Path("/insert")
-  public APIResponse<Map<String, Integer>> insert(List<DataRow> rows, @Context UriInfo info) {
+  public APIResponse<Map<String, Integer>> insert(InputStream body, @Context UriInfo info)
+      throws IOException {
+    long startTs = System.currentTimeMillis();
+    int numInsertedRows = 0;
+    // rows are inserted while the rest of the body is still being received, so a failure leaves
+    // the chunks before it inserted
+    try (DataRowReader reader = new DataRowReader(body)) {
+      List<DataRow> rows = reader.next(Constants.INSERT_CHUNK_SIZE);
+      while (!rows.isEmpty()) {
+        cube.insert(rows);
+        numInsertedRows += rows.size();
+        rows = reader.next(Constants.INSERT_CHUNK_SIZE);
+      }
+    } catch (IOException | RuntimeException e) {
+      throw new PartialInsertException(numInsertedRows, e);
+    }
+    log.info("Inserted {} rows", numInsertedRows);
+    return new APIResponse<>(ImmutableMap.of("numInsertedRows", numInsertedRows), info, startTs);
+  }
+
+  @POST
+  @Path("/insert")
+  @Consumes(ColumnarBatchFormat.MEDIA_TYPE)
+  public APIResponse<Map<String, Integer>> insertColumnar(
+      InputStream body, @Context UriInfo info) throws IOException {
     long startTs = System.currentTimeMillis();
-    cube.insert(rows);
-    log.info("Inserted {} rows", rows.size());
-    return new APIResponse<>(ImmutableMap.of("numInsertedRows", rows.size()), info, startTs);
+    int numInsertedRows = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+    try {
+      ColumnarBatch batch = ColumnarBatchFormat.read(in);
+      while (batch != null) {
+        cube.insert(batch);
+        numInsertedRows += batch.getNumRows();
+        batch = ColumnarBatchFormat.read(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      throw new PartialInsertException(numInsertedRows, e);
+    }
+    log.info("Inserted {} rows", numInsertedRows);
+    return new APIResponse<>(ImmutableMap.of("numInsertedRows", numInsertedRows), info, startTs);
   }
 
   @DELETE
@@ -178,10 +223,7 @@ public class CubeResource {
   @Path("/{cubeName}")
   public APIResponse<Map<String, Integer>> deleteCube(
       @PathParam("cubeName") String cubeName, @Context UriInfo info) {
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
 
     long startTs = System.currentTimeMillis();
     int numDeletedPartitions = cube.deleteCube(cubeName, 0);
@@ -226,10 +268,7 @@ public class CubeResource {
       @PathParam("fromPartition") String fromPartition,
       @PathParam("toPartition") String toPartition,
       @Context UriInfo info) {
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
 
     long startTs = System.currentTimeMillis();
     int numDeletedPartitions = cube.deleteCube(cubeName, fromPartition, toPartition);
@@ -273,10 +312,7 @@ public class CubeResource {
   public APIResponse<Map<String, Object>> getCubeStats(@PathParam("cubeName") String cubeName,
                                                        @Context UriInfo info) throws IOException {
     final long startTs = System.currentTimeMillis();
-    if (!cube.hasCube(cubeName)) {
-      log.warn("Could not find cube {}", cubeName);
-      throw new NotFoundException(String.format("Could not find cube %s", cubeName));
-    }
+    checkCubeExists(cubeName);
     return new APIResponse<>(cube.getCube(cubeName).getStats(), info, startTs);
   }
 
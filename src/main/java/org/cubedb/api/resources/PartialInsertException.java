@@ -0,0 +1,23 @@
+package org.cubedb.api.resources;
+
+/**
+ * Thrown when an insert request fails after some of its rows have already been inserted. Inserts
+ * are not atomic: rows are inserted in chunks while the request body is read, so the rows of the
+ * chunks before the failing one stay inserted.
+ */
+public class PartialInsertException extends RuntimeException {
+  private final int numInsertedRows;
+
+  public PartialInsertException(int numInsertedRows, Throwable cause) {
+    super(
+        String.format("Insert failed after %d rows were inserted: %s", numInsertedRows, cause),
+        cause);
+    this.numInsertedRows = numInsertedRows;
+  }
+
+  public int getNumInsertedRows() {
+    return numInsertedRows;
+  }
+
+  private static final long serialVersionUID = 2836125709146829415L;
+}
@@ -1,10 +1,43 @@
 package org.cubedb.core;
 
+/**
+ * A column of value ids. Values take a fixed number of bits, 1, 2, 4, 8, 16 or 32: a column never
+ * changes its width, values which do not fit are appended to a wider copy made by {@link
+ * #widen(int)}.
+ */
 public interface Column {
+  int MAX_VALUE_BITS = Integer.SIZE;
+
+  /** Returns the narrowest width of a column that can hold values up to maxValue. */
+  static int getValueBits(int maxValue) {
+    if (maxValue < 0) return MAX_VALUE_BITS;
+    int valueBits = 1;
+    while (valueBits < MAX_VALUE_BITS && maxValue >>> valueBits != 0) {
+      valueBits *= 2;
+    }
+    return valueBits;
+  }
+
+  static boolean isValidValueBits(int valueBits) {
+    return valueBits > 0 && valueBits <= MAX_VALUE_BITS && Integer.bitCount(valueBits) == 1;
+  }
+
   void append(int value);
 
   int get(int index);
 
+  /**
+   * Reads values of rows {@code [fromIndex, fromIndex + length)} into {@code dst}, starting at
+   * {@code dst[0]}. Rows the column has no data for are read as 0.
+   */
+  void getBlock(int fromIndex, int[] dst, int length);
+
+  /** Returns the number of bits taken by a value. */
+  int getValueBits();
+
+  /** Returns a copy of the column storing values of valueBits bits, at least as wide as this. */
+  Column widen(int valueBits);
+
   long size();
 
   void free();
@@ -14,11 +14,13 @@ public class Constants {
   public static final String STATS_COLUMN_BLOCKS = "columnBlocks";
   public static final String STATS_METRIC_BLOCKS = "metricBlocks";
   public static final String STATS_LOOKUP_SIZE = "lookupSizeBytes";
+  public static final String STATS_INDEX_SIZE = "indexSizeBytes";
   public static final String TOTAL_SIZE = "totalSizeBytes";
   public static final String STATS_NUM_COLUMNS = "numColumns";
   public static final String STATS_NUM_RECORDS = "numRecords";
   public static final String STATS_NUM_PARTITIONS = "numPartitions";
   public static final String STATS_LAST_INSERT = "secSinceLastInsert";
+  public static final String STATS_FIRST_RECORD_APPEND = "secSinceFirstRecordAppend";
   public static final String STATS_LAST_RECORD_APPEND = "secSinceLastRecordAppend";
   public static final String STATS_LAST_SAVE = "secSinceLastSave";
   public static final String STATS_CARDINALITIES = "columnCardinalities";
@@ -29,8 +31,47 @@ public class Constants {
   public static final String STATS_CUBE_FIELD_TO_VALUE_NUM = "cubeFieldToValueNum";
   public static final String STATS_CUBE_MAX_PARTITION = "cubeMaxPartition";
   public static final String STATS_CUBE_MIN_PARTITION = "cubeMinPartition";
+  public static final String STATS_QUERY_CACHE_HITS = "queryCacheHits";
+  public static final String STATS_QUERY_CACHE_MISSES = "queryCacheMisses";
+  public static final String STATS_EXECUTOR = "executor";
+  public static final String STATS_EXECUTOR_PARALLELISM = "parallelism";
+  public static final String STATS_EXECUTOR_POOL_SIZE = "poolSize";
+  public static final String STATS_EXECUTOR_QUEUED_TASKS = "queuedTasks";
+  public static final String STATS_EXECUTOR_ACTIVE_TASKS = "activeTasks";
+  public static final String STATS_EXECUTOR_COMPLETED_TASKS = "completedTasks";
+  public static final String STATS_EXECUTOR_REJECTED_TASKS = "rejectedTasks";
 
   public static long KEY_MAP_TTL =
       1 * 24 * 3600 * 1000; // 1 day, milliseconds. Please note it is not final.
+  // Read-only partitions with more rows than this get a new, empty key map on the next insert
+  // instead of rebuilding it from all of their rows
+  public static int KEY_MAP_REBUILD_MAX_SIZE = 64 * 1024;
+  // Read-only partitions with at least this many rows get inverted indexes for filtered columns
+  public static int INVERTED_INDEX_MIN_SIZE = INITIAL_PARTITION_SIZE;
+  // Read-only partitions with at least this many rows get their rows sorted and their columns
+  // run-length encoded by optimize
+  public static int COMPACTION_MIN_SIZE = INITIAL_PARTITION_SIZE;
+  // Max number of search results cached per cube
+  public static int QUERY_CACHE_SIZE = 256;
+  // Max number of result rows of all search results cached per cube, larger results are not cached
+  public static int QUERY_CACHE_MAX_ROWS = 256 * 1024;
+  // Settings of the executor shared by searches and inserts of all cubes
+  public static int EXECUTOR_PARALLELISM = Runtime.getRuntime().availableProcessors();
+  public static int EXECUTOR_MAX_QUEUED_TASKS = EXECUTOR_PARALLELISM * 64;
+  public static long EXECUTOR_ADMISSION_TIMEOUT_MS = 10 * 1000;
+  // Inserted rows are parsed from the request body and inserted in chunks of this size
+  public static int INSERT_CHUNK_SIZE = 10 * 1000;
+  public static int JSON_READ_BUFFER_SIZE = 64 * 1024;
+  // Columnar insert batches may hold at most this many values of all fields and metrics, and at
+  // most this many strings per list
+  public static int COLUMNAR_BATCH_MAX_VALUES = 4 * 1024 * 1024;
+  // Inserts are synced to the write-ahead log at this interval. With 0 every insert waits for its
+  // sync, a negative value disables the log.
+  public static long WAL_SYNC_INTERVAL_MS = 1000;
+  // Only the last partitions of every cube are loaded at startup if positive, the others are read
+  // when they are changed
+  public static int LOAD_LAST_PARTITIONS = 0;
+  // Whether loads check the checksums of the blocks of partition files, which reads them all
+  public static boolean VERIFY_PARTITION_BLOCKS = false;
   public static final boolean sendStats = true;
 }
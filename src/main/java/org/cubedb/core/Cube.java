@@ -1,5 +1,6 @@
 package org.cubedb.core;
 
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.GroupedSearchResultRow;
 
@@ -10,6 +11,9 @@ import java.util.TreeSet;
 
 public interface Cube extends BaseCubeInterface {
 
+  /** Appends rows of the batch to its partition, the cube name of the batch is ignored. */
+  void insert(ColumnarBatch batch);
+
   Map<GroupedSearchResultRow, Long> get(
       String fromPartition, String toPartition, List<Filter> filters, String groupBy);
 
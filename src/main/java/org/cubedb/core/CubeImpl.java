@@ -5,12 +5,14 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
 import com.jsoniter.output.JsonStream;
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.Pair;
 import org.cubedb.core.beans.SearchResult;
 import org.cubedb.core.beans.GroupedSearchResultRow;
 import org.cubedb.offheap.OffHeapPartition;
+import org.cubedb.offheap.PartitionFile;
 import org.cubedb.utils.CubeUtils;
 import org.cubedb.utils.MutableLong;
 import org.slf4j.Logger;
@@ -19,12 +21,18 @@ import org.xerial.snappy.SnappyInputStream;
 import org.xerial.snappy.SnappyOutputStream;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -38,12 +46,12 @@ import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -51,26 +59,79 @@ public class CubeImpl implements Cube {
 
   private static final int PARALLEL_INSERT_COUNT_CONSTRAINT = 1500;
   private static final int PARALLEL_INSERT_GROUP_SIZE_CONSTRAINT = 3;
+  // Appended to the names of partition files which could not be read
+  public static final String CORRUPT_EXTENSION = ".corrupt";
 
   public static final Logger log = LoggerFactory.getLogger(CubeImpl.class);
   Map<String, Partition> partitions;
   String partitionColumn;
+  final QueryCache queryCache;
+  // Directory holding the partition files of the last save or load, if any
+  File partitionFilesDirectory;
+  // Partitions deleted since then, whose files the next save to that directory removes
+  final Set<String> deletedPartitions = ConcurrentHashMap.newKeySet();
+  // Partitions of that directory a ranged load left on disk, read when they are changed
+  final Set<String> unloadedPartitions = ConcurrentHashMap.newKeySet();
+  // Log of changes of the cube, if any, and the name of the cube in it
+  volatile WriteAheadLog writeAheadLog;
+  String name;
 
   public CubeImpl(String partitionColumn) {
     partitions = new ConcurrentHashMap<>();
     this.partitionColumn = partitionColumn;
+    this.queryCache = new QueryCache(Constants.QUERY_CACHE_SIZE, Constants.QUERY_CACHE_MAX_ROWS);
   }
 
   private Partition createNewPartition(String partitionName) {
+    if (unloadedPartitions.remove(partitionName)) {
+      final OffHeapPartition p = readPartitionFile(partitionFilesDirectory, partitionName);
+      if (p != null) {
+        return p;
+      }
+    }
     Partition p = new OffHeapPartition();
     return p;
   }
 
+  /*
+   * Reads a partition file of the directory. Corrupt files are renamed, so that the partition
+   * saved next does not replace them, and null is returned.
+   */
+  private OffHeapPartition readPartitionFile(File directory, String partitionName) {
+    final File file = new File(directory, PartitionFile.getFileName(partitionName));
+    try {
+      return PartitionFile.read(file.toPath());
+    } catch (IOException | RuntimeException e) {
+      final File corruptFile = new File(directory, file.getName() + CORRUPT_EXTENSION);
+      log.error(
+          "Could not read partition {}, moving {} to {}", partitionName, file, corruptFile, e);
+      try {
+        Files.move(file.toPath(), corruptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException moveException) {
+        throw new UncheckedIOException("Could not move " + file, moveException);
+      }
+      return null;
+    }
+  }
+
+  /** Logs all changes made from now on to the write-ahead log, under the given cube name. */
+  public void setWriteAheadLog(String name, WriteAheadLog writeAheadLog) {
+    this.name = name;
+    this.writeAheadLog = writeAheadLog;
+  }
+
   protected void insert(Collection<String> newPartitions, Map<String, List<DataRow>> groupedData) {
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
     for (String p : newPartitions) {
       Partition partition = partitions.computeIfAbsent(p, this::createNewPartition);
-      for (DataRow d : groupedData.get(p)) {
-        partition.insert(d);
+      if (writeAheadLog != null) {
+        final List<DataRow> rows = groupedData.get(p);
+        final byte[] change = WriteAheadLog.encodeRows(name, p, rows);
+        partition.insert(rows, () -> writeAheadLog.append(change));
+      } else {
+        for (DataRow d : groupedData.get(p)) {
+          partition.insert(d);
+        }
       }
     }
   }
@@ -101,23 +162,18 @@ public class CubeImpl implements Cube {
   }
 
   public void insertParallel(Map<String, List<DataRow>> groupedData) {
-    int numThreads = Runtime.getRuntime().availableProcessors();
     List<List<String>> partitionSequences =
         CubeUtils.partitionList(new ArrayList<>(groupedData.keySet()));
-    log.debug(
-        "Will be using {} threads, with {} processors", partitionSequences.size(), numThreads);
+    log.debug("Will be using {} tasks", partitionSequences.size());
     List<Insertor> tasks = new ArrayList<>();
     for (List<String> partition : partitionSequences) {
       tasks.add(new Insertor(partition, groupedData));
     }
 
-    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
     try {
-      threadPool.invokeAll(tasks);
+      TaskExecutor.getInstance().invokeAll(tasks);
     } catch (InterruptedException e) {
       log.error("Interrupted");
-    } finally {
-      threadPool.shutdownNow();
     }
   }
 
@@ -135,6 +191,50 @@ public class CubeImpl implements Cube {
     }
   }
 
+  @Override
+  public void insert(ColumnarBatch batch) {
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
+    final Partition partition =
+        partitions.computeIfAbsent(batch.getPartition(), this::createNewPartition);
+    if (writeAheadLog != null) {
+      final byte[] change = WriteAheadLog.encodeBatch(batch);
+      partition.insert(batch, () -> writeAheadLog.append(change));
+    } else {
+      partition.insert(batch);
+    }
+  }
+
+  /** Applies a change replayed from the write-ahead log, unless its partition has it already. */
+  public void replay(WriteAheadLog.Record change) {
+    if (unloadedPartitions.contains(change.getPartition())) {
+      partitions.computeIfAbsent(change.getPartition(), this::createNewPartition);
+    }
+    final Partition partition = partitions.get(change.getPartition());
+    if (partition != null && partition.getLogSequence() >= change.getSequence()) {
+      return;
+    }
+    switch (change.getType()) {
+      case WriteAheadLog.TYPE_ROWS:
+        partitions
+            .computeIfAbsent(change.getPartition(), this::createNewPartition)
+            .insert(change.getRows(), change::getSequence);
+        break;
+      case WriteAheadLog.TYPE_BATCH:
+        partitions
+            .computeIfAbsent(change.getPartition(), this::createNewPartition)
+            .insert(change.getBatch(), change::getSequence);
+        break;
+      case WriteAheadLog.TYPE_DELETE:
+        if (partitions.remove(change.getPartition()) != null) {
+          deletedPartitions.add(change.getPartition());
+        }
+        queryCache.clear();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown type of change " + change.getType());
+    }
+  }
+
   protected Map<GroupedSearchResultRow, MutableLong> get(
       List<Pair<String, Partition>> partitions,
       List<Filter> filters,
@@ -223,6 +323,17 @@ public class CubeImpl implements Cube {
                         && e.getKey().compareTo(toPartition) <= 0)
             .map(e -> new Pair<>(e.getKey(), e.getValue()))
             .collect(Collectors.toList());
+
+    final QueryCache.Key cacheKey =
+        new QueryCache.Key(fromPartition, toPartition, filters, groupBy);
+    final Map<GroupedSearchResultRow, Long> cachedResult =
+        queryCache.get(cacheKey, namePartitionPair);
+    if (cachedResult != null) {
+      log.debug("Serving the result from the query cache");
+      return cachedResult;
+    }
+    final Map<Partition, Long> partitionVersions = QueryCache.getVersions(namePartitionPair);
+
     List<Filter> realFilters =
         filters
             .stream()
@@ -251,7 +362,6 @@ public class CubeImpl implements Cube {
         CubeUtils.partitionList(namePartitionPair);
 
     int parallelism = partitionSlices.size();
-    ExecutorService service = Executors.newFixedThreadPool(parallelism);
     List<Searcher> tasks = new ArrayList<>();
 
     for (int i = 0; i < parallelism; i++) {
@@ -267,7 +377,7 @@ public class CubeImpl implements Cube {
 
     try {
       List<Future<Map<GroupedSearchResultRow, MutableLong>>> searchResult =
-          service.invokeAll(tasks);
+          TaskExecutor.getInstance().invokeAll(tasks);
 
       long tPreReduce = System.currentTimeMillis();
       log.debug("Search pre-reduce took {}ms", tPreReduce - t0);
@@ -287,22 +397,37 @@ public class CubeImpl implements Cube {
       long t1 = System.currentTimeMillis();
       log.debug("Reduce took {}ms", t1 - tPreReduce);
 
-      return result
-          .entrySet()
-          .stream()
-          .collect(Collectors.toMap(Entry::getKey, e -> e.getValue().get()));
+      Map<GroupedSearchResultRow, Long> out =
+          Collections.unmodifiableMap(
+              result
+                  .entrySet()
+                  .stream()
+                  .collect(Collectors.toMap(Entry::getKey, e -> e.getValue().get())));
+      queryCache.put(cacheKey, partitionVersions, out);
+      return out;
 
     } catch (InterruptedException | ExecutionException e) {
-      e.printStackTrace();
-    } finally {
-      service.shutdownNow();
+      log.error("Search of partitions {} to {} failed", fromPartition, toPartition, e);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
     }
     return Collections.emptyMap();
   }
 
   @Override
   public void deletePartition(String partitionName) {
-    partitions.remove(partitionName);
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
+    // logged after the removal, so saves started after the change was logged do not find it
+    if (partitions.remove(partitionName) == null && !unloadedPartitions.remove(partitionName)) {
+      queryCache.clear();
+      return;
+    }
+    deletedPartitions.add(partitionName);
+    if (writeAheadLog != null) {
+      writeAheadLog.append(WriteAheadLog.encodeDelete(name, partitionName));
+    }
+    queryCache.clear();
   }
 
   @Override
@@ -324,31 +449,169 @@ public class CubeImpl implements Cube {
     return get(fromPartition, toPartition, filters, groupBy);
   }
 
+  /** Returns the names of partitions in the range, including the ones not loaded. */
   @Override
   public TreeSet<String> getPartitions(final String from, final String to) {
-    return partitions
-        .keySet()
-        .stream()
+    return Stream.concat(partitions.keySet().stream(), unloadedPartitions.stream())
         .filter(p -> from == null || from.compareTo(p) <= 0)
         .filter(p -> to == null || to.compareTo(p) >= 0)
         .sorted()
         .collect(Collectors.toCollection(TreeSet::new));
   }
 
+  /**
+   * Saves the cube to a Kryo stream compressed with GZIP or Snappy if the file name ends with .gz
+   * or .snappy. Otherwise the file name is a directory, where every partition is saved in its own
+   * {@link PartitionFile}.
+   */
   @Override
   public void save(String saveFileName) throws IOException {
+    if (!saveFileName.endsWith(".gz") && !saveFileName.endsWith(".snappy")) {
+      savePartitionFiles(new File(saveFileName));
+      return;
+    }
     Kryo kryo = CubeUtils.getKryoWithRegistrations();
     OutputStream stream;
     if (saveFileName.endsWith(".gz"))
       stream = new GZIPOutputStream(new FileOutputStream(saveFileName));
     else stream = new SnappyOutputStream(new FileOutputStream(saveFileName));
     Output output = new Output(stream);
-    kryo.writeClassAndObject(output, partitions);
+    // partitions created while saving would break the map size written upfront
+    kryo.writeClassAndObject(output, new ConcurrentHashMap<>(partitions));
     output.close();
   }
 
+  /**
+   * Writes the partitions modified since they were last saved to this directory, and removes the
+   * files of partitions deleted with {@link #deletePartition(String)} since. Other files of the
+   * directory are left alone. Saving to another directory writes all partitions.
+   */
+  protected synchronized void savePartitionFiles(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    final boolean incremental = directory.getAbsoluteFile().equals(partitionFilesDirectory);
+    int numPartitions = 0;
+    int numWritten = 0;
+    for (Entry<String, Partition> e : new HashMap<>(partitions).entrySet()) {
+      final OffHeapPartition partition = (OffHeapPartition) e.getValue();
+      final String fileName = PartitionFile.getFileName(e.getKey());
+      final File file = new File(directory, fileName);
+      numPartitions++;
+      if (incremental && !partition.isModifiedSinceSave() && file.isFile()) {
+        continue;
+      }
+      // the file is replaced atomically, a partition read from it keeps using the old one
+      final Path tmpFile = new File(directory, fileName + ".tmp").toPath();
+      PartitionFile.write(partition, tmpFile);
+      Files.move(
+          tmpFile,
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      numWritten++;
+    }
+    // partitions a ranged load did not read are copied as they are
+    for (String partitionName : unloadedPartitions) {
+      final String fileName = PartitionFile.getFileName(partitionName);
+      if (!incremental) {
+        Files.copy(
+            new File(partitionFilesDirectory, fileName).toPath(),
+            new File(directory, fileName).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      numPartitions++;
+    }
+    // partitions deleted since the previous save, unless they were created again meanwhile
+    for (String partitionName : new ArrayList<>(deletedPartitions)) {
+      deletedPartitions.remove(partitionName);
+      if (incremental && !partitions.containsKey(partitionName)) {
+        final File file = new File(directory, PartitionFile.getFileName(partitionName));
+        Files.deleteIfExists(file.toPath());
+      }
+    }
+    partitionFilesDirectory = directory.getAbsoluteFile();
+    log.debug("Wrote {} of {} partitions to {}", numWritten, numPartitions, directory);
+  }
+
+  /*
+   * Reads the last partitions of a directory, or all of them if lastNum is not positive, in
+   * parallel on the shared executor. Corrupt partition files are skipped, see readPartitionFile.
+   */
+  protected void loadPartitionFiles(File directory, int lastNum) throws IOException {
+    final String[] fileNames = directory.list();
+    if (fileNames == null) {
+      throw new IOException("Could not list " + directory);
+    }
+    final TreeSet<String> partitionNames = new TreeSet<>();
+    for (String fileName : fileNames) {
+      final String partitionName = PartitionFile.getPartitionName(fileName);
+      if (partitionName != null) {
+        partitionNames.add(partitionName);
+      }
+    }
+    final Set<String> unloadedPartitions = new TreeSet<>();
+    while (lastNum > 0 && partitionNames.size() > lastNum) {
+      unloadedPartitions.add(partitionNames.pollFirst());
+    }
+    final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    final List<Callable<Void>> tasks = new ArrayList<>();
+    for (List<String> slice : CubeUtils.partitionList(new ArrayList<>(partitionNames))) {
+      tasks.add(
+          () -> {
+            readPartitionFiles(directory, slice, partitions);
+            return null;
+          });
+    }
+    try {
+      for (Future<Void> future : TaskExecutor.getInstance().invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (RejectedExecutionException e) {
+      log.warn("Reading {} in the loading thread, the executor is busy", directory);
+      readPartitionFiles(directory, partitionNames, partitions);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading " + directory);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Could not read " + directory, e.getCause());
+    }
+    this.partitions = partitions;
+    this.partitionFilesDirectory = directory.getAbsoluteFile();
+    this.deletedPartitions.clear();
+    this.unloadedPartitions.clear();
+    this.unloadedPartitions.addAll(unloadedPartitions);
+  }
+
+  private void readPartitionFiles(
+      File directory, Collection<String> partitionNames, Map<String, Partition> partitions) {
+    for (String partitionName : partitionNames) {
+      final OffHeapPartition p = readPartitionFile(directory, partitionName);
+      if (p != null) {
+        partitions.put(partitionName, p);
+      }
+    }
+  }
+
   @Override
   public void load(String saveFileName) throws IOException {
+    load(saveFileName, 0);
+  }
+
+  /**
+   * Loads the cube like {@link #load(String)}, but if it was saved as partition files, only its
+   * last lastNum partitions are read, unless lastNum is not positive. The other ones are read when
+   * they are changed, and are not searched until then.
+   */
+  public void load(String saveFileName, int lastNum) throws IOException {
+    if (new File(saveFileName).isDirectory()) {
+      loadPartitionFiles(new File(saveFileName), lastNum);
+      queryCache.clear();
+      return;
+    }
     Kryo kryo = CubeUtils.getKryoWithRegistrations();
     InputStream stream;
     if (saveFileName.endsWith(".gz"))
@@ -358,8 +621,9 @@ public class CubeImpl implements Cube {
     else throw new IOException("Cannot recognize the file extension for file " + saveFileName);
     Input input = new Input(stream);
     partitions = (Map<String, Partition>) kryo.readClassAndObject(input);
+    unloadedPartitions.clear();
     input.close();
-    System.gc();
+    queryCache.clear();
   }
 
   @Override
@@ -426,6 +690,13 @@ public class CubeImpl implements Cube {
         .stream()
         .mapToLong(e -> (Long) e.get(Constants.STATS_METRIC_SIZE))
         .sum());
+    out.put(
+        Constants.STATS_INDEX_SIZE,
+        partitionStats
+        .values()
+        .stream()
+        .mapToLong(e -> (Long) e.get(Constants.STATS_INDEX_SIZE))
+        .sum());
     out.put(
         Constants.STATS_COLUMN_BLOCKS,
         partitionStats
@@ -455,6 +726,8 @@ public class CubeImpl implements Cube {
         .mapToInt(e -> (Integer) e.get(Constants.STATS_NUM_LARGE_BLOCKS))
         .sum());
     out.put(Constants.STATS_NUM_PARTITIONS, partitionStats.size());
+    out.put(Constants.STATS_QUERY_CACHE_HITS, queryCache.getHits());
+    out.put(Constants.STATS_QUERY_CACHE_MISSES, queryCache.getMisses());
     out.put(
         Constants.STATS_NUM_READONLY_PARTITIONS,
         partitionStats
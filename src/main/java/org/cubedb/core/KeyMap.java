@@ -4,11 +4,19 @@ import java.util.Map.Entry;
 import java.util.stream.Stream;
 
 public interface KeyMap {
-  Integer get(byte[] b);
+  /** Value returned by {@link #get(byte[])} for keys which are not in the map. */
+  int NO_VALUE = -1;
 
+  /** Returns the value of the key, or {@link #NO_VALUE}. */
+  int get(byte[] b);
+
+  /** Stores a non-negative value. The key is copied, so the array can be reused. */
   void put(byte[] k, int v);
 
   int size();
 
+  /** Length in bytes of the longest key the map can store. */
+  int maxKeyLength();
+
   Stream<Entry<byte[], Integer>> entrySet();
 }
@@ -5,6 +5,12 @@ public interface Metric {
 
   long get(int index);
 
+  /**
+   * Reads values of rows {@code [fromIndex, fromIndex + length)} into {@code dst}, starting at
+   * {@code dst[0]}. Rows the metric has no data for are read as 0.
+   */
+  void getBlock(int fromIndex, long[] dst, int length);
+
   void incrementBy(int index, long value);
 
   long size();
@@ -1,5 +1,6 @@
 package org.cubedb.core;
 
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.GroupedSearchResultRow;
@@ -12,6 +13,8 @@ import java.util.Map;
 public interface MultiCube extends BaseCubeInterface {
   public void insert(List<DataRow> data);
 
+  public void insert(ColumnarBatch batch);
+
   public Map<GroupedSearchResultRow, Long> get(
       String cubeName, String fromPartition, String toPartition, List<Filter> filters);
 
@@ -29,6 +32,9 @@ public interface MultiCube extends BaseCubeInterface {
 
   public boolean hasCube(String cubeName);
 
+  /** Tells whether cubes are being loaded, cubes missing meanwhile may not be loaded yet. */
+  public boolean isLoading();
+
   public Cube getCube(String cubeName);
 
   public int deleteCube(String cubeName, String fromPartition, String toPartition);
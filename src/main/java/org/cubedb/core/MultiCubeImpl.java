@@ -1,8 +1,10 @@
 package org.cubedb.core;
 
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.GroupedSearchResultRow;
+import org.cubedb.offheap.PartitionFile;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,13 +12,20 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.security.InvalidParameterException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 public class MultiCubeImpl implements MultiCube {
@@ -24,29 +33,111 @@ public class MultiCubeImpl implements MultiCube {
   protected long lastSaveTsMs;
   protected boolean isCurrentlySavingOrLoading;
   protected String savePath;
+  // Changes since the last save, opened by load unless disabled
+  protected final long walSyncIntervalMs;
+  // Number of last partitions of every cube loaded, all of them if not positive
+  protected final int loadLastPartitions;
+  protected volatile WriteAheadLog writeAheadLog;
+  protected File writeAheadLogDirectory;
 
-  Map<String, Cube> cubes = new HashMap<String, Cube>();
+  final Map<String, Cube> cubes = new ConcurrentHashMap<String, Cube>();
+  // Cubes deleted as a whole, whose partition files saves remove
+  final Set<String> deletedCubes = ConcurrentHashMap.newKeySet();
+  // Cubes which could not be loaded, whose files saves leave alone
+  final Set<String> failedCubes = ConcurrentHashMap.newKeySet();
+  // Saves are serialized with each other, but do not block inserts and searches
+  private final Object saveLock = new Object();
+  // Held for writing by loads. Inserts, deletes and saves are rejected during a load, searches
+  // are only rejected for cubes which are not loaded yet.
+  private final ReadWriteLock loadLock = new ReentrantReadWriteLock();
+  private volatile boolean isLoading;
 
   final String partitionColumnName = Constants.DEFAULT_PARTITION_NAME;
+  // Extensions of files cubes were saved to before partition files
+  private static final String[] LEGACY_EXTENSIONS = {".snappy", ".gz"};
 
   public MultiCubeImpl(String savePath) {
     this.savePath = savePath;
     this.isCurrentlySavingOrLoading = false;
+    this.walSyncIntervalMs = Constants.WAL_SYNC_INTERVAL_MS;
+    this.loadLastPartitions = Constants.LOAD_LAST_PARTITIONS;
   }
 
   private Cube createNewCube(String cubeName) {
-    Cube c = new CubeImpl(partitionColumnName);
+    deletedCubes.remove(cubeName);
+    CubeImpl c = new CubeImpl(partitionColumnName);
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
+    if (writeAheadLog != null) {
+      c.setWriteAheadLog(cubeName, writeAheadLog);
+    }
     return c;
   }
 
+  /** Marks the cubes as loading ahead of {@link #load(String)}, which clears the mark. */
+  public void setLoading(boolean isLoading) {
+    this.isLoading = isLoading;
+  }
+
+  @Override
+  public boolean isLoading() {
+    return isLoading;
+  }
+
+  // Holds off loads until the change is made, or rejects the change if a load is in progress or
+  // failed
+  private void lockForChange() {
+    if (isLoading || !loadLock.readLock().tryLock()) {
+      throw new RejectedExecutionException("Cubes are being loaded, please retry later");
+    }
+  }
+
+  // Searches of a cube which may not be loaded yet have to be retried
+  private Cube getLoadedCube(String cubeName) {
+    Cube c = cubes.get(cubeName);
+    if (c == null && isLoading) {
+      throw new RejectedExecutionException(
+          String.format("Cube %s is not loaded yet, please retry later", cubeName));
+    }
+    return c;
+  }
+
+  // Returns once the changes made so far are as durable as the write-ahead log is configured
+  private void commit() {
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
+    if (writeAheadLog != null) {
+      try {
+        writeAheadLog.commit();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not sync the write-ahead log", e);
+      }
+    }
+  }
+
+  @Override
+  public void insert(List<DataRow> data) {
+    lockForChange();
+    try {
+      Map<String, List<DataRow>> groupedData =
+          data.stream().collect(Collectors.groupingBy(DataRow::getCubeName));
+      for (Entry<String, List<DataRow>> cubeEntry : groupedData.entrySet()) {
+        final String cubeName = cubeEntry.getKey();
+        final List<DataRow> cubeData = cubeEntry.getValue();
+        cubes.computeIfAbsent(cubeName, this::createNewCube).insert(cubeData);
+      }
+      commit();
+    } finally {
+      loadLock.readLock().unlock();
+    }
+  }
+
   @Override
-  public synchronized void insert(List<DataRow> data) {
-    Map<String, List<DataRow>> groupedData =
-        data.stream().collect(Collectors.groupingBy(DataRow::getCubeName));
-    for (Entry<String, List<DataRow>> cubeEntry : groupedData.entrySet()) {
-      final String cubeName = cubeEntry.getKey();
-      final List<DataRow> cubeData = cubeEntry.getValue();
-      cubes.computeIfAbsent(cubeName, this::createNewCube).insert(cubeData);
+  public void insert(ColumnarBatch batch) {
+    lockForChange();
+    try {
+      cubes.computeIfAbsent(batch.getCubeName(), this::createNewCube).insert(batch);
+      commit();
+    } finally {
+      loadLock.readLock().unlock();
     }
   }
 
@@ -63,7 +154,7 @@ public class MultiCubeImpl implements MultiCube {
       String toPartition,
       List<Filter> filters,
       String groupBy) {
-    Cube c = cubes.get(cubeName);
+    Cube c = getLoadedCube(cubeName);
     if (c != null) {
       return c.get(fromPartition, toPartition, filters, groupBy);
     } else {
@@ -89,7 +180,7 @@ public class MultiCubeImpl implements MultiCube {
   @Override
   public Map<GroupedSearchResultRow, Long> get(
       String cubeName, int lastNum, List<Filter> filters, String groupBy) {
-    Cube c = cubes.get(cubeName);
+    Cube c = getLoadedCube(cubeName);
     if (c != null) {
       return c.get(lastNum, filters, groupBy);
     } else {
@@ -102,7 +193,18 @@ public class MultiCubeImpl implements MultiCube {
     save(path, false);
   }
 
-  public synchronized void save(String path, boolean asJson) throws IOException {
+  public void save(String path, boolean asJson) throws IOException {
+    lockForChange();
+    try {
+      synchronized (saveLock) {
+        saveImpl(path, asJson);
+      }
+    } finally {
+      loadLock.readLock().unlock();
+    }
+  }
+
+  protected void saveImpl(String path, boolean asJson) throws IOException {
     File targetDirectory = new File(path);
     if (targetDirectory.exists() && targetDirectory.isFile()) {
       log.error("Attempting to save to directory");
@@ -112,6 +214,27 @@ public class MultiCubeImpl implements MultiCube {
       targetDirectory.mkdirs();
     }
 
+    if (!asJson) {
+      // the log is truncated to the changes made after the save started
+      final WriteAheadLog writeAheadLog = this.writeAheadLog;
+      final boolean isCheckpoint =
+          writeAheadLog != null
+              && targetDirectory.getAbsoluteFile().equals(writeAheadLogDirectory);
+      final long segment = isCheckpoint ? writeAheadLog.startSegment() : 0;
+      if (savePartitionFiles(targetDirectory) && isCheckpoint) {
+        if (failedCubes.isEmpty()) {
+          writeAheadLog.removeSegmentsBefore(segment);
+        } else {
+          final long numBytes = writeAheadLog.retainSegmentsBefore(segment, failedCubes::contains);
+          log.warn(
+              "Kept {} bytes of the write-ahead log for cubes {}, which failed to load",
+              numBytes,
+              failedCubes);
+        }
+      }
+      return;
+    }
+
     File tmpDirectory = Files.createTempDirectory(targetDirectory.toPath(), ".tmp").toFile();
     log.info("Saving temporarily to {}", tmpDirectory.getAbsolutePath());
     cubes
@@ -144,74 +267,233 @@ public class MultiCubeImpl implements MultiCube {
     lastSaveTsMs = System.currentTimeMillis();
   }
 
-  @Override
-  public void load(String path) {
-    long t0 = System.currentTimeMillis();
+  // Saves every cube to a directory of partition files, replacing older snapshot files of the cube.
+  // Returns false if a cube could not be saved. Cubes which failed to load are never saved, their
+  // files and the changes logged for them are kept until they can be loaded.
+  protected boolean savePartitionFiles(File targetDirectory) {
+    final AtomicBoolean isSaved = new AtomicBoolean(true);
+    cubes
+        .entrySet()
+        .stream()
+        .parallel()
+        .filter(cube -> !failedCubes.contains(cube.getKey()))
+        .forEach(
+            cube -> {
+              File cubeDirectory = new File(targetDirectory, cube.getKey());
+              try {
+                cube.getValue().save(cubeDirectory.getAbsolutePath());
+                for (String extension : LEGACY_EXTENSIONS) {
+                  File legacyFile = new File(targetDirectory, cube.getKey() + extension);
+                  Files.deleteIfExists(legacyFile.toPath());
+                }
+              } catch (IOException e) {
+                log.error("Could not save {} in {}", cube.getKey(), cubeDirectory, e);
+                isSaved.set(false);
+              }
+            });
+    // directories of deleted cubes, unless they were created again meanwhile
+    for (String cubeName : deletedCubes) {
+      final File cubeDirectory = new File(targetDirectory, cubeName);
+      if (!cubes.containsKey(cubeName)
+          && !failedCubes.contains(cubeName)
+          && cubeDirectory.isDirectory()) {
+        try {
+          deletePartitionFiles(cubeDirectory);
+        } catch (IOException e) {
+          log.error("Could not delete {}", cubeDirectory, e);
+          isSaved.set(false);
+        }
+      }
+    }
+    lastSaveTsMs = System.currentTimeMillis();
+    return isSaved.get();
+  }
 
-    File p = new File(path);
-    if (p.exists()) {
-      if (p.isFile()) {
-        log.error("Attempting to load from directory");
-        throw new InvalidParameterException("Path specified is a file");
+  private static void deletePartitionFiles(File cubeDirectory) throws IOException {
+    for (File file : cubeDirectory.listFiles()) {
+      if (PartitionFile.getPartitionName(file.getName()) != null) {
+        Files.delete(file.toPath());
       }
+    }
+    if (cubeDirectory.list().length == 0) {
+      Files.delete(cubeDirectory.toPath());
+    }
+  }
 
-      for (File cubeFile : p.listFiles()) {
-        log.info("Loading from file {}", cubeFile.getAbsolutePath());
-        String cubeName = cubeFile.getName().replace(".gz", "").replace(".snappy", "");
-        Cube c = createNewCube(partitionColumnName);
-        try {
-          c.load(cubeFile.getAbsolutePath());
-          cubes.put(cubeName, c);
-        } catch (IOException e) {
-          log.error("Could no load cube {}", cubeName);
+  /**
+   * Loads all cubes saved in the directory one by one, the partitions of each one in parallel.
+   * Every cube can be searched as soon as it is loaded. Searches of other cubes and all changes are rejected with a {@link
+   * RejectedExecutionException} until all of them are loaded and the write-ahead log is replayed.
+   * If the load fails, changes keep being rejected, since they could not be logged.
+   */
+  @Override
+  public void load(String path) {
+    long t0 = System.currentTimeMillis();
+    isLoading = true;
+    boolean isLoaded = false;
+    loadLock.writeLock().lock();
+    try {
+      closeWriteAheadLog();
+      deletedCubes.clear();
+      failedCubes.clear();
+      File p = new File(path);
+      if (p.exists()) {
+        if (p.isFile()) {
+          log.error("Attempting to load from directory");
+          throw new InvalidParameterException("Path specified is a file");
+        }
+        for (File cubeFile : p.listFiles()) {
+          loadCube(p, cubeFile);
         }
+      } else {
+        log.warn("Save path {} does not exist. It will be created next time when saving", path);
       }
-    } else {
-      log.warn("Save path {} does not exist. It will be created next time when saving", path);
+      if (walSyncIntervalMs >= 0) {
+        openWriteAheadLog(p.getAbsoluteFile());
+      }
+      isLoaded = true;
+    } finally {
+      loadLock.writeLock().unlock();
+      isLoading = !isLoaded;
     }
     long t1 = System.currentTimeMillis();
     log.info("Loading time: {}ms", t1 - t0);
   }
 
-  @Override
-  public int deleteCube(String cubeName, String fromPartition, String toPartition) {
-    int deletedCount = 0;
-    Cube c = cubes.get(cubeName);
-    if (fromPartition == null && toPartition == null) {
-      deletedCount += cubes.get(cubeName).getPartitions(null, null).size();
+  protected void loadCube(File directory, File cubeFile) {
+    if (cubeFile.getName().startsWith(".")) {
+      return;
+    }
+    String cubeName = cubeFile.getName().replace(".gz", "").replace(".snappy", "");
+    if (cubeFile.isFile() && new File(directory, cubeName).isDirectory()) {
+      log.warn("Ignoring {}, the cube has been saved as partition files", cubeFile);
+      return;
+    }
+    log.info("Loading from file {}", cubeFile.getAbsolutePath());
+    final long t0 = System.currentTimeMillis();
+    CubeImpl c = (CubeImpl) createNewCube(cubeName);
+    try {
+      c.load(cubeFile.getAbsolutePath(), loadLastPartitions);
+      cubes.put(cubeName, c);
+      log.info("Loaded {} in {}ms", cubeName, System.currentTimeMillis() - t0);
+    } catch (IOException | UncheckedIOException e) {
+      log.error("Could no load cube {}", cubeName, e);
+      failedCubes.add(cubeName);
+      // nor served from what a previous load left of it
       cubes.remove(cubeName);
+    }
+  }
 
-    } else {
-      if (c != null) {
-        for (String partitionName : c.getPartitions(fromPartition, toPartition)) {
-          deletedCount++;
-          c.deletePartition(partitionName);
+  // Replays the changes logged in the directory, and logs all changes from now on
+  protected void openWriteAheadLog(File directory) {
+    try {
+      final long lastSequence = WriteAheadLog.replay(directory, this::replay);
+      writeAheadLog = new WriteAheadLog(directory, lastSequence + 1, walSyncIntervalMs);
+      writeAheadLogDirectory = directory;
+      for (Entry<String, Cube> e : cubes.entrySet()) {
+        ((CubeImpl) e.getValue()).setWriteAheadLog(e.getKey(), writeAheadLog);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open the write-ahead log in " + directory, e);
+    }
+  }
+
+  protected void replay(WriteAheadLog.Record change) {
+    try {
+      final String cubeName = change.getCubeName();
+      if (failedCubes.contains(cubeName)) {
+        // the log keeps the change until the cube can be loaded
+        return;
+      }
+      if (change.getType() == WriteAheadLog.TYPE_DELETE && change.getPartition() == null) {
+        if (cubes.remove(cubeName) != null) {
+          deletedCubes.add(cubeName);
         }
+        return;
+      }
+      // deletes do not create cubes
+      if (change.getType() != WriteAheadLog.TYPE_DELETE || cubes.containsKey(cubeName)) {
+        ((CubeImpl) cubes.computeIfAbsent(cubeName, this::createNewCube)).replay(change);
+      }
+    } catch (RuntimeException e) {
+      // the change failed the same way when it was made
+      log.error("Could not replay change {}", change.getSequence(), e);
+    }
+  }
+
+  protected void closeWriteAheadLog() {
+    final WriteAheadLog writeAheadLog = this.writeAheadLog;
+    if (writeAheadLog != null) {
+      this.writeAheadLog = null;
+      try {
+        writeAheadLog.close();
+      } catch (IOException e) {
+        log.error("Could not close the write-ahead log", e);
       }
     }
-    return deletedCount;
   }
 
   @Override
-  public int deleteCube(String cubeName, int keepLastN) {
-    Cube c = cubes.get(cubeName);
-    int deletedCount = 0;
-    if (c != null) {
-      TreeSet<String> partitions = c.getPartitions(null, null);
-      final int indexToDelete = partitions.size() - keepLastN;
-      int i = 0;
-      for (String partitionName : partitions) {
-        if (i < indexToDelete) {
+  public int deleteCube(String cubeName, String fromPartition, String toPartition) {
+    lockForChange();
+    try {
+      int deletedCount = 0;
+      Cube c = cubes.get(cubeName);
+      if (fromPartition == null && toPartition == null) {
+        if (c == null) {
+          return 0;
+        }
+        // partitions are deleted one by one, so saves of the cube remove their files
+        for (String partitionName : c.getPartitions(null, null)) {
           c.deletePartition(partitionName);
           deletedCount++;
-        } else break;
-        i++;
+        }
+        cubes.remove(cubeName);
+        deletedCubes.add(cubeName);
+        final WriteAheadLog writeAheadLog = this.writeAheadLog;
+        if (writeAheadLog != null) {
+          writeAheadLog.append(WriteAheadLog.encodeDelete(cubeName, null));
+        }
+
+      } else {
+        if (c != null) {
+          for (String partitionName : c.getPartitions(fromPartition, toPartition)) {
+            deletedCount++;
+            c.deletePartition(partitionName);
+          }
+        }
       }
-      if (i > 0) {
-        log.debug("Removed {} partitions from {}", i, cubeName);
+      return deletedCount;
+    } finally {
+      loadLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public int deleteCube(String cubeName, int keepLastN) {
+    lockForChange();
+    try {
+      Cube c = cubes.get(cubeName);
+      int deletedCount = 0;
+      if (c != null) {
+        TreeSet<String> partitions = c.getPartitions(null, null);
+        final int indexToDelete = partitions.size() - keepLastN;
+        int i = 0;
+        for (String partitionName : partitions) {
+          if (i < indexToDelete) {
+            c.deletePartition(partitionName);
+            deletedCount++;
+          } else break;
+          i++;
+        }
+        if (i > 0) {
+          log.debug("Removed {} partitions from {}", i, cubeName);
+        }
       }
+      return deletedCount;
+    } finally {
+      loadLock.readLock().unlock();
     }
-    return deletedCount;
   }
 
   @Override
@@ -260,6 +542,13 @@ public class MultiCubeImpl implements MultiCube {
         .stream()
         .mapToLong(e -> (Long) e.get(Constants.STATS_METRIC_SIZE))
         .sum());
+    out.put(
+        Constants.STATS_INDEX_SIZE,
+        partitionStats
+        .values()
+        .stream()
+        .mapToLong(e -> (Long) e.get(Constants.STATS_INDEX_SIZE))
+        .sum());
     out.put(
         Constants.STATS_COLUMN_BLOCKS,
         partitionStats
@@ -302,7 +591,22 @@ public class MultiCubeImpl implements MultiCube {
         .stream()
         .mapToInt(e -> (Integer) e.get(Constants.STATS_NUM_READONLY_PARTITIONS))
         .sum());
+    out.put(
+        Constants.STATS_QUERY_CACHE_HITS,
+        partitionStats
+        .values()
+        .stream()
+        .mapToLong(e -> (Long) e.get(Constants.STATS_QUERY_CACHE_HITS))
+        .sum());
+    out.put(
+        Constants.STATS_QUERY_CACHE_MISSES,
+        partitionStats
+        .values()
+        .stream()
+        .mapToLong(e -> (Long) e.get(Constants.STATS_QUERY_CACHE_MISSES))
+        .sum());
     out.put(Constants.STATS_NUM_CUBES, partitionStats.size());
+    out.put(Constants.STATS_EXECUTOR, TaskExecutor.getInstance().getStats());
     return out;
   }
 
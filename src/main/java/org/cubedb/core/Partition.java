@@ -1,5 +1,6 @@
 package org.cubedb.core;
 
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.SearchResult;
@@ -9,12 +10,29 @@ import com.esotericsoftware.kryo.KryoSerializable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.LongSupplier;
 import java.util.stream.Stream;
 
 public interface Partition extends KryoSerializable {
 
   void insert(DataRow data);
 
+  /** Inserts all rows of the batch, ignoring its cube and partition names. */
+  void insert(ColumnarBatch batch);
+
+  /**
+   * Inserts the rows as a single change logged to the write-ahead log. The log is called under
+   * the partition lock and returns the sequence number of the change, so changes of a partition
+   * are applied in the order of their sequence numbers.
+   */
+  void insert(List<DataRow> rows, LongSupplier log);
+
+  /** Inserts all rows of the batch as a single change logged to the write-ahead log. */
+  void insert(ColumnarBatch batch, LongSupplier log);
+
+  /** Returns the write-ahead log sequence number of the last logged change, 0 if none. */
+  long getLogSequence();
+
   SearchResult get(List<Filter> filters, String groupFieldName);
 
   int getNumRecords();
@@ -26,4 +44,7 @@ public interface Partition extends KryoSerializable {
   Stream<DataRow> asDataRowStream();
 
   boolean optimize();
+
+  /** Monotonically increasing version, changed whenever data of the partition gets modified. */
+  long getVersion();
 }
@@ -0,0 +1,165 @@
+package org.cubedb.core;
+
+import org.cubedb.core.beans.Filter;
+import org.cubedb.core.beans.GroupedSearchResultRow;
+import org.cubedb.core.beans.Pair;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of cube search results, bounded by the number of results and by the number of rows
+ * they hold. Every entry remembers the partitions it was computed
+ * from together with their versions, and is only served while the same partitions are searched
+ * and none of them has been modified since.
+ */
+public class QueryCache {
+
+  protected static class Key {
+    private final String fromPartition;
+    private final String toPartition;
+    private final List<Filter> filters;
+    private final String groupBy;
+
+    public Key(String fromPartition, String toPartition, List<Filter> filters, String groupBy) {
+      this.fromPartition = fromPartition;
+      this.toPartition = toPartition;
+      this.filters = new ArrayList<Filter>(filters);
+      this.groupBy = groupBy;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fromPartition, toPartition, filters, groupBy);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (obj == null) return false;
+      if (getClass() != obj.getClass()) return false;
+      Key other = (Key) obj;
+      return Objects.equals(fromPartition, other.fromPartition)
+          && Objects.equals(toPartition, other.toPartition)
+          && Objects.equals(filters, other.filters)
+          && Objects.equals(groupBy, other.groupBy);
+    }
+  }
+
+  protected static class Entry {
+    private final Map<Partition, Long> versions;
+    private final Map<GroupedSearchResultRow, Long> result;
+
+    public Entry(Map<Partition, Long> versions, Map<GroupedSearchResultRow, Long> result) {
+      this.versions = versions;
+      this.result = result;
+    }
+
+    public boolean isValid(List<Pair<String, Partition>> partitions) {
+      if (partitions.size() != versions.size()) {
+        return false;
+      }
+      for (Pair<String, Partition> p : partitions) {
+        Long version = versions.get(p.getValue());
+        if (version == null || version.longValue() != p.getValue().getVersion()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private final int maxSize;
+  private final int maxRows;
+  // Number of rows of all cached results, guarded by entries
+  private long numRows;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public QueryCache(int maxSize, int maxRows) {
+    this.maxSize = maxSize;
+    this.maxRows = maxRows;
+  }
+
+  /**
+   * Captures current versions of the partitions. Has to be called before the partitions are
+   * searched, so that modifications made during the search invalidate the result.
+   */
+  public static Map<Partition, Long> getVersions(List<Pair<String, Partition>> partitions) {
+    Map<Partition, Long> versions = new IdentityHashMap<Partition, Long>(partitions.size());
+    for (Pair<String, Partition> p : partitions) {
+      versions.put(p.getValue(), p.getValue().getVersion());
+    }
+    return versions;
+  }
+
+  /** Returns the cached result, or null if there is no valid one for these partitions. */
+  public Map<GroupedSearchResultRow, Long> get(
+      Key key, List<Pair<String, Partition>> partitions) {
+    final Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry != null && entry.isValid(partitions)) {
+      hits.incrementAndGet();
+      return entry.result;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /** Caches a result, unless it has more rows than the whole cache may hold. */
+  public void put(
+      Key key, Map<Partition, Long> versions, Map<GroupedSearchResultRow, Long> result) {
+    if (result.size() > maxRows) {
+      return;
+    }
+    synchronized (entries) {
+      final Entry old = entries.put(key, new Entry(versions, result));
+      if (old != null) {
+        numRows -= old.result.size();
+      }
+      numRows += result.size();
+      // least recently used entries come first, the new one last
+      final Iterator<Entry> it = entries.values().iterator();
+      while (entries.size() > maxSize || numRows > maxRows) {
+        numRows -= it.next().result.size();
+        it.remove();
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      numRows = 0;
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long getNumRows() {
+    synchronized (entries) {
+      return numRows;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
@@ -0,0 +1,122 @@
+package org.cubedb.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived, work-stealing pool executing search and insert tasks of all cubes. The number of
+ * tasks submitted and not yet finished is bounded: callers wait for a free slot for a limited
+ * time, after which their tasks get rejected.
+ */
+public class TaskExecutor {
+  public static final Logger log = LoggerFactory.getLogger(TaskExecutor.class);
+
+  private static volatile TaskExecutor instance;
+
+  private final ForkJoinPool pool;
+  private final int maxQueuedTasks;
+  private final long admissionTimeoutMs;
+  private final Semaphore slots;
+  private final AtomicInteger queuedTasks = new AtomicInteger();
+  private final AtomicInteger activeTasks = new AtomicInteger();
+  private final AtomicLong completedTasks = new AtomicLong();
+  private final AtomicLong rejectedTasks = new AtomicLong();
+
+  public TaskExecutor(int parallelism, int maxQueuedTasks, long admissionTimeoutMs) {
+    this.pool = new ForkJoinPool(parallelism);
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.admissionTimeoutMs = admissionTimeoutMs;
+    this.slots = new Semaphore(maxQueuedTasks, true);
+  }
+
+  /** Returns the executor shared by all cubes, configured with values from {@link Constants}. */
+  public static TaskExecutor getInstance() {
+    if (instance == null) {
+      synchronized (TaskExecutor.class) {
+        if (instance == null) {
+          instance =
+              new TaskExecutor(
+                  Constants.EXECUTOR_PARALLELISM,
+                  Constants.EXECUTOR_MAX_QUEUED_TASKS,
+                  Constants.EXECUTOR_ADMISSION_TIMEOUT_MS);
+        }
+      }
+    }
+    return instance;
+  }
+
+  private class TrackedTask<T> implements Callable<T> {
+    private final Callable<T> task;
+
+    TrackedTask(Callable<T> task) {
+      this.task = task;
+    }
+
+    @Override
+    public T call() throws Exception {
+      queuedTasks.decrementAndGet();
+      activeTasks.incrementAndGet();
+      try {
+        return task.call();
+      } finally {
+        activeTasks.decrementAndGet();
+        completedTasks.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Executes the tasks and waits for all of them to complete, like {@link
+   * java.util.concurrent.ExecutorService#invokeAll(Collection)}.
+   *
+   * @throws RejectedExecutionException if the executor is overloaded
+   */
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+      throws InterruptedException {
+    if (tasks.isEmpty()) {
+      return new ArrayList<Future<T>>();
+    }
+    // a batch larger than the queue is admitted once the queue is empty
+    final int permits = Math.min(tasks.size(), maxQueuedTasks);
+    if (!slots.tryAcquire(permits, admissionTimeoutMs, TimeUnit.MILLISECONDS)) {
+      rejectedTasks.addAndGet(tasks.size());
+      log.warn("Rejecting {} tasks, {} tasks are queued", tasks.size(), queuedTasks.get());
+      throw new RejectedExecutionException("Too many tasks queued, please retry later");
+    }
+    try {
+      List<TrackedTask<T>> trackedTasks = new ArrayList<TrackedTask<T>>(tasks.size());
+      for (Callable<T> task : tasks) {
+        trackedTasks.add(new TrackedTask<T>(task));
+      }
+      queuedTasks.addAndGet(tasks.size());
+      return pool.invokeAll(trackedTasks);
+    } finally {
+      slots.release(permits);
+    }
+  }
+
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<String, Object>();
+    stats.put(Constants.STATS_EXECUTOR_PARALLELISM, pool.getParallelism());
+    stats.put(Constants.STATS_EXECUTOR_QUEUED_TASKS, queuedTasks.get());
+    stats.put(Constants.STATS_EXECUTOR_ACTIVE_TASKS, activeTasks.get());
+    stats.put(Constants.STATS_EXECUTOR_COMPLETED_TASKS, completedTasks.get());
+    stats.put(Constants.STATS_EXECUTOR_REJECTED_TASKS, rejectedTasks.get());
+    stats.put(Constants.STATS_EXECUTOR_POOL_SIZE, pool.getPoolSize());
+    return stats;
+  }
+}
@@ -0,0 +1,637 @@
+package org.cubedb.core;
+
+import org.cubedb.core.beans.ColumnarBatch;
+import org.cubedb.core.beans.DataRow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to the cubes since they were last saved, replayed after
+ * loading them. The log is a sequence of segment files in the save directory. A save starts a new
+ * segment, and the older ones are removed once all cubes are saved. Only the changes of cubes
+ * which failed to load are kept from them, as those cubes are not saved.
+ *
+ * <pre>
+ * segment: int magic number, long sequence number of its first change, records
+ * record:  int length L of the payload, int CRC32 of the payload, L bytes payload
+ * payload: long sequence number, byte type, cube name, partition name, then
+ *   rows:   int number of rows, every row as its fields and its counters
+ *   batch:  field names, metric names, values, int number of rows, value indexes and metric
+ *           values column by column
+ *   delete: nothing, a null partition name deletes the whole cube
+ * </pre>
+ *
+ * With a sync interval of 0 inserts return once their changes are synced to disk, concurrent
+ * inserts sharing a single sync. Otherwise the log is synced in the background at that interval:
+ * changes are written to the file before inserts return, so only a crash of the machine loses
+ * them.
+ */
+public class WriteAheadLog implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+  public static final byte TYPE_ROWS = 1;
+  public static final byte TYPE_BATCH = 2;
+  public static final byte TYPE_DELETE = 3;
+  private static final int MAGIC = 0x4344424c;
+  private static final String SEGMENT_PREFIX = ".wal-";
+  // Changes kept from older segments are written to this file before replacing one of them
+  private static final String TMP_SEGMENT = ".wal.tmp";
+  private static final int MAX_RECORD_SIZE = 1 << 30;
+
+  private final File directory;
+  private final long syncIntervalMs;
+  private final ScheduledExecutorService syncer;
+  // Held while syncing or starting a segment, before the lock of the log
+  private final Object syncLock = new Object();
+  private final CRC32 crc = new CRC32();
+  private FileChannel channel;
+  private long segment;
+  private long nextSequence;
+  private volatile long lastSequence;
+  private long syncedSequence;
+  // Set under both locks, the channel is closed then
+  private boolean isClosed;
+
+  /**
+   * Starts a new segment in the directory.
+   *
+   * @param nextSequence sequence number of the next change, greater than all of the replayed ones
+   * @param syncIntervalMs interval of background syncs, 0 to sync before inserts return
+   */
+  public WriteAheadLog(File directory, long nextSequence, long syncIntervalMs)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    this.directory = directory;
+    this.syncIntervalMs = syncIntervalMs;
+    this.nextSequence = nextSequence;
+    this.lastSequence = nextSequence - 1;
+    this.syncedSequence = lastSequence;
+    final long[] segments = listSegments(directory);
+    this.segment = segments.length > 0 ? segments[segments.length - 1] : 0;
+    openSegment();
+    if (syncIntervalMs > 0) {
+      syncer =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "wal-sync");
+                t.setDaemon(true);
+                return t;
+              });
+      syncer.scheduleWithFixedDelay(
+          () -> {
+            try {
+              sync();
+            } catch (IOException e) {
+              log.error("Could not sync the write-ahead log", e);
+            }
+          },
+          syncIntervalMs,
+          syncIntervalMs,
+          TimeUnit.MILLISECONDS);
+    } else {
+      syncer = null;
+    }
+  }
+
+  private static File segmentFile(File directory, long segment) {
+    return new File(directory, String.format("%s%016x", SEGMENT_PREFIX, segment));
+  }
+
+  private static long[] listSegments(File directory) {
+    final String[] names = directory.list();
+    if (names == null) {
+      return new long[0];
+    }
+    return Arrays.stream(names)
+        .filter(name -> name.startsWith(SEGMENT_PREFIX))
+        .mapToLong(name -> Long.parseUnsignedLong(name.substring(SEGMENT_PREFIX.length()), 16))
+        .sorted()
+        .toArray();
+  }
+
+  // Called under both locks
+  private void openSegment() throws IOException {
+    segment++;
+    final File file = segmentFile(directory, segment);
+    channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+    header.putInt(MAGIC).putLong(nextSequence).flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+    channel.force(true);
+    log.debug("Started write-ahead log segment {}", file);
+  }
+
+  /**
+   * Appends a change encoded by one of the encode methods, and returns its sequence number. The
+   * change is written to the file, but might not be synced yet.
+   */
+  public long append(byte[] payload) {
+    synchronized (this) {
+      if (isClosed) {
+        throw new IllegalStateException("The write-ahead log is closed");
+      }
+      final long sequence = nextSequence;
+      ByteBuffer.wrap(payload).putLong(0, sequence);
+      crc.reset();
+      crc.update(payload, 0, payload.length);
+      final ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+      header.putInt(payload.length).putInt((int) crc.getValue()).flip();
+      final ByteBuffer[] record = {header, ByteBuffer.wrap(payload)};
+      long position = -1;
+      try {
+        position = channel.position();
+        while (record[1].hasRemaining()) {
+          channel.write(record);
+        }
+      } catch (IOException e) {
+        // removes a partly written record, so later ones can be replayed
+        if (position >= 0) {
+          try {
+            channel.truncate(position);
+          } catch (IOException e1) {
+            e.addSuppressed(e1);
+          }
+        }
+        throw new UncheckedIOException("Could not write to the write-ahead log", e);
+      }
+      nextSequence++;
+      lastSequence = sequence;
+      return sequence;
+    }
+  }
+
+  /** Waits until the appended changes are synced, if the log is not synced in the background. */
+  public void commit() throws IOException {
+    if (syncIntervalMs <= 0) {
+      sync();
+    }
+  }
+
+  /** Syncs the changes appended so far to disk, closing the log syncs them too. */
+  public void sync() throws IOException {
+    final long sequence = lastSequence;
+    synchronized (syncLock) {
+      // another thread might have synced the change already
+      if (isClosed || syncedSequence >= sequence) {
+        return;
+      }
+      final long written = lastSequence;
+      channel.force(false);
+      syncedSequence = written;
+    }
+  }
+
+  /**
+   * Starts a new segment for the changes appended from now on, and returns its number. Changes of
+   * the older segments are no longer needed once every partition changed by them is saved.
+   */
+  public long startSegment() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (isClosed) {
+          throw new IOException("The write-ahead log is closed");
+        }
+        channel.force(false);
+        channel.close();
+        syncedSequence = lastSequence;
+        openSegment();
+        return segment;
+      }
+    }
+  }
+
+  /** Removes the segments older than the given one. */
+  public void removeSegmentsBefore(long segment) throws IOException {
+    for (long s : listSegments(directory)) {
+      if (s < segment && !segmentFile(directory, s).delete()) {
+        throw new IOException("Could not remove " + segmentFile(directory, s));
+      }
+    }
+  }
+
+  /**
+   * Removes the segments older than the given one, except for the changes of the cubes accepted
+   * by the predicate, which replace the last of them. Returns the number of bytes kept. A crash in
+   * between may leave a kept change twice in the log, which is harmless: partitions skip changes
+   * they already have.
+   */
+  public long retainSegmentsBefore(long segment, Predicate<String> isCubeKept)
+      throws IOException {
+    final long[] segments =
+        Arrays.stream(listSegments(directory)).filter(s -> s < segment).toArray();
+    if (segments.length == 0) {
+      return 0;
+    }
+    final File tmpFile = new File(directory, TMP_SEGMENT);
+    final CRC32 crc = new CRC32();
+    long numBytes = 0;
+    try (FileOutputStream file = new FileOutputStream(tmpFile)) {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.writeInt(MAGIC);
+      out.writeLong(readFirstSequence(segmentFile(directory, segments[0])));
+      for (long s : segments) {
+        final File segmentFile = segmentFile(directory, s);
+        try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+          in.readInt();
+          in.readLong();
+          byte[] payload;
+          while ((payload = readRecord(in, segmentFile)) != null) {
+            if (isCubeKept.test(readCubeName(payload))) {
+              crc.reset();
+              crc.update(payload, 0, payload.length);
+              out.writeInt(payload.length);
+              out.writeInt((int) crc.getValue());
+              out.write(payload);
+              numBytes += 2 * Integer.BYTES + payload.length;
+            }
+          }
+        } catch (EOFException e) {
+          log.warn("Ignoring {}, its header is incomplete", segmentFile);
+        }
+      }
+      out.flush();
+      file.getChannel().force(true);
+    }
+    final long lastSegment = segments[segments.length - 1];
+    if (numBytes > 0) {
+      Files.move(
+          tmpFile.toPath(),
+          segmentFile(directory, lastSegment).toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      removeSegmentsBefore(lastSegment);
+    } else {
+      Files.delete(tmpFile.toPath());
+      removeSegmentsBefore(segment);
+    }
+    return numBytes;
+  }
+
+  // Sequence number of the first change of a segment, or 0 if its header is incomplete
+  private static long readFirstSequence(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a write-ahead log segment: " + file);
+      }
+      return in.readLong();
+    } catch (EOFException e) {
+      return 0;
+    }
+  }
+
+  private static String readCubeName(byte[] payload) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    // sequence number and type
+    in.skipBytes(Long.BYTES + 1);
+    return readString(in);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdown();
+    }
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (isClosed) {
+          return;
+        }
+        isClosed = true;
+        syncedSequence = lastSequence;
+        channel.force(false);
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Passes the changes logged in the directory to the consumer in the order of their sequence
+   * numbers, and returns the last sequence number used. Every segment is read up to its first
+   * incomplete or corrupt record, which a crash might have left behind.
+   */
+  public static long replay(File directory, Consumer<Record> consumer) throws IOException {
+    long lastSequence = 0;
+    for (long segment : listSegments(directory)) {
+      final File file = segmentFile(directory, segment);
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("Not a write-ahead log segment: " + file);
+        }
+        lastSequence = Long.max(lastSequence, in.readLong() - 1);
+        int numRecords = 0;
+        while (true) {
+          final byte[] payload = readRecord(in, file);
+          if (payload == null) {
+            break;
+          }
+          final Record record = decode(payload);
+          lastSequence = Long.max(lastSequence, record.getSequence());
+          consumer.accept(record);
+          numRecords++;
+        }
+        log.info("Replayed {} changes from {}", numRecords, file);
+      } catch (EOFException e) {
+        log.warn("Ignoring {}, its header is incomplete", file);
+      }
+    }
+    return lastSequence;
+  }
+
+  private static byte[] readRecord(DataInputStream in, File file) throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    try {
+      final int checksum = in.readInt();
+      if (length < 0 || length > MAX_RECORD_SIZE) {
+        log.warn("Ignoring the rest of {}, it has a record of {} bytes", file, length);
+        return null;
+      }
+      final byte[] payload = new byte[length];
+      in.readFully(payload);
+      final CRC32 crc = new CRC32();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        log.warn("Ignoring the rest of {}, it has a corrupt record", file);
+        return null;
+      }
+      return payload;
+    } catch (EOFException e) {
+      log.warn("Ignoring the incomplete last record of {}", file);
+      return null;
+    }
+  }
+
+  public static byte[] encodeRows(String cubeName, String partition, List<DataRow> rows) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = startPayload(bytes, TYPE_ROWS, cubeName, partition);
+      out.writeInt(rows.size());
+      for (DataRow row : rows) {
+        out.writeInt(row.getFields().size());
+        for (Entry<String, String> e : row.getFields().entrySet()) {
+          writeString(out, e.getKey());
+          writeString(out, e.getValue());
+        }
+        out.writeInt(row.getCounters().size());
+        for (Entry<String, Long> e : row.getCounters().entrySet()) {
+          writeString(out, e.getKey());
+          out.writeBoolean(e.getValue() != null);
+          out.writeLong(e.getValue() != null ? e.getValue() : 0L);
+        }
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static byte[] encodeBatch(ColumnarBatch batch) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out =
+          startPayload(bytes, TYPE_BATCH, batch.getCubeName(), batch.getPartition());
+      writeStrings(out, batch.getFieldNames());
+      writeStrings(out, batch.getMetricNames());
+      writeStrings(out, batch.getValues());
+      out.writeInt(batch.getNumRows());
+      for (int[] column : batch.getFieldValues()) {
+        for (int i = 0; i < batch.getNumRows(); i++) {
+          out.writeInt(column[i]);
+        }
+      }
+      for (long[] column : batch.getMetricValues()) {
+        for (int i = 0; i < batch.getNumRows(); i++) {
+          out.writeLong(column[i]);
+        }
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static byte[] encodeDelete(String cubeName, String partition) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      startPayload(bytes, TYPE_DELETE, cubeName, partition).close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static DataOutputStream startPayload(
+      ByteArrayOutputStream bytes, byte type, String cubeName, String partition)
+      throws IOException {
+    final DataOutputStream out = new DataOutputStream(bytes);
+    // the sequence number is filled in when appending
+    out.writeLong(0);
+    out.writeByte(type);
+    writeString(out, cubeName);
+    writeString(out, partition);
+    return out;
+  }
+
+  private static Record decode(byte[] payload) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    final long sequence = in.readLong();
+    final byte type = in.readByte();
+    final String cubeName = readString(in);
+    final String partition = readString(in);
+    switch (type) {
+      case TYPE_ROWS:
+        final int numRows = in.readInt();
+        final List<DataRow> rows = new ArrayList<DataRow>(numRows);
+        for (int r = 0; r < numRows; r++) {
+          final DataRow row = new DataRow();
+          row.setCubeName(cubeName);
+          row.setPartition(partition);
+          final int numFields = in.readInt();
+          final Map<String, String> fields = new HashMap<String, String>();
+          for (int i = 0; i < numFields; i++) {
+            fields.put(readString(in), readString(in));
+          }
+          final int numCounters = in.readInt();
+          final Map<String, Long> counters = new HashMap<String, Long>();
+          for (int i = 0; i < numCounters; i++) {
+            final String name = readString(in);
+            final boolean isPresent = in.readBoolean();
+            final long value = in.readLong();
+            counters.put(name, isPresent ? value : null);
+          }
+          row.setFields(fields);
+          row.setCounters(counters);
+          rows.add(row);
+        }
+        return new Record(sequence, type, cubeName, partition, rows, null);
+      case TYPE_BATCH:
+        final String[] fieldNames = readStrings(in);
+        final String[] metricNames = readStrings(in);
+        final String[] values = readStrings(in);
+        final int numBatchRows = in.readInt();
+        final int[][] fieldValues = new int[fieldNames.length][numBatchRows];
+        for (int[] column : fieldValues) {
+          for (int i = 0; i < numBatchRows; i++) {
+            column[i] = in.readInt();
+          }
+        }
+        final long[][] metricValues = new long[metricNames.length][numBatchRows];
+        for (long[] column : metricValues) {
+          for (int i = 0; i < numBatchRows; i++) {
+            column[i] = in.readLong();
+          }
+        }
+        final ColumnarBatch batch =
+            new ColumnarBatch(
+                cubeName,
+                partition,
+                fieldNames,
+                metricNames,
+                values,
+                numBatchRows,
+                fieldValues,
+                metricValues);
+        return new Record(sequence, type, cubeName, partition, null, batch);
+      case TYPE_DELETE:
+        return new Record(sequence, type, cubeName, partition, null, null);
+      default:
+        throw new IOException("Unknown type " + type + " of change " + sequence);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeInt(strings.length);
+    for (String s : strings) {
+      writeString(out, s);
+    }
+  }
+
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    final String[] strings = new String[in.readInt()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = readString(in);
+    }
+    return strings;
+  }
+
+  /** A change read from the log. */
+  public static class Record {
+    private final long sequence;
+    private final byte type;
+    private final String cubeName;
+    private final String partition;
+    private final List<DataRow> rows;
+    private final ColumnarBatch batch;
+
+    Record(
+        long sequence,
+        byte type,
+        String cubeName,
+        String partition,
+        List<DataRow> rows,
+        ColumnarBatch batch) {
+      this.sequence = sequence;
+      this.type = type;
+      this.cubeName = cubeName;
+      this.partition = partition;
+      this.rows = rows;
+      this.batch = batch;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    public String getCubeName() {
+      return cubeName;
+    }
+
+    public String getPartition() {
+      return partition;
+    }
+
+    /** Returns the inserted rows of a {@link #TYPE_ROWS} change. */
+    public List<DataRow> getRows() {
+      return rows;
+    }
+
+    /** Returns the inserted batch of a {@link #TYPE_BATCH} change. */
+    public ColumnarBatch getBatch() {
+      return batch;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package org.cubedb.core.beans;
+
+/**
+ * Rows of a single partition stored column by column. Field values are dictionary coded: a row
+ * refers to a value by its index in {@link #getValues()}, a negative index means the row has no
+ * value for the field.
+ */
+public class ColumnarBatch {
+
+  private final String cubeName;
+  private final String partition;
+  private final String[] fieldNames;
+  private final String[] metricNames;
+  private final String[] values;
+  private final int numRows;
+  // field index -> row -> value index
+  private final int[][] fieldValues;
+  // metric index -> row -> metric value
+  private final long[][] metricValues;
+
+  public ColumnarBatch(
+      String cubeName,
+      String partition,
+      String[] fieldNames,
+      String[] metricNames,
+      String[] values,
+      int numRows,
+      int[][] fieldValues,
+      long[][] metricValues) {
+    if (fieldValues.length != fieldNames.length || metricValues.length != metricNames.length) {
+      throw new IllegalArgumentException("Number of columns does not match number of names");
+    }
+    for (int[] column : fieldValues) {
+      if (column.length < numRows) {
+        throw new IllegalArgumentException("Field column is shorter than the batch");
+      }
+      for (int i = 0; i < numRows; i++) {
+        if (column[i] >= values.length) {
+          throw new IllegalArgumentException("Value index " + column[i] + " is out of range");
+        }
+      }
+    }
+    for (long[] column : metricValues) {
+      if (column.length < numRows) {
+        throw new IllegalArgumentException("Metric column is shorter than the batch");
+      }
+    }
+    this.cubeName = cubeName;
+    this.partition = partition;
+    this.fieldNames = fieldNames;
+    this.metricNames = metricNames;
+    this.values = values;
+    this.numRows = numRows;
+    this.fieldValues = fieldValues;
+    this.metricValues = metricValues;
+  }
+
+  public String getCubeName() {
+    return cubeName;
+  }
+
+  public String getPartition() {
+    return partition;
+  }
+
+  public String[] getFieldNames() {
+    return fieldNames;
+  }
+
+  public String[] getMetricNames() {
+    return metricNames;
+  }
+
+  public String[] getValues() {
+    return values;
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public int[][] getFieldValues() {
+    return fieldValues;
+  }
+
+  public long[][] getMetricValues() {
+    return metricValues;
+  }
+}
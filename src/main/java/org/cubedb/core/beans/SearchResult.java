@@ -48,7 +48,7 @@ public class SearchResult {
     sideCounters.saveResultTo(groupedResult);
     log.debug("Result size is {}", groupedResult.size());
 
-    Lookup groupFieldLookup = lookups.get(groupFieldName);
+    Lookup groupFieldLookup = isGroupLookup ? lookups.get(groupFieldName) : null;
     Map<String, Map<String, Long>> totalCounts = new HashMap<>(totalCounters.length);
     for (int m = 0; m < totalCounters.length; m++) {
       Map<String, Long> groupValueToCounter = new HashMap<>(totalCounters[m].length);
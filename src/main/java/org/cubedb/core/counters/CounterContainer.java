@@ -56,7 +56,7 @@ public class CounterContainer {
   }
 
   public void saveResultTo(Map<GroupedSearchResultRow, Long> groupedResult) {
-    Lookup groupFieldLookup = lookups.get(groupFieldName);
+    Lookup groupFieldLookup = isGroupLookup ? lookups.get(groupFieldName) : null;
     sideCounters.forEach(
         (k0, k1, k2, k3, value) -> {
           final int metricIndex = k0;
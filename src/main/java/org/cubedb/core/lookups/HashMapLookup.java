@@ -10,20 +10,27 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 
+/**
+ * Key <--> id lookup. Ids are only ever added, so {@link #getKey(int)}, {@link #getKeys()} and
+ * {@link #size()} can be used without locking while another thread adds new keys: a key becomes
+ * visible through {@link #size()} only after it has been stored.
+ */
 public class HashMapLookup implements Lookup {
 
   @Override
   public String toString() {
-    return "HashMapLookup [keys=" + keys + "]";
+    return "HashMapLookup [keys=" + Arrays.toString(getKeys()) + "]";
   }
 
   public static final Logger log = LoggerFactory.getLogger(HashMapLookup.class);
+  // guarded by this
   private TObjectIntMap<String> m;
-  private List<String> keys;
+  // id -> key, the first numKeys entries are used
+  private volatile String[] keys;
+  private volatile int numKeys;
 
   public HashMapLookup(boolean needNull) {
     init(needNull);
@@ -31,10 +38,12 @@ public class HashMapLookup implements Lookup {
 
   protected void init(boolean needNull) {
     this.m = new TObjectIntHashMap<String>(8);
-    this.keys = new ArrayList<String>(8);
+    this.keys = new String[8];
+    this.numKeys = 0;
     if (needNull) {
-      this.keys.add(Constants.NULL_VALUE);
+      this.keys[0] = Constants.NULL_VALUE;
       this.m.put(Constants.NULL_VALUE, 0);
+      this.numKeys = 1;
     }
   }
 
@@ -47,10 +56,17 @@ public class HashMapLookup implements Lookup {
     if (key == null) key = Constants.NULL_VALUE;
     int val;
     if (!m.containsKey(key)) {
-      val = m.size();
+      val = numKeys;
       Objects.requireNonNull(key);
+      String[] keys = this.keys;
+      if (val == keys.length) {
+        keys = Arrays.copyOf(keys, val * 2);
+      }
+      keys[val] = key;
+      this.keys = keys;
       m.put(key, val);
-      keys.add(key);
+      // publishes the new key to unsynchronized readers
+      numKeys = val + 1;
     } else {
       val = m.get(key);
     }
@@ -58,12 +74,12 @@ public class HashMapLookup implements Lookup {
   }
 
   @Override
-  public boolean containsValue(String key) {
+  public synchronized boolean containsValue(String key) {
     return m.containsKey(key);
   }
 
   @Override
-  public int hashCode() {
+  public synchronized int hashCode() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((m == null) ? 0 : m.hashCode());
@@ -84,29 +100,28 @@ public class HashMapLookup implements Lookup {
 
   @Override
   public int size() {
-    return this.m.size();
+    return this.numKeys;
   }
 
   @Override
   public String[] getKeys() {
     int keysCount = this.size();
-    String[] keys = new String[keysCount];
-    for (int i = 0; i < keysCount; i++) {
-      keys[i] = this.keys.get(i);
-    }
-    return keys;
+    return Arrays.copyOf(this.keys, keysCount);
   }
 
   @Override
   public String getKey(int id) {
-    return this.keys.get(id);
+    if (id >= this.numKeys) {
+      throw new IndexOutOfBoundsException("Index: " + id + ", Size: " + this.numKeys);
+    }
+    return this.keys[id];
   }
 
   @Override
   public void write(Kryo kryo, Output output) {
-    int numKeys = this.keys.size();
-    output.writeInt(numKeys);
-    for (int i = 0; i < numKeys; i++) output.writeString(this.keys.get(i));
+    String[] keys = getKeys();
+    output.writeInt(keys.length);
+    for (int i = 0; i < keys.length; i++) output.writeString(keys[i]);
   }
 
   @Override
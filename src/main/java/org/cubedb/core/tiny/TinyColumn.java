@@ -7,46 +7,115 @@ import com.esotericsoftware.kryo.KryoSerializable;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
-import gnu.trove.list.TShortList;
-import gnu.trove.list.array.TShortArrayList;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.array.TByteArrayList;
 
 public class TinyColumn implements Column, KryoSerializable {
-  TShortList data;
+  // Values packed as in OffHeapColumn, 16 and 32 bit values are big endian
+  TByteList data;
+  int numRecords;
+  int valueBits;
   int offset;
 
+  public TinyColumn(int offset, int valueBits) {
+    if (!Column.isValidValueBits(valueBits)) {
+      throw new IllegalArgumentException("Columns can not have values of " + valueBits + " bits");
+    }
+    this.init(offset, valueBits);
+  }
+
   public TinyColumn(int offset) {
-    this.init(offset);
+    this(offset, Short.SIZE);
   }
 
   public TinyColumn() {
     this(0);
   }
 
-  protected void init(int offset) {
-    this.data = new TShortArrayList(256);
+  protected void init(int offset, int valueBits) {
+    this.data = new TByteArrayList(256 / Byte.SIZE * valueBits);
+    this.numRecords = 0;
+    this.valueBits = valueBits;
     this.offset = offset;
   }
 
   @Override
   public void append(int value) {
-    data.add((short) value);
+    if (valueBits < MAX_VALUE_BITS && value >>> valueBits != 0) {
+      throw new IllegalArgumentException(
+          "Value " + value + " does not fit into " + valueBits + " bits");
+    }
+    if (valueBits >= Short.SIZE) {
+      for (int shift = valueBits - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+        data.add((byte) (value >>> shift));
+      }
+    } else {
+      final int bit = numRecords * valueBits;
+      if (bit % Byte.SIZE == 0) {
+        data.add((byte) value);
+      } else {
+        final int index = bit / Byte.SIZE;
+        data.set(index, (byte) (data.get(index) | value << bit % Byte.SIZE));
+      }
+    }
+    numRecords++;
+  }
+
+  private int getValue(int pos) {
+    if (valueBits >= Short.SIZE) {
+      final int bytes = valueBits / Byte.SIZE;
+      int value = 0;
+      for (int i = pos * bytes; i < (pos + 1) * bytes; i++) {
+        value = value << Byte.SIZE | data.get(i) & 0xFF;
+      }
+      return value;
+    }
+    final int bit = pos * valueBits;
+    return (data.get(bit / Byte.SIZE) >>> bit % Byte.SIZE) & ((1 << valueBits) - 1);
   }
 
   @Override
   public int get(int index) {
     if (index < offset) return 0;
-    return data.get(index - offset);
+    return getValue(index - offset);
+  }
+
+  @Override
+  public void getBlock(int fromIndex, int[] dst, int length) {
+    final int numRecords = this.numRecords;
+    for (int i = 0; i < length; i++) {
+      final int pos = fromIndex + i - offset;
+      dst[i] = pos >= 0 && pos < numRecords ? getValue(pos) : 0;
+    }
+  }
+
+  @Override
+  public int getValueBits() {
+    return valueBits;
+  }
+
+  @Override
+  public Column widen(int valueBits) {
+    if (valueBits < this.valueBits) {
+      throw new IllegalArgumentException("Can not narrow a column to " + valueBits + " bits");
+    }
+    final TinyColumn column = new TinyColumn(offset, valueBits);
+    for (int i = 0; i < numRecords; i++) {
+      column.append(getValue(i));
+    }
+    return column;
   }
 
   @Override
   public long size() {
-    return data.size() * 2;
+    return data.size();
   }
 
   @Override
   public void free() {
     this.data.clear();
     this.data = null;
+    this.numRecords = 0;
   }
 
   @Override
@@ -54,24 +123,42 @@ public class TinyColumn implements Column, KryoSerializable {
     return 1;
   }
 
+  // Values are written as shorts, or as ints after a negative size when they are wider
   @Override
   public void write(Kryo kryo, Output output) {
-    output.writeInt(this.data.size());
+    final boolean isWide = valueBits > Short.SIZE;
+    output.writeInt(isWide ? -1 - this.numRecords : this.numRecords);
     output.writeInt(this.offset);
-    for (int i = 0; i < this.data.size(); i++) output.writeShort(this.data.get(i));
+    for (int i = 0; i < this.numRecords; i++) {
+      if (isWide) output.writeInt(getValue(i));
+      else output.writeShort(getValue(i));
+    }
   }
 
   @Override
   public void read(Kryo kryo, Input input) {
     int columnSize = input.readInt();
+    final boolean isWide = columnSize < 0;
+    if (isWide) columnSize = -1 - columnSize;
     int offset = input.readInt();
-    init(offset);
-    for (int i = 0; i < columnSize; i++) this.data.add(input.readShort());
+    int[] values = new int[columnSize];
+    int maxValue = 0;
+    for (int i = 0; i < columnSize; i++) {
+      values[i] = isWide ? input.readInt() : input.readShort() & 0xFFFF;
+      maxValue = Math.max(maxValue, values[i]);
+    }
+    init(offset, Column.getValueBits(maxValue));
+    for (int value : values) append(value);
+  }
+
+  /** Returns the index of the first row of the column, earlier rows are 0. */
+  public int getOffset() {
+    return offset;
   }
 
   @Override
   public int getNumRecords() {
-    return data.size();
+    return numRecords;
   }
 
   @Override
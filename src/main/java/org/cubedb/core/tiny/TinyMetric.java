@@ -38,6 +38,15 @@ public class TinyMetric implements Metric, KryoSerializable {
     return data.get(index - offset);
   }
 
+  @Override
+  public void getBlock(int fromIndex, long[] dst, int length) {
+    final int numRecords = data.size();
+    for (int i = 0; i < length; i++) {
+      final int pos = fromIndex + i - offset;
+      dst[i] = pos >= 0 && pos < numRecords ? data.get(pos) : 0L;
+    }
+  }
+
   @Override
   public long size() {
     return data.size() * 8;
@@ -76,6 +85,11 @@ public class TinyMetric implements Metric, KryoSerializable {
     for (int i = 0; i < columnSize; i++) this.data.add(input.readLong());
   }
 
+  /** Returns the index of the first row of the metric, earlier rows are 0. */
+  public int getOffset() {
+    return offset;
+  }
+
   @Override
   public int getNumRecords() {
     return data.size();
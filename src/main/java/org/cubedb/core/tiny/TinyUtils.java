@@ -13,9 +13,9 @@ public class TinyUtils {
   }
 
   public static OffHeapColumn tinyColumnToOffHeap(TinyColumn in) {
-    OffHeapColumn m = new OffHeapColumn(in.offset);
+    OffHeapColumn m = new OffHeapColumn(in.offset, in.valueBits);
     for (int i = 0; i < in.getNumRecords(); i++) {
-      m.append(in.data.get(i));
+      m.append(in.get(in.offset + i));
     }
     return m;
   }
@@ -13,11 +13,22 @@ import java.nio.ByteBuffer;
 import java.util.Map.Entry;
 import java.util.stream.Stream;
 
+/**
+ * Key map backed by a {@link BOHMap}. When the map grows too large for its number of partitions,
+ * a larger map is created and the entries are moved to it incrementally, a few partitions on
+ * every put, so that no single put has to rehash the whole map. Until then keys are looked up in
+ * both maps, every key being in exactly one of them.
+ */
 public class BOHKeyMap implements KeyMap {
+  // Partitions moved to the new map on every put while resizing
+  protected static final int PARTITIONS_MOVED_PER_PUT = 8;
 
   private BOHMap map;
-  private Binary valueBinary;
   private int numPartitions;
+  // Map being moved to map after a resize, or null
+  private BOHMap oldMap;
+  // Next partition of oldMap to move
+  private int movedPartitions;
   private static final Logger log = LoggerFactory.getLogger(BOHKeyMap.class);
 
   public BOHKeyMap() {
@@ -34,39 +45,62 @@ public class BOHKeyMap implements KeyMap {
     // log.info("Creating a new map with size of {}", startSize);
     this.numPartitions = startSize * 2;
     map = new BOHMap(this.numPartitions);
-    this.valueBinary = new Binary(new byte[] {0, 0, 0, 0});
   }
 
   @Override
-  public Integer get(byte[] b) {
-    return binaryToInt(this.map.get(new Binary(b)));
+  public int get(byte[] b) {
+    final int value = this.map.getInt(b, NO_VALUE);
+    if (value == NO_VALUE && oldMap != null) {
+      return oldMap.getInt(b, NO_VALUE);
+    }
+    return value;
   }
 
   // This is totally not thread safe
   @Override
   public void put(byte[] k, int v) {
-    Binary b = intToBinary(v);
-    this.valueBinary.setValue(k);
-    Binary prev = this.map.put(this.valueBinary, b);
-    if (prev == null && this.map.size() >= this.numPartitions * 3) {
+    if (oldMap != null) {
+      // keys which have not been moved yet are updated in place
+      final boolean isNew = oldMap.getInt(k, NO_VALUE) == NO_VALUE;
+      if (isNew) {
+        this.map.putInt(k, v);
+      } else {
+        oldMap.putInt(k, v);
+      }
+      movePartitions(PARTITIONS_MOVED_PER_PUT);
+      return;
+    }
+    final boolean isNew = this.map.putInt(k, v);
+    if (isNew && this.map.size() >= this.numPartitions * 3) {
       // Our map is now overgrown!
       int newSize = this.numPartitions * 5;
-      final long t0 = System.nanoTime();
-      BOHMap oldMap = this.map;
+      oldMap = this.map;
+      movedPartitions = 0;
       createMap(newSize, 0);
       log.debug("Re-sizing map to {}", newSize);
-      for (Entry<Binary, Binary> e : oldMap.entrySet()) {
+      movePartitions(PARTITIONS_MOVED_PER_PUT);
+    }
+  }
 
-        this.map.put(e.getKey(), e.getValue());
-      }
-      oldMap.clear();
-      log.debug("Resizing done in {} μs", (System.nanoTime() - t0) / 1000);
+  protected void movePartitions(int count) {
+    final int end = Integer.min(movedPartitions + count, oldMap.getPartitionCount());
+    for (; movedPartitions < end; movedPartitions++) {
+      oldMap.movePartition(movedPartitions, this.map);
+    }
+    if (movedPartitions == oldMap.getPartitionCount()) {
+      log.debug("Re-sizing done, {} entries", this.map.size());
+      oldMap = null;
     }
   }
 
   @Override
   public int size() {
-    return this.map.size();
+    return this.map.size() + (oldMap != null ? oldMap.size() : 0);
+  }
+
+  @Override
+  public int maxKeyLength() {
+    return Integer.MAX_VALUE;
   }
 
   protected static Integer binaryToInt(Binary b) {
@@ -75,17 +109,13 @@ public class BOHKeyMap implements KeyMap {
     return buf.getInt();
   }
 
-  protected static Binary intToBinary(int v) {
-    ByteBuffer buf = ByteBuffer.wrap(new byte[4]);
-    buf.putInt(v);
-    return new Binary(buf.array());
-  }
-
   @Override
   public Stream<Entry<byte[], Integer>> entrySet() {
-    return map
-        .entrySet()
-        .stream()
-        .map((e) -> new Pair<byte[], Integer>(e.getKey().getValue(), binaryToInt(e.getValue())));
+    final Stream<Entry<Binary, Binary>> entries =
+        oldMap != null
+            ? Stream.concat(map.entrySet().stream(), oldMap.entrySet().stream())
+            : map.entrySet().stream();
+    return entries.map(
+        (e) -> new Pair<byte[], Integer>(e.getKey().getValue(), binaryToInt(e.getValue())));
   }
 }
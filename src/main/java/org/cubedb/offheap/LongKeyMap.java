@@ -0,0 +1,173 @@
+package org.cubedb.offheap;
+
+import org.cubedb.core.Constants;
+import org.cubedb.core.KeyMap;
+import org.cubedb.core.beans.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Off-heap open addressing (linear probing) map for keys of up to 8 or 16 bytes, packed into one
+ * or two longs. Every slot holds the packed key, the value + 1 and the length of the key. A slot
+ * is empty while its value is 0.
+ */
+public class LongKeyMap implements KeyMap {
+  private static final Logger log = LoggerFactory.getLogger(LongKeyMap.class);
+  private static final int MAX_FILL_PERCENT = 50;
+
+  private final int keyLongs;
+  private final int slotSize;
+  private final int maxCapacity;
+  private ByteBuffer slots;
+  private int mask;
+  private int size;
+
+  /**
+   * @param expectedSize number of keys to reserve room for
+   * @param keyLongs 1 for keys of up to 8 bytes, 2 for keys of up to 16 bytes
+   */
+  public LongKeyMap(int expectedSize, int keyLongs) {
+    if (keyLongs != 1 && keyLongs != 2) {
+      throw new IllegalArgumentException("Keys can take 1 or 2 longs, not " + keyLongs);
+    }
+    this.keyLongs = keyLongs;
+    // keys are followed by the value and the key length, so keys stay aligned
+    this.slotSize = (keyLongs + 1) * Long.BYTES;
+    this.maxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+    final long wanted =
+        Integer.max(expectedSize, Constants.START_TINY_SIZE) * 100L / MAX_FILL_PERCENT;
+    allocate((int) Long.min(maxCapacity, Long.highestOneBit(wanted - 1) << 1));
+  }
+
+  private void allocate(int capacity) {
+    slots = ByteBuffer.allocateDirect(capacity * slotSize).order(ByteOrder.nativeOrder());
+    mask = capacity - 1;
+  }
+
+  @Override
+  public int maxKeyLength() {
+    return keyLongs * Long.BYTES;
+  }
+
+  private static long pack(byte[] b, int from) {
+    long k = 0;
+    for (int i = from; i < from + Long.BYTES; i++) {
+      k = (k << 8) | (i < b.length ? b[i] & 0xFF : 0);
+    }
+    return k;
+  }
+
+  private static int hash(long k0, long k1, int length) {
+    long h = (k0 ^ Long.rotateLeft(k1, 32) ^ length) * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 29;
+    h *= 0xBF58476D1CE4E5B9L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  // Returns the offset of the slot of the key, or of the empty slot it belongs to
+  private int findSlot(long k0, long k1, int length) {
+    int slot = hash(k0, k1, length) & mask;
+    while (true) {
+      final int offset = slot * slotSize;
+      if (slots.getInt(offset + keyLongs * Long.BYTES) == 0
+          || (slots.getLong(offset) == k0
+              && (keyLongs == 1 || slots.getLong(offset + Long.BYTES) == k1)
+              && slots.getInt(offset + keyLongs * Long.BYTES + Integer.BYTES) == length)) {
+        return offset;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  @Override
+  public int get(byte[] b) {
+    if (b.length > maxKeyLength()) {
+      return NO_VALUE;
+    }
+    final int offset = findSlot(pack(b, 0), keyLongs == 2 ? pack(b, Long.BYTES) : 0, b.length);
+    return slots.getInt(offset + keyLongs * Long.BYTES) - 1;
+  }
+
+  @Override
+  public void put(byte[] k, int v) {
+    if (k.length > maxKeyLength()) {
+      throw new IllegalArgumentException(
+          String.format("Key of %d bytes, longer than %d bytes", k.length, maxKeyLength()));
+    }
+    final long k0 = pack(k, 0);
+    final long k1 = keyLongs == 2 ? pack(k, Long.BYTES) : 0;
+    final int offset = findSlot(k0, k1, k.length);
+    if (slots.getInt(offset + keyLongs * Long.BYTES) == 0) {
+      if (size + 1 >= mask) {
+        throw new IllegalStateException("Key map is full, it holds " + size + " keys");
+      }
+      size++;
+      store(offset, k0, k1, k.length, v);
+      final int capacity = mask + 1;
+      if (size > (long) capacity * MAX_FILL_PERCENT / 100 && capacity < maxCapacity) {
+        resize(capacity * 2);
+      }
+    } else {
+      store(offset, k0, k1, k.length, v);
+    }
+  }
+
+  private void store(int offset, long k0, long k1, int length, int v) {
+    slots.putLong(offset, k0);
+    if (keyLongs == 2) {
+      slots.putLong(offset + Long.BYTES, k1);
+    }
+    slots.putInt(offset + keyLongs * Long.BYTES, v + 1);
+    slots.putInt(offset + keyLongs * Long.BYTES + Integer.BYTES, length);
+  }
+
+  private void resize(int capacity) {
+    final long t0 = System.nanoTime();
+    final ByteBuffer oldSlots = this.slots;
+    final int oldCapacity = mask + 1;
+    allocate(capacity);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      final int oldOffset = slot * slotSize;
+      final int value = oldSlots.getInt(oldOffset + keyLongs * Long.BYTES);
+      if (value != 0) {
+        final long k0 = oldSlots.getLong(oldOffset);
+        final long k1 = keyLongs == 2 ? oldSlots.getLong(oldOffset + Long.BYTES) : 0;
+        final int length = oldSlots.getInt(oldOffset + keyLongs * Long.BYTES + Integer.BYTES);
+        store(findSlot(k0, k1, length), k0, k1, length, value - 1);
+      }
+    }
+    log.debug("Re-sized map to {} in {} μs", capacity, (System.nanoTime() - t0) / 1000);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Stream<Entry<byte[], Integer>> entrySet() {
+    final ByteBuffer slots = this.slots;
+    return IntStream.range(0, mask + 1)
+        .map(slot -> slot * slotSize)
+        .filter(offset -> slots.getInt(offset + keyLongs * Long.BYTES) != 0)
+        .mapToObj(
+            offset -> {
+              final ByteBuffer key = ByteBuffer.allocate(maxKeyLength());
+              for (int i = 0; i < keyLongs; i++) {
+                key.putLong(slots.getLong(offset + i * Long.BYTES));
+              }
+              final int length = slots.getInt(offset + keyLongs * Long.BYTES + Integer.BYTES);
+              return new Pair<byte[], Integer>(
+                  Arrays.copyOf(key.array(), length),
+                  slots.getInt(offset + keyLongs * Long.BYTES) - 1);
+            });
+  }
+}
@@ -18,26 +18,53 @@ public abstract class MultiBuffer implements KryoSerializable {
 
   static final int BUFFER_SIZE = Constants.INITIAL_PARTITION_SIZE;
   private int bufferSizeInBytes;
-  protected int fieldSize;
+  // Values narrower than a byte are packed, the first value of a byte in its lowest bits
+  protected int valueBits;
   protected int curPos;
   protected int startPos;
   protected List<ByteBuffer> buffers;
   protected ByteBuffer lastBuffer;
 
-  MultiBuffer(int startPos, int fieldSize) {
-    init(startPos, fieldSize, 0);
+  MultiBuffer(int startPos, int valueBits) {
+    init(startPos, valueBits, 0);
   }
 
-  protected void init(int startPos, int fieldSize, int curPos) {
-    this.fieldSize = fieldSize;
+  protected void init(int startPos, int valueBits, int curPos) {
+    this.valueBits = valueBits;
     this.startPos = startPos;
-    this.bufferSizeInBytes = BUFFER_SIZE * fieldSize;
+    this.bufferSizeInBytes = BUFFER_SIZE / Byte.SIZE * valueBits;
     this.curPos = curPos;
     buffers = new ArrayList<ByteBuffer>();
   }
 
-  MultiBuffer(int fieldSize) {
-    this(0, fieldSize);
+  MultiBuffer(int valueBits) {
+    this(0, valueBits);
+  }
+
+  /*
+   * Makes the buffer use existing blocks of BUFFER_SIZE values, e.g. mapped
+   * from a file, holding curPos values from startPos on.
+   */
+  protected void wrap(int startPos, int curPos, List<ByteBuffer> blocks) {
+    init(startPos, valueBits, curPos);
+    buffers.addAll(blocks);
+    lastBuffer = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+    if (lastBuffer != null) {
+      lastBuffer.position(getBytes(curPos - (blocks.size() - 1) * BUFFER_SIZE));
+    }
+  }
+
+  // Returns the number of bytes taken by the given number of values
+  protected int getBytes(int numValues) {
+    return (int) (((long) numValues * valueBits + Byte.SIZE - 1) / Byte.SIZE);
+  }
+
+  public int getValueBits() {
+    return valueBits;
+  }
+
+  protected List<ByteBuffer> getBuffers() {
+    return buffers;
   }
 
   public int getStartPos() {
@@ -45,7 +72,7 @@ public abstract class MultiBuffer implements KryoSerializable {
   }
 
   protected void ensureBufferCapacity() {
-    if (lastBuffer != null && lastBuffer.hasRemaining()) return;
+    if (lastBuffer != null && curPos < buffers.size() * BUFFER_SIZE) return;
     //log.info("Capacity of buffer not enough, extending it");
     ByteBuffer b = ByteBuffer.allocateDirect(bufferSizeInBytes);
     b.clear();
@@ -107,7 +134,8 @@ public abstract class MultiBuffer implements KryoSerializable {
   @Override
   public void write(Kryo kryo, Output output) {
     output.writeInt(this.startPos);
-    output.writeInt(this.fieldSize);
+    // the size of values in bytes, or minus the number of bits of packed values
+    output.writeInt(valueBits % Byte.SIZE == 0 ? valueBits / Byte.SIZE : -valueBits);
     int curPos = this.curPos;
     int position = this.lastBuffer.position();
     output.writeInt(curPos);
@@ -126,9 +154,9 @@ public abstract class MultiBuffer implements KryoSerializable {
   @Override
   public void read(Kryo kryo, Input input) {
     int startPos = input.readInt();
-    int fieldSize = input.readInt();
+    int valueSize = input.readInt();
     int curPos = input.readInt();
-    init(startPos, fieldSize, curPos);
+    init(startPos, valueSize < 0 ? -valueSize : valueSize * Byte.SIZE, curPos);
     int numBuffers = input.readInt();
     int positionWithinLastBuffer = input.readInt();
     byte[] src = new byte[this.bufferSizeInBytes];
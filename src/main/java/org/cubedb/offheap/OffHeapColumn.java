@@ -2,10 +2,20 @@ package org.cubedb.offheap;
 
 import org.cubedb.core.Column;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class OffHeapColumn extends MultiBuffer implements Column {
 
+  public OffHeapColumn(int startPos, int valueBits) {
+    super(startPos, valueBits);
+    if (!Column.isValidValueBits(valueBits)) {
+      throw new IllegalArgumentException("Columns can not have values of " + valueBits + " bits");
+    }
+  }
+
   public OffHeapColumn(int startPos) {
-    super(startPos, Short.BYTES);
+    this(startPos, Short.SIZE);
   }
 
   public OffHeapColumn() {
@@ -14,11 +24,41 @@ public class OffHeapColumn extends MultiBuffer implements Column {
 
   @Override
   public synchronized void append(int value) {
+    if (valueBits < MAX_VALUE_BITS && value >>> valueBits != 0) {
+      throw new IllegalArgumentException(
+          "Value " + value + " does not fit into " + valueBits + " bits");
+    }
     ensureBufferCapacity();
-    lastBuffer.putShort((short) value);
+    if (valueBits == Integer.SIZE) {
+      lastBuffer.putInt(value);
+    } else if (valueBits == Short.SIZE) {
+      lastBuffer.putShort((short) value);
+    } else if (valueBits == Byte.SIZE) {
+      lastBuffer.put((byte) value);
+    } else {
+      // values already published share the byte, it is only ever written as a whole
+      final int bit = curPos % BUFFER_SIZE * valueBits;
+      final int index = bit / Byte.SIZE;
+      final int shift = bit % Byte.SIZE;
+      final int b = shift == 0 ? 0 : lastBuffer.get(index);
+      lastBuffer.put(index, (byte) (b | value << shift));
+      lastBuffer.position(index + 1);
+    }
     curPos++;
   }
 
+  private int getValue(ByteBuffer buf, int positionWithinBuffer) {
+    if (valueBits == Integer.SIZE) {
+      return buf.getInt(positionWithinBuffer * Integer.BYTES);
+    } else if (valueBits == Short.SIZE) {
+      return buf.getShort(positionWithinBuffer * Short.BYTES) & 0xFFFF;
+    } else if (valueBits == Byte.SIZE) {
+      return buf.get(positionWithinBuffer) & 0xFF;
+    }
+    final int bit = positionWithinBuffer * valueBits;
+    return (buf.get(bit / Byte.SIZE) >>> bit % Byte.SIZE) & ((1 << valueBits) - 1);
+  }
+
   @Override
   public int get(int index) {
     if (index < startPos) return 0;
@@ -26,9 +66,63 @@ public class OffHeapColumn extends MultiBuffer implements Column {
     if (pos >= curPos) return 0;
     final int positionWithinBuffer = pos % BUFFER_SIZE;
     final int bufferIndex = pos / BUFFER_SIZE;
-    final int val = this.buffers.get(bufferIndex).getShort(positionWithinBuffer * Short.BYTES);
+    final int val = getValue(this.buffers.get(bufferIndex), positionWithinBuffer);
     // log.debug("column[{}]={} (offset {}, buffer #{})", index, val,
     // positionWithinBuffer, bufferIndex);
     return val;
   }
+
+  @Override
+  public void getBlock(int fromIndex, int[] dst, int length) {
+    int i = 0;
+    // rows appended before the column was created
+    while (i < length && fromIndex + i < startPos) dst[i++] = 0;
+    int pos = fromIndex + i - startPos;
+    final int endPos = Math.min(curPos, fromIndex + length - startPos);
+    final int mask = (1 << valueBits) - 1;
+    while (pos < endPos) {
+      final ByteBuffer buf = this.buffers.get(pos / BUFFER_SIZE);
+      final int positionWithinBuffer = pos % BUFFER_SIZE;
+      final int n = Math.min(BUFFER_SIZE - positionWithinBuffer, endPos - pos);
+      if (valueBits == Integer.SIZE) {
+        for (int j = 0; j < n; j++) {
+          dst[i + j] = buf.getInt((positionWithinBuffer + j) * Integer.BYTES);
+        }
+      } else if (valueBits == Short.SIZE) {
+        for (int j = 0; j < n; j++) {
+          dst[i + j] = buf.getShort((positionWithinBuffer + j) * Short.BYTES) & 0xFFFF;
+        }
+      } else if (valueBits == Byte.SIZE) {
+        for (int j = 0; j < n; j++) {
+          dst[i + j] = buf.get(positionWithinBuffer + j) & 0xFF;
+        }
+      } else {
+        int bit = positionWithinBuffer * valueBits;
+        for (int j = 0; j < n; j++, bit += valueBits) {
+          dst[i + j] = (buf.get(bit / Byte.SIZE) >>> bit % Byte.SIZE) & mask;
+        }
+      }
+      i += n;
+      pos += n;
+    }
+    Arrays.fill(dst, i, length, 0);
+  }
+
+  @Override
+  public Column widen(int valueBits) {
+    if (valueBits < this.valueBits) {
+      throw new IllegalArgumentException("Can not narrow a column to " + valueBits + " bits");
+    }
+    final OffHeapColumn column = new OffHeapColumn(startPos, valueBits);
+    final int numRecords = curPos;
+    final int[] block = new int[BUFFER_SIZE];
+    for (int blockStart = 0; blockStart < numRecords; blockStart += BUFFER_SIZE) {
+      final int length = Math.min(BUFFER_SIZE, numRecords - blockStart);
+      getBlock(startPos + blockStart, block, length);
+      for (int i = 0; i < length; i++) {
+        column.append(block[i]);
+      }
+    }
+    return column;
+  }
 }
@@ -2,12 +2,203 @@ package org.cubedb.offheap;
 
 import org.cubedb.core.Metric;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A metric stored off heap in blocks of BUFFER_SIZE values. A block stores its values as offsets
+ * from a base value, taking 1 to 64 bits each. The last block, which rows are appended to, has a
+ * base of at most 0 and takes at least a byte per value; once it is full it is sealed, i.e.
+ * re-encoded around its smallest value with the narrowest width that holds all of its values.
+ *
+ * <p>Values are written in place while they fit. A value which does not fit into its block is
+ * written into a wider copy of the block, which then replaces it, so searches reading the metric
+ * without locking never see a partially encoded block.
+ */
+public class OffHeapMetric implements Metric, KryoSerializable {
+  static final int BUFFER_SIZE = MultiBuffer.BUFFER_SIZE;
+
+  /** Values of a block, the encoding of a block never changes. */
+  static final class Block {
+    final ByteBuffer data;
+    final int valueBits;
+    // 0 for blocks of 64 bit values
+    final long base;
+
+    Block(ByteBuffer data, int valueBits, long base) {
+      this.data = data;
+      this.valueBits = valueBits;
+      this.base = base;
+    }
+
+    static Block allocate(int valueBits, long base) {
+      return new Block(ByteBuffer.allocateDirect(getSize(valueBits)), valueBits, base);
+    }
+
+    // Size in bytes of a block of values of valueBits bits
+    static int getSize(int valueBits) {
+      return BUFFER_SIZE / Byte.SIZE * valueBits;
+    }
+
+    /** Encodes the first numValues values with the narrowest width, around base if sealed. */
+    static Block encode(long[] values, int numValues, boolean sealed) {
+      long min = sealed ? Long.MAX_VALUE : 0;
+      long max = sealed ? Long.MIN_VALUE : 0;
+      for (int i = 0; i < numValues; i++) {
+        min = Math.min(min, values[i]);
+        max = Math.max(max, values[i]);
+      }
+      if (numValues == 0) {
+        min = max = 0;
+      }
+      int valueBits = getValueBits(max - min);
+      if (!sealed) {
+        valueBits = Math.max(Byte.SIZE, valueBits);
+      }
+      final Block block = allocate(valueBits, valueBits == Long.SIZE ? 0 : min);
+      for (int i = 0; i < numValues; i++) {
+        block.set(i, values[i]);
+      }
+      return block;
+    }
+
+    /**
+     * Copies the first count values of a block into a wider one, with the value at position
+     * replaced. The new block leaves room for values twice as far from its base, so that growing
+     * counters do not widen it again at every step.
+     */
+    static Block widen(Block block, int count, int position, long value, boolean sealed) {
+      long min = sealed ? value : Math.min(0, value);
+      long max = sealed ? value : Math.max(0, value);
+      for (int i = 0; i < count; i++) {
+        if (i != position) {
+          final long v = block.get(i);
+          min = Math.min(min, v);
+          max = Math.max(max, v);
+        }
+      }
+      final long range = max - min;
+      int valueBits = range < 0 ? Long.SIZE : getValueBits(range << 1);
+      if (!sealed) {
+        valueBits = Math.max(Byte.SIZE, valueBits);
+      }
+      final Block wide = allocate(valueBits, valueBits == Long.SIZE ? 0 : min);
+      for (int i = 0; i < count; i++) {
+        wide.set(i, i == position ? value : block.get(i));
+      }
+      return wide;
+    }
+
+    /** Returns a copy of a full block encoded with the narrowest width, or null if it has it. */
+    static Block narrow(Block block) {
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (int i = 0; i < BUFFER_SIZE; i++) {
+        final long v = block.get(i);
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+      final int valueBits = getValueBits(max - min);
+      if (valueBits >= block.valueBits) {
+        return null;
+      }
+      final Block narrow = allocate(valueBits, valueBits == Long.SIZE ? 0 : min);
+      for (int i = 0; i < BUFFER_SIZE; i++) {
+        narrow.set(i, block.get(i));
+      }
+      return narrow;
+    }
+
+    boolean fits(long value) {
+      return valueBits == Long.SIZE || (value >= base && (value - base) >>> valueBits == 0);
+    }
+
+    long get(int i) {
+      switch (valueBits) {
+        case Long.SIZE:
+          return data.getLong(i * Long.BYTES);
+        case Integer.SIZE:
+          return base + (data.getInt(i * Integer.BYTES) & 0xFFFFFFFFL);
+        case Short.SIZE:
+          return base + (data.getShort(i * Short.BYTES) & 0xFFFF);
+        case Byte.SIZE:
+          return base + (data.get(i) & 0xFF);
+        default:
+          final int bit = i * valueBits;
+          return base + ((data.get(bit / Byte.SIZE) >>> bit % Byte.SIZE) & ((1 << valueBits) - 1));
+      }
+    }
+
+    // Reads values [from, from + length) into dst from dstOffset on
+    void get(int from, long[] dst, int dstOffset, int length) {
+      final int end = from + length;
+      switch (valueBits) {
+        case Long.SIZE:
+          for (int i = from; i < end; i++) {
+            dst[dstOffset++] = data.getLong(i * Long.BYTES);
+          }
+          break;
+        case Integer.SIZE:
+          for (int i = from; i < end; i++) {
+            dst[dstOffset++] = base + (data.getInt(i * Integer.BYTES) & 0xFFFFFFFFL);
+          }
+          break;
+        case Short.SIZE:
+          for (int i = from; i < end; i++) {
+            dst[dstOffset++] = base + (data.getShort(i * Short.BYTES) & 0xFFFF);
+          }
+          break;
+        case Byte.SIZE:
+          for (int i = from; i < end; i++) {
+            dst[dstOffset++] = base + (data.get(i) & 0xFF);
+          }
+          break;
+        default:
+          final int mask = (1 << valueBits) - 1;
+          for (int i = from, bit = from * valueBits; i < end; i++, bit += valueBits) {
+            dst[dstOffset++] = base + ((data.get(bit / Byte.SIZE) >>> bit % Byte.SIZE) & mask);
+          }
+      }
+    }
+
+    // Writes a value which fits, only changing the bytes of this value
+    void set(int i, long value) {
+      final long offset = value - base;
+      switch (valueBits) {
+        case Long.SIZE:
+          data.putLong(i * Long.BYTES, value);
+          break;
+        case Integer.SIZE:
+          data.putInt(i * Integer.BYTES, (int) offset);
+          break;
+        case Short.SIZE:
+          data.putShort(i * Short.BYTES, (short) offset);
+          break;
+        case Byte.SIZE:
+          data.put(i, (byte) offset);
+          break;
+        default:
+          final int bit = i * valueBits;
+          final int shift = bit % Byte.SIZE;
+          final int mask = ((1 << valueBits) - 1) << shift;
+          final int b = data.get(bit / Byte.SIZE);
+          data.put(bit / Byte.SIZE, (byte) ((b & ~mask) | (int) offset << shift));
+      }
+    }
+  }
 
-public class OffHeapMetric extends MultiBuffer implements Metric {
+  // Blocks of the metric, copied on write
+  private volatile Block[] blocks;
+  private int startPos;
+  private int curPos;
 
   public OffHeapMetric(int startPos) {
-    super(startPos, Long.BYTES);
+    wrap(startPos, 0, new Block[0]);
     //log.info("Creating a new metric with starting position {}", startPos);
   }
 
@@ -15,33 +206,202 @@ public class OffHeapMetric extends MultiBuffer implements Metric {
     this(0);
   }
 
+  /** Returns the number of bits of offsets up to range, 1, 2, 4, 8, 16, 32 or 64. */
+  static int getValueBits(long range) {
+    int valueBits = 1;
+    while (valueBits < Long.SIZE && range >>> valueBits != 0) {
+      valueBits *= 2;
+    }
+    return valueBits;
+  }
+
+  // Makes the metric hold curPos values from startPos on in the blocks, e.g. mapped from a file
+  void wrap(int startPos, int curPos, Block[] blocks) {
+    this.startPos = startPos;
+    this.curPos = curPos;
+    this.blocks = blocks;
+  }
+
+  Block[] getBlocks() {
+    return blocks;
+  }
+
+  public int getStartPos() {
+    return startPos;
+  }
+
+  // Number of values of a block
+  private int getCount(int blockIndex) {
+    return Math.min(BUFFER_SIZE, curPos - blockIndex * BUFFER_SIZE);
+  }
+
+  private void setBlock(int blockIndex, Block block) {
+    final Block[] blocks = Arrays.copyOf(this.blocks, Math.max(this.blocks.length, blockIndex + 1));
+    blocks[blockIndex] = block;
+    this.blocks = blocks;
+  }
+
+  /*
+   * Writes a value of one of the first count values of a block, replacing
+   * the block with a wider copy when the value does not fit. The copy is
+   * a new buffer, since searches may still be reading the block.
+   */
+  private void set(int blockIndex, int positionWithinBlock, long value, int count) {
+    final Block block = blocks[blockIndex];
+    if (block.fits(value)) {
+      block.set(positionWithinBlock, value);
+      return;
+    }
+    setBlock(
+        blockIndex,
+        Block.widen(block, count, positionWithinBlock, value, count == BUFFER_SIZE));
+  }
+
   @Override
   public synchronized void append(long value) {
-    ensureBufferCapacity();
-    lastBuffer.putLong(value);
+    final int blockIndex = curPos / BUFFER_SIZE;
+    final int positionWithinBlock = curPos % BUFFER_SIZE;
+    if (positionWithinBlock == 0) {
+      final long min = Math.min(0, value);
+      final int valueBits = Math.max(Byte.SIZE, getValueBits(Math.max(0, value) - min));
+      final Block block = Block.allocate(valueBits, valueBits == Long.SIZE ? 0 : min);
+      block.set(0, value);
+      setBlock(blockIndex, block);
+    } else {
+      set(blockIndex, positionWithinBlock, value, positionWithinBlock + 1);
+    }
     curPos++;
+    if (positionWithinBlock == BUFFER_SIZE - 1) {
+      seal(blockIndex);
+    }
+  }
+
+  // Re-encodes a full block around its smallest value, if that makes it narrower
+  private void seal(int blockIndex) {
+    final Block sealed = Block.narrow(blocks[blockIndex]);
+    if (sealed != null) {
+      setBlock(blockIndex, sealed);
+    }
   }
 
   @Override
   public long get(int index) {
     if (index < startPos) return 0L;
-    if (index >= curPos) return 0L;
     int pos = index - startPos;
+    if (pos >= curPos) return 0L;
     int positionWithinBuffer = pos % BUFFER_SIZE;
     int bufferIndex = pos / BUFFER_SIZE;
-    long val = this.buffers.get(bufferIndex).getLong(positionWithinBuffer * Long.BYTES);
+    long val = this.blocks[bufferIndex].get(positionWithinBuffer);
     return val;
   }
 
+  @Override
+  public void getBlock(int fromIndex, long[] dst, int length) {
+    int i = 0;
+    while (i < length && fromIndex + i < startPos) dst[i++] = 0L;
+    int pos = fromIndex + i - startPos;
+    final int endPos = Math.min(curPos, fromIndex + length - startPos);
+    final Block[] blocks = this.blocks;
+    while (pos < endPos) {
+      final int positionWithinBuffer = pos % BUFFER_SIZE;
+      final int n = Math.min(BUFFER_SIZE - positionWithinBuffer, endPos - pos);
+      blocks[pos / BUFFER_SIZE].get(positionWithinBuffer, dst, i, n);
+      i += n;
+      pos += n;
+    }
+    Arrays.fill(dst, i, length, 0L);
+  }
+
   @Override
   public void incrementBy(int index, long incr) {
     int pos = index - startPos;
     int positionWithinBuffer = pos % BUFFER_SIZE;
     int bufferIndex = pos / BUFFER_SIZE;
-    int bytePosition = positionWithinBuffer * Long.BYTES;
-    //log.debug("buffer #{}, position #{}", bufferIndex, bytePosition);
-    ByteBuffer curBuffer = this.buffers.get(bufferIndex);
-    long val = curBuffer.getLong(bytePosition);
-    curBuffer.putLong(bytePosition, val + incr);
+    //log.debug("buffer #{}, position #{}", bufferIndex, positionWithinBuffer);
+    long val = this.blocks[bufferIndex].get(positionWithinBuffer);
+    set(bufferIndex, positionWithinBuffer, val + incr, getCount(bufferIndex));
+  }
+
+  @Override
+  public long size() {
+    long size = 0;
+    for (Block block : blocks) {
+      size += block.data.capacity();
+    }
+    return size;
+  }
+
+  @Override
+  public void free() {
+    blocks = new Block[0];
+    curPos = 0;
+  }
+
+  @Override
+  public int getNumBuffers() {
+    return blocks.length;
+  }
+
+  @Override
+  public int getNumRecords() {
+    return curPos;
+  }
+
+  @Override
+  public boolean isTiny() {
+    return false;
+  }
+
+  /*
+   * Serialized as the start position, 0 in place of the size of values
+   * written by the earlier fixed width format, the number of values and of
+   * blocks, and every block as its number of bits, base and data.
+   */
+  @Override
+  public void write(Kryo kryo, Output output) {
+    final Block[] blocks = this.blocks;
+    output.writeInt(startPos);
+    output.writeInt(0);
+    output.writeInt(curPos);
+    output.writeInt(blocks.length);
+    for (Block block : blocks) {
+      output.writeInt(block.valueBits);
+      output.writeLong(block.base);
+      final byte[] dst = new byte[block.data.capacity()];
+      final ByteBuffer data = block.data.duplicate();
+      data.clear();
+      data.get(dst);
+      output.write(dst);
+    }
+  }
+
+  @Override
+  public void read(Kryo kryo, Input input) {
+    final int startPos = input.readInt();
+    final int valueSize = input.readInt();
+    final int curPos = input.readInt();
+    final Block[] blocks = new Block[input.readInt()];
+    if (valueSize == 0) {
+      for (int b = 0; b < blocks.length; b++) {
+        final int valueBits = input.readInt();
+        final long base = input.readLong();
+        final ByteBuffer data = ByteBuffer.allocateDirect(Block.getSize(valueBits));
+        data.put(input.readBytes(data.capacity()));
+        blocks[b] = new Block(data, valueBits, base);
+      }
+    } else {
+      // blocks of values of valueSize bytes, which are encoded now
+      input.readInt();
+      final long[] values = new long[BUFFER_SIZE];
+      for (int b = 0; b < blocks.length; b++) {
+        final ByteBuffer data = ByteBuffer.wrap(input.readBytes(BUFFER_SIZE * valueSize));
+        final int count = Math.min(BUFFER_SIZE, curPos - b * BUFFER_SIZE);
+        for (int i = 0; i < count; i++) {
+          values[i] = data.getLong(i * Long.BYTES);
+        }
+        blocks[b] = Block.encode(values, count, count == BUFFER_SIZE);
+      }
+    }
+    wrap(startPos, curPos, blocks);
   }
 }
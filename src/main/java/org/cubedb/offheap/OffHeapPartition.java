@@ -5,6 +5,7 @@ import org.cubedb.core.Constants;
 import org.cubedb.core.KeyMap;
 import org.cubedb.core.Metric;
 import org.cubedb.core.Partition;
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.SearchResult;
@@ -14,17 +15,20 @@ import org.cubedb.core.lookups.Lookup;
 import org.cubedb.core.tiny.TinyColumn;
 import org.cubedb.core.tiny.TinyMetric;
 import org.cubedb.core.tiny.TinyUtils;
+import org.cubedb.offheap.index.ColumnIndex;
+import org.cubedb.offheap.index.ZoneMap;
 import org.cubedb.offheap.matchers.IdMatcher;
-import org.cubedb.utils.CubeUtils;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,14 +36,31 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+/**
+ * A partition storing rows in columns. Modifications are serialized by the write lock, while
+ * searches do not lock at all: a writer stores a new row and only then publishes it by increasing
+ * {@link #size}, and a new column is put into {@link #columnsById} before its field id is
+ * registered. A search that reads the size and the field count first therefore only sees rows and
+ * columns which are fully written. Metrics of existing rows are updated in place, so a search
+ * running concurrently with inserts is not a point-in-time snapshot. Compaction reorders and merges
+ * the rows of a read-only partition, so searches read the columns, metrics and size of the same
+ * order, see {@link #layout}.
+ */
 public class OffHeapPartition implements Partition {
 
   private static final int FAKE_GROUP_VALUE_ID = 0;
+  // Blocks with less than 1/SPARSE_READ_RATIO rows selected are read row by row
+  private static final int SPARSE_READ_RATIO = 16;
+  // Value ids from this one on take four bytes in keys of the key map
+  private static final int WIDE_KEY_ID = 0x8000;
 
   // Field name -> field value <--> value ID
   protected Map<String, Lookup> lookups;
@@ -51,104 +72,446 @@ public class OffHeapPartition implements Partition {
   protected Map<String, Column> columns;
   // Cumulative partition data metrics: metric name -> metric value.
   protected Map<String, Metric> metrics;
+  // Columns and metrics by their ids. Copied on write, used by searches.
+  protected volatile Column[] columnsById;
+  protected volatile Metric[] metricsById;
+  // Summaries of the values of every block of rows of columns, by field id
+  protected volatile ZoneMap[] zoneMapsById;
   // Number of rows in the partition.
-  protected int size;
-  protected KeyMap map;
+  protected volatile int size;
+  // Key map of the rows, null for read-only partitions. Built on the first insert after a load.
+  protected volatile KeyMap map;
+  // Whether the key map was dropped by optimize()
+  protected boolean isMapExpired;
+  // Whether rows may have the same values of all fields, which compaction merges
+  protected boolean hasDuplicateRows;
+  // Field name -> inverted index of the column, only kept for read-only partitions
+  protected Map<String, ColumnIndex> indexes;
+  // Group field name -> result of a search without filters
+  protected Map<String, SearchResult> unfilteredResults;
+  // Incremented every time the data of the partition is modified
+  protected volatile long version;
   private static final Logger log = LoggerFactory.getLogger(OffHeapPartition.class);
   protected long lastInsertTs;
+  protected long firstAppendTs;
   protected long lastAppendTs;
   protected long startupTs;
   protected long lastSaveTs;
+  // Version of the data last written to (or read from) a partition file
+  protected volatile long savedVersion = -1;
+  /*
+   * Incremented before and after compaction publishes reordered columns,
+   * metrics and size, so it is odd while columnsById and metricsById might
+   * have rows in different orders.
+   */
+  protected volatile int layout;
+  // Rows are sorted and no row was appended since
+  protected boolean isCompacted;
+  // Write-ahead log sequence number of the last logged change, only changed under the write lock
+  protected long logSequence;
   protected final ReadWriteLock lock;
+  // Buffers reused by inserts, only used under the write lock
+  private int[] fieldsBuffer = new int[0];
+  private long[] metricValuesBuffer = new long[0];
+  private byte[] keyBuffer = new byte[0];
+
+  /** Columns, metrics and zone maps by id, with rows in the same order. */
+  private static final class Snapshot {
+    final Column[] columns;
+    final Metric[] metrics;
+    final ZoneMap[] zoneMaps;
+    // Number of rows, which only shrinks when compaction merges rows with the same fields
+    final int size;
+
+    Snapshot(Column[] columns, Metric[] metrics, ZoneMap[] zoneMaps, int size) {
+      this.columns = columns;
+      this.metrics = metrics;
+      this.zoneMaps = zoneMaps;
+      this.size = size;
+    }
+  }
 
   public OffHeapPartition() {
     // log.debug("Initializing Partition");
-    lookups = new HashMap<String, Lookup>(5);
+    lookups = new ConcurrentHashMap<String, Lookup>(5);
     fieldLookup = new HashMapLookup(false);
-    columns = new HashMap<String, Column>(5);
-    metrics = new HashMap<String, Metric>(1);
+    columns = new ConcurrentHashMap<String, Column>(5);
+    metrics = new ConcurrentHashMap<String, Metric>(1);
     metricLookup = new HashMapLookup(false);
+    columnsById = new Column[0];
+    metricsById = new Metric[0];
+    zoneMapsById = new ZoneMap[0];
     lock = new ReentrantReadWriteLock(false);
+    indexes = new ConcurrentHashMap<String, ColumnIndex>();
+    unfilteredResults = new ConcurrentHashMap<String, SearchResult>();
   }
 
   protected void addColumn(String columnName) {
-    Column col = new TinyColumn(size);
-    columns.putIfAbsent(columnName, col);
+    if (!columns.containsKey(columnName)) {
+      lookups.putIfAbsent(columnName, new HashMapLookup());
+      final int valueBits = Column.getValueBits(lookups.get(columnName).size() - 1);
+      final Column column = new TinyColumn(size, valueBits);
+      setZoneMap(fieldLookup.size(), ZoneMap.build(column, size));
+      setColumn(fieldLookup.size(), columnName, column);
+      fieldLookup.getValue(columnName);
+    }
   }
 
   protected void addMetric(String metricName) {
-    Metric m = new TinyMetric(size);
-    metrics.putIfAbsent(metricName, m);
-    metricLookup.getValue(metricName);
+    if (!metrics.containsKey(metricName)) {
+      setMetric(metricLookup.size(), metricName, new TinyMetric(size));
+      metricLookup.getValue(metricName);
+    }
+  }
+
+  protected void setColumn(int fieldId, String fieldName, Column col) {
+    columns.put(fieldName, col);
+    final Column[] columnsById =
+        Arrays.copyOf(this.columnsById, Math.max(this.columnsById.length, fieldId + 1));
+    columnsById[fieldId] = col;
+    this.columnsById = columnsById;
+  }
+
+  protected void setZoneMap(int fieldId, ZoneMap zoneMap) {
+    final ZoneMap[] zoneMapsById =
+        Arrays.copyOf(this.zoneMapsById, Math.max(this.zoneMapsById.length, fieldId + 1));
+    zoneMapsById[fieldId] = zoneMap;
+    this.zoneMapsById = zoneMapsById;
   }
 
-  protected void createMap(int fieldsLength) {
+  protected void setMetric(int metricId, String metricName, Metric m) {
+    metrics.put(metricName, m);
+    final Metric[] metricsById =
+        Arrays.copyOf(this.metricsById, Math.max(this.metricsById.length, metricId + 1));
+    metricsById[metricId] = m;
+    this.metricsById = metricsById;
+  }
+
+  protected void createMap(int expectedSize, int keyLength) {
     // map = new MapDBKeyMap(size, fieldsLength);
-    map = new BOHKeyMap(size, fieldsLength);
+    // narrow keys are packed into one or two longs
+    if (keyLength <= Long.BYTES) {
+      map = new LongKeyMap(expectedSize, 1);
+    } else if (keyLength <= 2 * Long.BYTES) {
+      map = new LongKeyMap(expectedSize, 2);
+    } else {
+      map = new BOHKeyMap(expectedSize, fieldLookup.size());
+    }
+  }
+
+  // Length of the longest key of the current fields and values
+  protected int getMaxKeyLength() {
+    int keyLength = 0;
+    for (String fieldName : fieldLookup.getKeys()) {
+      keyLength += lookups.get(fieldName).size() > WIDE_KEY_ID ? Integer.BYTES : Short.BYTES;
+    }
+    return keyLength;
   }
 
+  /*
+   * Builds the key map from all rows of the partition. The map is sized for
+   * the rows up front, and columns are read in blocks, the keys of the rows
+   * of a block being encoded from the blocks of all columns.
+   */
   protected void initializeMap() {
     log.debug("Re-Initializing map");
-    final Column[] fields = new Column[fieldLookup.getKeys().length];
+    final long t0 = System.nanoTime();
+    final Column[] fields = new Column[fieldLookup.size()];
     for (int i = 0; i < fields.length; i++) {
       String fieldKey = fieldLookup.getKey(i);
       fields[i] = columns.get(fieldKey);
     }
 
-    createMap(fields.length);
+    createMap(size, getMaxKeyLength());
 
-    byte[] b = new byte[fields.length * Short.BYTES];
-    ByteBuffer bb = ByteBuffer.wrap(b);
-    int j = 0;
-    for (int i = 0; i < size; i++) {
-      bb.clear();
-      for (j = 0; j < fields.length; j++) {
-        Column c = fields[j];
-        short val = (short) c.get(i);
-        bb.putShort(val);
+    final int blockSize = Constants.INITIAL_PARTITION_SIZE;
+    final int[][] values = new int[fields.length][blockSize];
+    final int[] row = new int[fields.length];
+    for (int blockStart = 0; blockStart < size; blockStart += blockSize) {
+      final int length = Math.min(blockSize, size - blockStart);
+      for (int j = 0; j < fields.length; j++) {
+        fields[j].getBlock(blockStart, values[j], length);
       }
-      map.put(b, i);
+      for (int i = 0; i < length; i++) {
+        for (int j = 0; j < fields.length; j++) {
+          row[j] = values[j][i];
+        }
+        map.put(encodeKey(row), blockStart + i);
+      }
+    }
+    log.debug("Built map of {} rows in {} ms", size, (System.nanoTime() - t0) / 1000000);
+  }
+
+  /*
+   * Key of a row in the key map: value ids of all fields. Ids below
+   * WIDE_KEY_ID are written as two big endian bytes, larger ones as four
+   * with the highest bit set, so keys of rows with narrow ids only are the
+   * same as they were before wide ids. The returned array is reused by the
+   * next call.
+   */
+  protected byte[] encodeKey(int[] fields) {
+    int keyLength = 0;
+    for (int i = 0; i < fields.length; i++) {
+      keyLength += fields[i] < WIDE_KEY_ID ? Short.BYTES : Integer.BYTES;
+    }
+    if (keyBuffer.length != keyLength) {
+      keyBuffer = new byte[keyLength];
+    }
+    final byte[] key = keyBuffer;
+    int offset = 0;
+    for (int i = 0; i < fields.length; i++) {
+      final int id = fields[i];
+      if (id < WIDE_KEY_ID) {
+        key[offset++] = (byte) (id >> 8);
+        key[offset++] = (byte) id;
+      } else {
+        key[offset++] = (byte) (id >>> 24 | 0x80);
+        key[offset++] = (byte) (id >>> 16);
+        key[offset++] = (byte) (id >>> 8);
+        key[offset++] = (byte) id;
+      }
+    }
+    return key;
+  }
+
+  protected int[] getFieldsBuffer() {
+    if (fieldsBuffer.length != fieldLookup.size()) {
+      fieldsBuffer = new int[fieldLookup.size()];
+    }
+    return fieldsBuffer;
+  }
+
+  protected long[] getMetricValuesBuffer() {
+    if (metricValuesBuffer.length != metricLookup.size()) {
+      metricValuesBuffer = new long[metricLookup.size()];
     }
+    return metricValuesBuffer;
   }
 
   @Override
   public boolean optimize() {
-    long ts = System.currentTimeMillis();
-    if (ts - lastInsertTs > Constants.KEY_MAP_TTL) {
-      map = null;
-      return true;
+    lock.writeLock().lock();
+    try {
+      long ts = System.currentTimeMillis();
+      if (ts - lastInsertTs > Constants.KEY_MAP_TTL) {
+        if (map != null) {
+          isMapExpired = true;
+        }
+        map = null;
+        if (!isCompacted && (hasDuplicateRows || size >= Constants.COMPACTION_MIN_SIZE)) {
+          compact();
+        }
+        return true;
+      }
+      return false;
+    } finally {
+      lock.writeLock().unlock();
     }
-    return false;
   }
 
-  // TODO: refactor to accept int[], long[]
-  protected void insertFields(short[] fields, Map<String, Long> newMetrics) {
-    ByteBuffer buf = ByteBuffer.allocate(fields.length * Short.BYTES);
-    buf.clear();
-    for (short f : CubeUtils.cutZeroSuffix(fields)) buf.putShort(f);
-    byte[] bytes = buf.array();
-    if (map == null) {
-      initializeMap();
+  /*
+   * Sorts the rows of a read-only partition by their value ids, fields with
+   * fewer distinct values first, so rows sharing values get adjacent. Then
+   * columns taking less space as runs of equal ids are run-length encoded,
+   * and searches aggregate runs of rows at once. Rows are sorted with a
+   * stable counting sort per field, from the field with the most distinct
+   * values to the one with the fewest. Rows with the same values of all
+   * fields, which get adjacent, are merged into one by adding up their
+   * metrics, so the number of rows may shrink.
+   */
+  protected void compact() {
+    final long t0 = System.nanoTime();
+    final int numRows = size;
+    final int numFields = fieldLookup.size();
+    final Column[] columns = columnsById;
+    final Metric[] metrics = metricsById;
+    final Integer[] sortOrder = new Integer[numFields];
+    for (int i = 0; i < numFields; i++) {
+      sortOrder[i] = i;
     }
-    Integer index = map.get(bytes);
+    Arrays.sort(sortOrder, (a, b) -> Integer.compare(getNumValues(b), getNumValues(a)));
 
-    // 1. Check if there are any new metrics
-    for (String metricName : newMetrics.keySet()) {
-      if (!metrics.containsKey(metricName)) {
-        // log.info("New metric {} found", metricName);
-        if (size != 0)
-          throw new RuntimeException("Adding new metrics on fly is not implemented yet");
-        addMetric(metricName);
+    int[] rows = new int[numRows];
+    int[] sortedRows = new int[numRows];
+    final int[] values = new int[numRows];
+    for (int i = 0; i < numRows; i++) {
+      rows[i] = i;
+    }
+    for (int fieldId : sortOrder) {
+      columns[fieldId].getBlock(0, values, numRows);
+      sortRows(rows, values, getNumValues(fieldId), sortedRows);
+      final int[] swap = rows;
+      rows = sortedRows;
+      sortedRows = swap;
+    }
+    // sorted rows [keyStarts[k], keyStarts[k + 1]) have the same values of all fields
+    final int[] keyStarts = getKeyStarts(columns, rows, values);
+    final int newSize = keyStarts.length - 1;
+    boolean isSorted = newSize == numRows;
+    for (int i = 0; i < numRows && isSorted; i++) {
+      isSorted = rows[i] == i;
+    }
+
+    final Column[] newColumns = new Column[numFields];
+    final int[] sortedValues = new int[newSize];
+    for (int fieldId = 0; fieldId < numFields; fieldId++) {
+      final Column column = columns[fieldId];
+      column.getBlock(0, values, numRows);
+      for (int k = 0; k < newSize; k++) {
+        sortedValues[k] = values[rows[keyStarts[k]]];
+      }
+      newColumns[fieldId] = RunLengthColumn.encode(sortedValues, newSize, column.getValueBits());
+      if (newColumns[fieldId] == null && isSorted) {
+        newColumns[fieldId] = column;
+      } else if (newColumns[fieldId] == null) {
+        final OffHeapColumn sortedColumn = new OffHeapColumn(0, column.getValueBits());
+        for (int k = 0; k < newSize; k++) {
+          sortedColumn.append(sortedValues[k]);
+        }
+        newColumns[fieldId] = sortedColumn;
+      }
+    }
+    final Metric[] newMetrics = Arrays.copyOf(metrics, metricLookup.size());
+    if (!isSorted) {
+      final long[] metricValues = new long[numRows];
+      for (int metricId = 0; metricId < newMetrics.length; metricId++) {
+        metrics[metricId].getBlock(0, metricValues, numRows);
+        final OffHeapMetric sortedMetric = new OffHeapMetric(0);
+        for (int k = 0; k < newSize; k++) {
+          long value = 0;
+          for (int i = keyStarts[k]; i < keyStarts[k + 1]; i++) {
+            value += metricValues[rows[i]];
+          }
+          sortedMetric.append(value);
+        }
+        newMetrics[metricId] = sortedMetric;
+      }
+    }
+
+    final ZoneMap[] newZoneMaps = new ZoneMap[numFields];
+    for (int fieldId = 0; fieldId < numFields; fieldId++) {
+      newZoneMaps[fieldId] =
+          isSorted ? zoneMapsById[fieldId] : ZoneMap.build(newColumns[fieldId], newSize);
+    }
+
+    layout++;
+    for (int fieldId = 0; fieldId < numFields; fieldId++) {
+      setColumn(fieldId, fieldLookup.getKey(fieldId), newColumns[fieldId]);
+      setZoneMap(fieldId, newZoneMaps[fieldId]);
+    }
+    for (int metricId = 0; metricId < newMetrics.length; metricId++) {
+      setMetric(metricId, metricLookup.getKey(metricId), newMetrics[metricId]);
+    }
+    size = newSize;
+    // the rows changed, even though searches find the same
+    version++;
+    layout++;
+    indexes.clear();
+    isCompacted = true;
+    hasDuplicateRows = false;
+    log.debug(
+        "Compacted {} rows into {} in {} ms",
+        numRows,
+        newSize,
+        (System.nanoTime() - t0) / 1000000);
+  }
+
+  // Index of the first of every run of sorted rows with the same values of all fields, then size
+  private static int[] getKeyStarts(Column[] columns, int[] rows, int[] values) {
+    final int numRows = rows.length;
+    final boolean[] isKeyStart = new boolean[numRows];
+    for (Column column : columns) {
+      column.getBlock(0, values, numRows);
+      for (int i = 1; i < numRows; i++) {
+        isKeyStart[i] |= values[rows[i]] != values[rows[i - 1]];
+      }
+    }
+    int numKeys = numRows == 0 ? 0 : 1;
+    for (int i = 1; i < numRows; i++) {
+      numKeys += isKeyStart[i] ? 1 : 0;
+    }
+    final int[] keyStarts = new int[numKeys + 1];
+    for (int i = 1, k = 1; i < numRows; i++) {
+      if (isKeyStart[i]) {
+        keyStarts[k++] = i;
+      }
+    }
+    keyStarts[numKeys] = numRows;
+    return keyStarts;
+  }
+
+  private int getNumValues(int fieldId) {
+    return lookups.get(fieldLookup.getKey(fieldId)).size();
+  }
+
+  // Stably sorts rows by their values, which are below numValues
+  private static void sortRows(int[] rows, int[] values, int numValues, int[] sortedRows) {
+    final int[] starts = new int[numValues + 1];
+    for (int row : rows) {
+      starts[values[row] + 1]++;
+    }
+    for (int v = 0; v < numValues; v++) {
+      starts[v + 1] += starts[v];
+    }
+    for (int row : rows) {
+      sortedRows[starts[values[row]]++] = row;
+    }
+  }
+
+  /*
+   * Makes a read-only partition writable again. Partitions which have just
+   * been loaded get their key map built. Rebuilding the key map of a large
+   * partition which expired would stall the insert, so it gets an empty map
+   * instead: its existing rows are not updated anymore, and a combination of
+   * fields inserted again gets a new row. Searches add up all matching rows,
+   * so their results stay the same, and the next compaction merges the rows
+   * back.
+   */
+  protected void reactivate() {
+    // run-length encoded columns are read-only
+    for (int fieldId = 0; fieldId < fieldLookup.size(); fieldId++) {
+      final Column column = columnsById[fieldId];
+      if (column instanceof RunLengthColumn) {
+        setColumn(fieldId, fieldLookup.getKey(fieldId), column.widen(column.getValueBits()));
       }
     }
+    isCompacted = false;
+    if (!isMapExpired || size <= Constants.KEY_MAP_REBUILD_MAX_SIZE) {
+      initializeMap();
+    } else {
+      log.debug("Reactivating partition of {} rows with an empty map", size);
+      createMap(0, getMaxKeyLength());
+      hasDuplicateRows = true;
+    }
+    isMapExpired = false;
+    indexes.clear();
+  }
+
+  /*
+   * Inserts a row given value ids of all fields of the partition and values
+   * of all metrics, both ordered by id.
+   */
+  protected void insertFields(int[] fields, long[] metricValues) {
+    if (map == null) {
+      reactivate();
+    }
+    final byte[] bytes = encodeKey(fields);
+    if (bytes.length > map.maxKeyLength()) {
+      // new fields or wide ids have been added, the keys do not fit into the map anymore
+      final KeyMap oldMap = map;
+      createMap(oldMap.size(), getMaxKeyLength());
+      oldMap.entrySet().forEach(e -> map.put(e.getKey(), e.getValue()));
+    }
+    int index = map.get(bytes);
 
-    // 2. Check if this combination of fields has ever existed.
+    // 1. Check if this combination of fields has ever existed.
     // If never existed, create one.
-    if (index == null) {
+    if (index == KeyMap.NO_VALUE) {
       // log.debug("Inserting new combination of dimensions into
       // partition");
-      index = new Integer(size);
+      index = size;
       map.put(bytes, index);
+      final ZoneMap[] zoneMaps = zoneMapsById;
       for (int i = 0; i < fields.length; i++) {
         String fieldName = fieldLookup.getKey(i);
         // log.debug("Writing {}={} to buffers", fieldName, fields[i]);
@@ -157,33 +520,47 @@ public class OffHeapPartition implements Partition {
           // log.debug("There are {} records, converting TinyColumn {}
           // to OffHeap", col.getNumRecords(), fieldName);
           col = TinyUtils.tinyColumnToOffHeap((TinyColumn) col);
-          columns.put(fieldName, col);
+          setColumn(i, fieldName, col);
+        }
+        if (Column.getValueBits(fields[i]) > col.getValueBits()) {
+          // the lookup outgrew the column, searches keep reading the narrow copy
+          final int maxValue = lookups.get(fieldName).size() - 1;
+          col = col.widen(Column.getValueBits(maxValue));
+          setColumn(i, fieldName, col);
         }
         col.append(fields[i]);
+        zoneMaps[i].add(fields[i]);
       }
-      for (Entry<String, Metric> e : metrics.entrySet()) {
-        Metric m = e.getValue();
-        String metricName = e.getKey();
+      for (int i = 0; i < metricLookup.size(); i++) {
+        String metricName = metricLookup.getKey(i);
+        Metric m = metrics.get(metricName);
         if (m.isTiny() && m.getNumRecords() > Constants.INITIAL_PARTITION_SIZE) {
           // log.debug("Converting TinyMetric {} to OffHeap",
           // metricName);
           m = TinyUtils.tinyMetricToOffHeap((TinyMetric) m);
-          metrics.put(metricName, m);
+          setMetric(i, metricName, m);
         }
         m.append(0L);
       }
       lastAppendTs = System.currentTimeMillis();
+      if (firstAppendTs == 0) {
+        firstAppendTs = lastAppendTs;
+      }
+      // publishes the new row to searches
       size++;
     }
 
-    // 3. Increment metrics by values supplied.
-    for (Entry<String, Metric> e : metrics.entrySet()) {
-      Long c = newMetrics.get(e.getKey()).longValue();
-      if (c != null) {
-        Metric metric = e.getValue();
-        metric.incrementBy(index.intValue(), c.longValue());
+    // 2. Increment metrics by values supplied.
+    final Metric[] metricsById = this.metricsById;
+    for (int i = 0; i < metricValues.length; i++) {
+      if (metricValues[i] != 0) {
+        metricsById[i].incrementBy(index, metricValues[i]);
       }
     }
+
+    // 3. Invalidate everything computed from the previous state.
+    version++;
+    unfilteredResults.clear();
   }
 
   protected void addNewFields(DataRow row) {
@@ -193,20 +570,18 @@ public class OffHeapPartition implements Partition {
 
     if (newFields.size() > 0) {
       for (String f : newFields) {
-        final int newColumnIndex = fieldLookup.getValue(f);
-        lookups.put(f, new HashMapLookup());
-        columns.put(f, new TinyColumn(size));
+        addColumn(f);
       }
       insertImpl(row);
     }
   }
 
   protected void insertImpl(DataRow row) {
-    short[] fields = new short[fieldLookup.size()];
-    int i = 0;
+    final int[] fields = getFieldsBuffer();
 
     int insertedFieldCount = 0;
-    for (String fieldName : fieldLookup.getKeys()) {
+    for (int i = 0; i < fields.length; i++) {
+      String fieldName = fieldLookup.getKey(i);
       String value = row.getFields().get(fieldName);
       int valueIndex = 0;
       if (value != null || row.getFields().containsKey(fieldName)) {
@@ -215,8 +590,7 @@ public class OffHeapPartition implements Partition {
         // log.debug("Index for value {}.{} is {}", fieldName, value,
         // valueIndex);
       }
-      fields[i] = (short) valueIndex;
-      i++;
+      fields[i] = valueIndex;
     }
 
     // If a new field was detected, rebuild the whole lookup table
@@ -225,14 +599,151 @@ public class OffHeapPartition implements Partition {
       // insertedFieldCount, row.getFields().size());
       addNewFields(row);
     } else {
-      insertFields(fields, row.getCounters());
+      insertFields(fields, getMetricValues(row.getCounters()));
+    }
+  }
+
+  protected void addNewMetrics(Collection<String> metricNames) {
+    for (String metricName : metricNames) {
+      if (!metrics.containsKey(metricName)) {
+        // log.info("New metric {} found", metricName);
+        if (size != 0)
+          throw new RuntimeException("Adding new metrics on fly is not implemented yet");
+        addMetric(metricName);
+      }
+    }
+  }
+
+  /*
+   * Returns values of all metrics ordered by metric id, metrics missing in
+   * the row are 0. The returned array is reused by the next call.
+   */
+  protected long[] getMetricValues(Map<String, Long> counters) {
+    final long[] metricValues = getMetricValuesBuffer();
+    int numValues = 0;
+    for (int i = 0; i < metricValues.length; i++) {
+      final Long c = counters.get(metricLookup.getKey(i));
+      metricValues[i] = c != null ? c.longValue() : 0L;
+      numValues += c != null ? 1 : 0;
+    }
+    if (numValues < counters.size()) {
+      // the row might have metrics the partition does not have yet
+      addNewMetrics(counters.keySet());
+      if (metricLookup.size() != metricValues.length) {
+        return getMetricValues(counters);
+      }
+    }
+    return metricValues;
+  }
+
+  /*
+   * Inserts rows of the batch. Every distinct value of a field is looked up
+   * once per batch, rows are inserted by value ids directly.
+   */
+  protected void insertBatch(ColumnarBatch batch) {
+    addNewMetrics(Arrays.asList(batch.getMetricNames()));
+    final String[] fieldNames = batch.getFieldNames();
+    final int[] fieldIds = new int[fieldNames.length];
+    final Lookup[] valueLookups = new Lookup[fieldNames.length];
+    // batch value index -> value id, for each field of the batch
+    final TIntIntMap[] valueIds = new TIntIntMap[fieldNames.length];
+    for (int f = 0; f < fieldNames.length; f++) {
+      addColumn(fieldNames[f]);
+      fieldIds[f] = fieldLookup.getValue(fieldNames[f]);
+      valueLookups[f] = lookups.get(fieldNames[f]);
+      valueIds[f] = new TIntIntHashMap(16, 0.5f, -1, -1);
+    }
+    final String[] metricNames = batch.getMetricNames();
+    final int[] metricIds = new int[metricNames.length];
+    for (int m = 0; m < metricNames.length; m++) {
+      metricIds[m] = metricLookup.getValue(metricNames[m]);
+    }
+
+    final String[] values = batch.getValues();
+    final int[][] fieldValues = batch.getFieldValues();
+    final long[][] batchMetricValues = batch.getMetricValues();
+    final int[] fields = getFieldsBuffer();
+    final long[] metricValues = getMetricValuesBuffer();
+    // fields missing in the batch stay null
+    Arrays.fill(fields, 0);
+    Arrays.fill(metricValues, 0L);
+    for (int row = 0; row < batch.getNumRows(); row++) {
+      for (int f = 0; f < fieldNames.length; f++) {
+        final int valueIndex = fieldValues[f][row];
+        int valueId = 0;
+        if (valueIndex >= 0) {
+          valueId = valueIds[f].get(valueIndex);
+          if (valueId < 0) {
+            final String value = values[valueIndex];
+            valueId = valueLookups[f].getValue(value != null ? value : Constants.NULL_VALUE);
+            valueIds[f].put(valueIndex, valueId);
+          }
+        }
+        fields[fieldIds[f]] = valueId;
+      }
+      for (int m = 0; m < metricNames.length; m++) {
+        metricValues[metricIds[m]] = batchMetricValues[m][row];
+      }
+      insertFields(fields, metricValues);
     }
   }
 
   @Override
   public void insert(DataRow row) {
-    insertImpl(row);
-    lastInsertTs = System.currentTimeMillis();
+    lock.writeLock().lock();
+    try {
+      insertImpl(row);
+      lastInsertTs = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void insert(ColumnarBatch batch) {
+    lock.writeLock().lock();
+    try {
+      insertBatch(batch);
+      lastInsertTs = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void insert(List<DataRow> rows, LongSupplier log) {
+    lock.writeLock().lock();
+    try {
+      logSequence = log.getAsLong();
+      for (DataRow row : rows) {
+        insertImpl(row);
+      }
+      lastInsertTs = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void insert(ColumnarBatch batch, LongSupplier log) {
+    lock.writeLock().lock();
+    try {
+      logSequence = log.getAsLong();
+      insertBatch(batch);
+      lastInsertTs = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long getLogSequence() {
+    lock.readLock().lock();
+    try {
+      return logSequence;
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   public void insertData(List<DataRow> data) {
@@ -249,48 +760,146 @@ public class OffHeapPartition implements Partition {
     log.info("That is {} rows/sec", rowsPerSecond);
   }
 
-  protected Map<String, IdMatcher> transformFiltersToMatchers(List<Filter> filters) {
-    // log.debug("List of filters: {}", filters);
-    Map<String, IdMatcher> fieldNameToMatchers = new HashMap<String, IdMatcher>();
-    Map<String, Set<String>> filtersByColumn = new HashMap<String, Set<String>>();
-    for (String columnName : columns.keySet()) {
-      filtersByColumn.put(columnName, new HashSet<String>());
+  /*
+   * Returns the id of the field if it is among the first numFields fields,
+   * -1 otherwise. Unlike Lookup.getValue, never registers a new field.
+   */
+  protected int getFieldId(String fieldName, int numFields) {
+    if (fieldName == null || !fieldLookup.containsValue(fieldName)) {
+      return -1;
     }
+    final int fieldId = fieldLookup.getValue(fieldName);
+    return fieldId < numFields ? fieldId : -1;
+  }
+
+  /*
+   * Returns matchers by field id. Values which do not exist in the partition
+   * are replaced with -1, so they match nothing and the lookups are not
+   * modified by searches.
+   */
+  protected IdMatcher[] transformFiltersToMatchers(List<Filter> filters, int numFields) {
+    // log.debug("List of filters: {}", filters);
+    IdMatcher[] matchers = new IdMatcher[numFields];
+    Map<Integer, Set<String>> filtersByColumn = new HashMap<Integer, Set<String>>();
 
     // For every filtered column pick extract possible column value
     for (Filter filter : filters) {
-      Set<String> columnValues = filtersByColumn.get(filter.getField());
+      Set<String> columnValues =
+          filtersByColumn.computeIfAbsent(
+              getFieldId(filter.getField(), numFields), k -> new HashSet<String>());
       Collections.addAll(columnValues, filter.getValues());
     }
 
     // Convert possible column values to id-based column value matchers
-    for (Entry<String, Set<String>> e : filtersByColumn.entrySet()) {
-      String fieldName = e.getKey();
-      Lookup valueIdLookup = lookups.get(fieldName);
-      int[] valueIdList = e.getValue().stream().mapToInt(valueIdLookup::getValue).toArray();
+    for (Entry<Integer, Set<String>> e : filtersByColumn.entrySet()) {
+      int fieldId = e.getKey();
+      Lookup valueIdLookup = lookups.get(fieldLookup.getKey(fieldId));
+      int[] valueIdList =
+          e.getValue()
+              .stream()
+              .map(v -> v != null ? v : Constants.NULL_VALUE)
+              .mapToInt(v -> valueIdLookup.containsValue(v) ? valueIdLookup.getValue(v) : -1)
+              .toArray();
       if (valueIdList.length > 0) {
-        fieldNameToMatchers.put(fieldName, new IdMatcher(valueIdList));
+        matchers[fieldId] = new IdMatcher(valueIdList);
+      }
+    }
+    // log.debug("Resulting id matchers: {}", matchers);
+    return matchers;
+  }
+
+  /*
+   * Arrays of a block of rows used by searches. They are kept per thread, so
+   * a search over many partitions does not allocate them for every one, and
+   * grow to the largest number of fields and metrics searched by the thread.
+   */
+  private static final class ScanBuffers {
+    final int blockSize = Constants.INITIAL_PARTITION_SIZE;
+    final int blockWords = (blockSize + 63) >>> 6;
+    int[][] columnBlocks = new int[0][];
+    long[][] metricBlocks = new long[0][];
+    long[][] matchBitmaps = new long[0][];
+    final long[] valid = new long[blockWords];
+    final long[] selection = new long[blockWords];
+    final long[] mismatchedOnce = new long[blockWords];
+    final long[] mismatchedTwice = new long[blockWords];
+    final long[] allMatched = new long[blockWords];
+    final long[] sideRows = new long[blockWords];
+
+    void ensureCapacity(int numFields, int numMetrics) {
+      if (columnBlocks.length < numFields) {
+        final int oldLength = columnBlocks.length;
+        columnBlocks = Arrays.copyOf(columnBlocks, numFields);
+        matchBitmaps = Arrays.copyOf(matchBitmaps, numFields);
+        for (int i = oldLength; i < numFields; i++) {
+          columnBlocks[i] = new int[blockSize];
+          matchBitmaps[i] = new long[blockWords];
+        }
+      }
+      if (metricBlocks.length < numMetrics) {
+        final int oldLength = metricBlocks.length;
+        metricBlocks = Arrays.copyOf(metricBlocks, numMetrics);
+        for (int i = oldLength; i < numMetrics; i++) {
+          metricBlocks[i] = new long[blockSize];
+        }
+      }
+    }
+  }
+
+  private static final ThreadLocal<ScanBuffers> scanBuffers =
+      ThreadLocal.withInitial(ScanBuffers::new);
+
+  private static ScanBuffers getScanBuffers(int numFields, int numMetrics) {
+    ScanBuffers buffers = scanBuffers.get();
+    if (buffers.blockSize != Constants.INITIAL_PARTITION_SIZE) {
+      buffers = new ScanBuffers();
+      scanBuffers.set(buffers);
+    }
+    buffers.ensureCapacity(numFields, numMetrics);
+    return buffers;
+  }
+
+  // Reads columnsById, metricsById and zoneMapsById, again while compaction replaces them
+  private Snapshot getSnapshot() {
+    while (true) {
+      final int layout = this.layout;
+      final Snapshot snapshot = new Snapshot(columnsById, metricsById, zoneMapsById, size);
+      if ((layout & 1) == 0 && layout == this.layout) {
+        return snapshot;
       }
+      Thread.yield();
     }
-    // log.debug("Resulting id matchers: {}", fieldNameToMatchers);
-    return fieldNameToMatchers;
   }
 
-  protected Column[] getColumnsAsArray() {
-    final Column[] columnsArray = new Column[columns.size()];
-    for (Entry<String, Column> e : columns.entrySet()) {
-      String fieldName = e.getKey();
-      int fieldId = fieldLookup.getValue(fieldName);
-      columnsArray[fieldId] = e.getValue();
+  protected ColumnIndex getIndex(String fieldName, Column column, int numRows) {
+    ColumnIndex index = indexes.get(fieldName);
+    // the column is replaced when it gets widened or its rows get reordered
+    if (index == null || index.getColumn() != column || index.getNumRows() < numRows) {
+      index = ColumnIndex.build(column, numRows);
+      indexes.put(fieldName, index);
     }
-    return columnsArray;
+    return index;
   }
 
   @Override
   public SearchResult get(List<Filter> filters, String groupFieldName) {
     // log.debug("Starting search");
     final long t0 = System.nanoTime(); // debug purposes
-    final int curSize = size; // current max index of rows in the db
+    final long startVersion = version; // has to be read before the size
+    final int knownSize = size; // rows fully written before the columns are read
+    /*
+     * Fields and metrics known at this point. Their columns are published
+     * before they get registered, so all of them are in the arrays read
+     * afterwards. Fields added later are not visible to this search.
+     */
+    final int fieldLookupSize = fieldLookup.size();
+    final String[] metricNames = metricLookup.getKeys();
+    final Snapshot snapshot = getSnapshot();
+    final Column[] columns = snapshot.columns;
+    final Metric[] metricsArray = snapshot.metrics;
+    final ZoneMap[] zoneMaps = snapshot.zoneMaps;
+    // current max index of rows in the db, compaction may have merged rows meanwhile
+    final int curSize = Math.min(knownSize, snapshot.size);
 
     // a field to use for result grouping
     final boolean doFieldGrouping = groupFieldName != null;
@@ -299,7 +908,9 @@ public class OffHeapPartition implements Partition {
      * If the grouping field does not exist in the partition - just return
      * en empty result.
      */
-    if (doFieldGrouping && !fieldLookup.containsValue(groupFieldName)) {
+    final int groupFieldId =
+        doFieldGrouping ? getFieldId(groupFieldName, fieldLookupSize) : FAKE_GROUP_VALUE_ID;
+    if (groupFieldId < 0) {
       log.warn(
           String.format("Grouping column %s does not exist in this partition", groupFieldName));
       return SearchResult.buildEmpty(metrics.keySet());
@@ -315,13 +926,25 @@ public class OffHeapPartition implements Partition {
     filters =
         filters
             .stream()
-            .filter(f -> columns.containsKey(f.getField()) || !f.isNullValueFilter())
+            .filter(f -> getFieldId(f.getField(), fieldLookupSize) >= 0 || !f.isNullValueFilter())
             .collect(Collectors.toList());
-    if (!checkAllFilterColumnsExist(filters)) {
+    if (!checkAllFilterColumnsExist(filters, fieldLookupSize)) {
       return SearchResult.buildEmpty(metrics.keySet());
     }
 
-    final int groupFieldId;
+    /*
+     * Results without filters are served from the cache until the partition
+     * gets modified.
+     */
+    final String cacheKey = doFieldGrouping ? groupFieldName : SearchResult.FAKE_GROUP_FIELD_NAME;
+    final boolean isCacheable = filters.isEmpty();
+    if (isCacheable) {
+      final SearchResult cachedResult = unfilteredResults.get(cacheKey);
+      if (cachedResult != null) {
+        return cachedResult;
+      }
+    }
+
     // field names -> (column value id -> (group value id -> (metric index
     // -> counter)))
     final CounterContainer sideCounterCountainer =
@@ -332,21 +955,16 @@ public class OffHeapPartition implements Partition {
      * single-value array with a zero id for the groupValueId array.
      */
     if (doFieldGrouping) {
-      groupFieldId = fieldLookup.getValue(groupFieldName);
       sideCounterCountainer.initGroupedSideCounters(groupFieldName);
     } else {
-      groupFieldId = FAKE_GROUP_VALUE_ID;
       sideCounterCountainer.initSideCounters();
     }
 
     // creating an empty result set, with id's
-    final String[] metricNames = metricLookup.getKeys();
     // metric name -> group value id -> counter
     int groupFieldValueCount = doFieldGrouping ? lookups.get(groupFieldName).size() : 1;
     final long[][] totalCounters = new long[metricNames.length][groupFieldValueCount];
 
-    final Column[] columns = getColumnsAsArray();
-
     int matchCount = 0; // Debug variable
     final long t2; // these are for time measurement (debug purposes only)
     final long t3;
@@ -359,123 +977,272 @@ public class OffHeapPartition implements Partition {
      */
 
     /*
-     * bitmask for filter matches
+     * Fast representation of filters. IdMatcher means we are doing only
+     * equality checking, no fancy >, <, !=, etc.
+     *
+     * Filters are specification of criterias using strings. Here they are
+     * transformed to an efficient representation, functions that match
+     * using integer ids
      */
-    final boolean[] columnMatches = new boolean[fieldLookup.size()];
+    final IdMatcher[] matchersArray = transformFiltersToMatchers(filters, fieldLookupSize);
+    int matchersCount = 0;
+    for (IdMatcher matcher : matchersArray) {
+      if (matcher != null) {
+        matchersCount++;
+      }
+    }
 
     /*
-     * values of measures
+     * Here starts the scanning. Rows are processed in blocks of
+     * Constants.INITIAL_PARTITION_SIZE: column values of a block are read in
+     * bulk, matchers are evaluated over the whole block into a bitmap, and
+     * only then the selected rows are aggregated.
      */
-    final long[] metricValues = new long[metricNames.length];
+    final int blockSize = Math.max(1, Math.min(Constants.INITIAL_PARTITION_SIZE, curSize));
+    final ScanBuffers buffers = getScanBuffers(fieldLookupSize, metricNames.length);
+    // bitmaps cover a full block, bits of rows past the end of the block stay clear
+    final int blockWords = buffers.blockWords;
 
     /*
-     * values of columns. Id's only, no real string values.
+     * values of columns and measures of the current block. Id's only, no
+     * real string values.
      */
-    final int[] columnValues = new int[fieldLookup.size()];
+    final int[][] columnBlocks = Arrays.copyOf(buffers.columnBlocks, fieldLookupSize);
+    final long[][] metricBlocks = Arrays.copyOf(buffers.metricBlocks, metricNames.length);
 
     /*
-     * Fast representation of filters. IdMatcher means we are doing only
-     * equality checking, no fancy >, <, !=, etc.
+     * Per-column bitmaps of filter matches within the current block. A row
+     * is represented by the same bit in all of the bitmaps.
+     */
+    final long[][] matchBitmaps = new long[fieldLookupSize][];
+    for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
+      if (matchersArray[fieldId] != null) {
+        matchBitmaps[fieldId] = buffers.matchBitmaps[fieldId];
+      }
+    }
+
+    /*
+     * Rows of the current block, rows where at least one of the filters was
+     * matched, rows where at least one (resp. at least two) of the filters
+     * were not matched, and rows where all filters were matched.
      */
-    final IdMatcher[] matchersArray = new IdMatcher[fieldLookup.size()];
-    final Metric[] metricsArray = new Metric[metricLookup.size()];
+    final long[] valid = buffers.valid;
+    final long[] selection = buffers.selection;
+    final long[] mismatchedOnce = buffers.mismatchedOnce;
+    final long[] mismatchedTwice = buffers.mismatchedTwice;
+    final long[] allMatched = buffers.allMatched;
 
     /*
-     * Filters are specification of criterias using strings. Here they are
-     * transformed to an efficient representation, functions that match
-     * using integer ids
+     * If some column has no matcher it is considered matched, so every row
+     * gets selected.
      */
-    final Map<String, IdMatcher> matchers = transformFiltersToMatchers(filters);
+    final boolean selectAll = matchersCount < fieldLookupSize;
 
-    for (Entry<String, IdMatcher> e : matchers.entrySet()) {
-      int fieldId = fieldLookup.getValue(e.getKey());
-      matchersArray[fieldId] = e.getValue();
+    /*
+     * Read-only partitions use inverted indexes of the filtered columns, so
+     * matches are looked up instead of being evaluated row by row.
+     */
+    final ColumnIndex[] indexesArray = new ColumnIndex[fieldLookupSize];
+    if (map == null && curSize >= Constants.INVERTED_INDEX_MIN_SIZE) {
+      for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
+        if (matchersArray[fieldId] != null && !(columns[fieldId] instanceof RunLengthColumn)) {
+          indexesArray[fieldId] =
+              getIndex(fieldLookup.getKey(fieldId), columns[fieldId], curSize);
+        }
+      }
     }
 
     /*
-     * Here we get transform Map of metrics to an array of metrics. Note
-     * that in 99% of cases there is only one metric
+     * Columns are only read when some of the rows of the block need them.
      */
-    for (Entry<String, Metric> e : metrics.entrySet()) {
-      int fieldId = metricLookup.getValue(e.getKey());
-      metricsArray[fieldId] = e.getValue();
-    }
+    final boolean[] columnRead = new boolean[fieldLookupSize];
+    final long[] sideRows = buffers.sideRows;
 
     /*
-     * Here starts the brute-force scanning. Operations in this block have
-     * to be as fast as possible
+     * Zone maps tell, for every filter, whether it matches none, some or all
+     * of the rows of the block.
      */
+    final int[] zoneMatches = new int[fieldLookupSize];
+    final long[] runTotals = new long[metricNames.length];
 
-    final int fieldLookupSize = fieldLookup.size();
     t2 = System.nanoTime();
-    for (int i = 0; i < curSize; i++) {
+    for (int blockStart = 0; blockStart < curSize; blockStart += blockSize) {
+      final int blockLength = Math.min(blockSize, curSize - blockStart);
+      final int blockId = blockStart / Constants.INITIAL_PARTITION_SIZE;
+      Arrays.fill(columnRead, false);
+
       /*
-       * Here we do not retrieve values of all columns. We only get those
-       * which are related to a filter/matcher
+       * A block where two filters match no row has no row with less than
+       * two mismatching filters, so it is skipped without reading it.
        */
-      for (int matcherId = 0; matcherId < matchersArray.length; matcherId++) {
-        IdMatcher matcher = matchersArray[matcherId];
-        final int valueId = columns[matcherId].get(i);
-        columnValues[matcherId] = valueId;
+      int numUnmatchedFilters = 0;
+      for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
+        if (matchersArray[fieldId] != null) {
+          zoneMatches[fieldId] = zoneMaps[fieldId].match(matchersArray[fieldId], blockId);
+          numUnmatchedFilters += zoneMatches[fieldId] == ZoneMap.MATCHES_NONE ? 1 : 0;
+        }
+      }
+      if (numUnmatchedFilters >= 2) {
+        continue;
+      }
 
-        if (matcher != null) {
-          columnMatches[matcherId] = matcher.match(valueId);
+      /*
+       * First, only the filters are evaluated.
+       */
+      selectFirst(valid, blockLength);
+      if (selectAll) {
+        System.arraycopy(valid, 0, selection, 0, blockWords);
+      } else {
+        Arrays.fill(selection, 0L);
+      }
+      Arrays.fill(mismatchedOnce, 0L);
+      Arrays.fill(mismatchedTwice, 0L);
+      for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
+        final IdMatcher matcher = matchersArray[fieldId];
+        if (matcher == null) {
+          continue;
+        }
+        final long[] matchBitmap = matchBitmaps[fieldId];
+        if (zoneMatches[fieldId] == ZoneMap.MATCHES_NONE) {
+          Arrays.fill(matchBitmap, 0L);
+        } else if (zoneMatches[fieldId] == ZoneMap.MATCHES_ALL) {
+          System.arraycopy(valid, 0, matchBitmap, 0, blockWords);
+        } else if (indexesArray[fieldId] != null) {
+          indexesArray[fieldId].match(matcher, blockId, matchBitmap);
+        } else if (columns[fieldId] instanceof RunLengthColumn) {
+          ((RunLengthColumn) columns[fieldId]).match(matcher, blockStart, blockLength, matchBitmap);
         } else {
-          // If no matcher is set for this column we consider it matched
-          columnMatches[matcherId] = true;
+          columns[fieldId].getBlock(blockStart, columnBlocks[fieldId], blockLength);
+          columnRead[fieldId] = true;
+          matcher.match(columnBlocks[fieldId], blockLength, matchBitmap);
+        }
+        for (int w = 0; w < blockWords; w++) {
+          matchBitmap[w] &= valid[w];
+          final long mismatch = ~matchBitmap[w] & valid[w];
+          mismatchedTwice[w] |= mismatchedOnce[w] & mismatch;
+          mismatchedOnce[w] |= mismatch;
+          selection[w] |= matchBitmap[w];
         }
       }
 
       /*
-       * At least one of the filters was matched. We need this row
+       * A row with two or more mismatching filters does not contribute to
+       * any of the counters, so it is dropped from the selection.
        */
-      if (atLeastOneMatch(columnMatches)) {
-        matchCount++;
-        /*
-         * We have a match! First, we retrieve the counters values for
-         * this row
-         */
-        for (int mIndex = 0; mIndex < metricNames.length; mIndex++) {
-          final long c = metricsArray[mIndex].get(i);
-          metricValues[mIndex] = c;
-        }
+      int selectedCount = 0;
+      boolean anyAllMatched = false;
+      for (int w = 0; w < blockWords; w++) {
+        selection[w] &= ~mismatchedTwice[w];
+        allMatched[w] = selection[w] & ~mismatchedOnce[w];
+        selectedCount += Long.bitCount(selection[w]);
+        anyAllMatched |= allMatched[w] != 0;
+      }
+      if (selectedCount == 0) {
+        continue;
+      }
+      matchCount += selectedCount;
 
-        /*
-         * Find out the value of the field to group by for the i-th row.
-         */
-        final int groupFieldValueId =
-            doFieldGrouping ? columns[groupFieldId].get(i) : FAKE_GROUP_VALUE_ID;
-
-        /*
-         * Then, check if all columns of a row match. Increase the
-         * totalCounters if positive.
-         */
-        if (checkAllMatch(columnMatches)) {
-          for (int mIndex = 0; mIndex < metricNames.length; mIndex++) {
-            totalCounters[mIndex][groupFieldValueId] += metricValues[mIndex];
+      /*
+       * At least one row in the block is needed. Retrieve the counters
+       * values and the value of the field to group by for the selected rows.
+       */
+      for (int mIndex = 0; mIndex < metricNames.length; mIndex++) {
+        readMetric(
+            metricsArray[mIndex],
+            blockStart,
+            blockLength,
+            selection,
+            selectedCount,
+            metricBlocks[mIndex]);
+      }
+      if (doFieldGrouping && !columnRead[groupFieldId]) {
+        readColumn(
+            columns[groupFieldId],
+            blockStart,
+            blockLength,
+            selection,
+            selectedCount,
+            columnBlocks[groupFieldId]);
+        columnRead[groupFieldId] = true;
+      }
+      final int[] groupValues = doFieldGrouping ? columnBlocks[groupFieldId] : null;
+
+      /*
+       * Then, the rows where all columns match increase the totalCounters
+       * and the side counters of every column.
+       */
+      if (anyAllMatched) {
+        for (int w = 0; w < blockWords; w++) {
+          long word = allMatched[w];
+          while (word != 0) {
+            final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            final int groupFieldValueId =
+                groupValues != null ? groupValues[row] : FAKE_GROUP_VALUE_ID;
+            for (int mIndex = 0; mIndex < metricNames.length; mIndex++) {
+              totalCounters[mIndex][groupFieldValueId] += metricBlocks[mIndex][row];
+            }
           }
         }
-
-        /*
-         * Last, retrieve the values of all columns. For each side, we
-         * increment the side counter, but only when *other* side
-         * filters match.
-         */
         for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
-          /*
-           * We don't care if the current side filter is applied or
-           * not - it should only influence *other* side filtering.
-           */
-          if (!checkOtherMatch(columnMatches, fieldId)) {
-            continue;
+          if (!columnRead[fieldId]) {
+            readColumn(
+                columns[fieldId],
+                blockStart,
+                blockLength,
+                selection,
+                selectedCount,
+                columnBlocks[fieldId]);
+            columnRead[fieldId] = true;
           }
+          addSideCounters(
+              sideCounterCountainer,
+              fieldId,
+              allMatched,
+              columnBlocks[fieldId],
+              groupValues,
+              metricBlocks,
+              runTotals);
+        }
+      }
 
-          final int columnValueId = columnValues[fieldId];
-          for (int mIndex = 0; mIndex < metricNames.length; mIndex++) {
-            sideCounterCountainer.add(
-                fieldId, columnValueId, groupFieldValueId, mIndex, metricValues[mIndex]);
-          }
+      /*
+       * Last, a row where exactly one filter does not match only counts
+       * for the side of that filter - we don't care if the current side
+       * filter is applied or not, it should only influence *other* side
+       * filtering.
+       */
+      for (int fieldId = 0; fieldId < fieldLookupSize; fieldId++) {
+        final long[] matchBitmap = matchBitmaps[fieldId];
+        if (matchBitmap == null) {
+          continue;
+        }
+        boolean anySideRows = false;
+        for (int w = 0; w < blockWords; w++) {
+          sideRows[w] = selection[w] & ~matchBitmap[w];
+          anySideRows |= sideRows[w] != 0;
+        }
+        if (!anySideRows) {
+          continue;
+        }
+        if (!columnRead[fieldId]) {
+          readColumn(
+              columns[fieldId],
+              blockStart,
+              blockLength,
+              selection,
+              selectedCount,
+              columnBlocks[fieldId]);
+          columnRead[fieldId] = true;
         }
+        addSideCounters(
+            sideCounterCountainer,
+            fieldId,
+            sideRows,
+            columnBlocks[fieldId],
+            groupValues,
+            metricBlocks,
+            runTotals);
       }
     }
     t3 = System.nanoTime();
@@ -490,6 +1257,13 @@ public class OffHeapPartition implements Partition {
             lookups,
             fieldLookup,
             metricLookup);
+    if (isCacheable) {
+      unfilteredResults.put(cacheKey, result);
+      // the partition was modified during the search, so the result might be stale
+      if (version != startVersion) {
+        unfilteredResults.remove(cacheKey, result);
+      }
+    }
     final long t1 = System.nanoTime();
     log.debug("Building result from array took {}ms", (t1 - t_pre_build) / 1000000.0);
     log.debug(
@@ -505,42 +1279,107 @@ public class OffHeapPartition implements Partition {
     return result;
   }
 
-  private boolean checkAllFilterColumnsExist(List<Filter> filters) {
+  private boolean checkAllFilterColumnsExist(List<Filter> filters, int numFields) {
     for (Filter filter : filters) {
-      if (!columns.containsKey(filter.getField())) {
+      if (getFieldId(filter.getField(), numFields) < 0) {
         return false;
       }
     }
     return true;
   }
 
-  private boolean checkAllMatch(boolean[] matches) {
-    for (int i = 0; i < matches.length; i++) {
-      if (!matches[i]) {
-        return false;
+  /*
+   * Reads values of the given rows of a block. Sparse selections are read
+   * row by row, otherwise the whole block is read at once.
+   */
+  private static void readColumn(
+      Column column, int blockStart, int blockLength, long[] rows, int numRows, int[] dst) {
+    if (numRows * SPARSE_READ_RATIO >= blockLength) {
+      column.getBlock(blockStart, dst, blockLength);
+      return;
+    }
+    for (int w = 0; w < rows.length; w++) {
+      long word = rows[w];
+      while (word != 0) {
+        final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        dst[row] = column.get(blockStart + row);
       }
     }
-    return true;
   }
 
-  private boolean checkOtherMatch(boolean[] matches, int side) {
-    for (int i = 0; i < matches.length; i++) {
-      if (!matches[i] && i != side) {
-        return false;
+  private static void readMetric(
+      Metric metric, int blockStart, int blockLength, long[] rows, int numRows, long[] dst) {
+    if (numRows * SPARSE_READ_RATIO >= blockLength) {
+      metric.getBlock(blockStart, dst, blockLength);
+      return;
+    }
+    for (int w = 0; w < rows.length; w++) {
+      long word = rows[w];
+      while (word != 0) {
+        final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        dst[row] = metric.get(blockStart + row);
       }
     }
-    return true;
   }
 
-  // TODO: maybe rewrite to a bitwise op
-  private boolean atLeastOneMatch(boolean[] matches) {
-    // boolean atLeastOneMatch = false;
-    for (int i = 0; i < matches.length; i++) {
-      if (matches[i]) {
-        return true;
+  /*
+   * Adds metrics of the rows to the side counters of the field. Metrics of
+   * a run of rows with the same value and group value are summed up into
+   * runTotals first, so rows of compacted partitions are mostly added to the
+   * counters a run at a time.
+   */
+  private static void addSideCounters(
+      CounterContainer sideCounterCountainer,
+      int fieldId,
+      long[] rows,
+      int[] columnValues,
+      int[] groupValues,
+      long[][] metricBlocks,
+      long[] runTotals) {
+    int runValueId = -1;
+    int runGroupValueId = -1;
+    for (int w = 0; w < rows.length; w++) {
+      long word = rows[w];
+      while (word != 0) {
+        final int row = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        final int groupFieldValueId = groupValues != null ? groupValues[row] : FAKE_GROUP_VALUE_ID;
+        if (columnValues[row] != runValueId || groupFieldValueId != runGroupValueId) {
+          addRun(sideCounterCountainer, fieldId, runValueId, runGroupValueId, runTotals);
+          runValueId = columnValues[row];
+          runGroupValueId = groupFieldValueId;
+        }
+        for (int mIndex = 0; mIndex < metricBlocks.length; mIndex++) {
+          runTotals[mIndex] += metricBlocks[mIndex][row];
+        }
       }
     }
-    return false;
+    addRun(sideCounterCountainer, fieldId, runValueId, runGroupValueId, runTotals);
+  }
+
+  private static void addRun(
+      CounterContainer sideCounterCountainer,
+      int fieldId,
+      int valueId,
+      int groupFieldValueId,
+      long[] runTotals) {
+    if (valueId < 0) {
+      return;
+    }
+    for (int mIndex = 0; mIndex < runTotals.length; mIndex++) {
+      sideCounterCountainer.add(fieldId, valueId, groupFieldValueId, mIndex, runTotals[mIndex]);
+      runTotals[mIndex] = 0L;
+    }
+  }
+
+  private static void selectFirst(long[] bitmap, int length) {
+    Arrays.fill(bitmap, 0L);
+    Arrays.fill(bitmap, 0, length >>> 6, -1L);
+    if ((length & 63) != 0) {
+      bitmap[length >>> 6] = (1L << length) - 1;
+    }
   }
 
   @Override
@@ -548,20 +1387,42 @@ public class OffHeapPartition implements Partition {
     return size;
   }
 
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
+  /** Returns true unless the partition is unchanged since it was written to its partition file. */
+  public boolean isModifiedSinceSave() {
+    // waits for a change in progress, a change logged before a checkpoint is part of its save
+    lock.readLock().lock();
+    try {
+      return version != savedVersion;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
   @Override
   public Map<String, Object> getStats() {
     long columnSize = columns.values().stream().mapToLong(Column::size).sum();
     long metricSize = metrics.values().stream().mapToLong(Metric::size).sum();
     int columnBlocks = columns.values().stream().mapToInt(Column::getNumBuffers).sum();
     int metricBLocks = metrics.values().stream().mapToInt(Metric::getNumBuffers).sum();
-    long lookupSize = (long) (map != null ? map.size() : 0L) * columns.size() * Short.BYTES;
+    final KeyMap map = this.map;
+    // keys hold two bytes per field, or four for fields with wide value ids
+    long lookupSize = map != null ? (long) map.size() * getMaxKeyLength() : 0L;
     Map<String, Object> stats = new HashMap<String, Object>();
     stats.put(Constants.STATS_COLUMN_SIZE, columnSize);
     stats.put(Constants.STATS_METRIC_SIZE, metricSize);
     stats.put(Constants.STATS_COLUMN_BLOCKS, columnBlocks);
     stats.put(Constants.STATS_METRIC_BLOCKS, metricBLocks);
     stats.put(Constants.STATS_LOOKUP_SIZE, lookupSize);
+    stats.put(
+        Constants.STATS_INDEX_SIZE,
+        indexes.values().stream().mapToLong(ColumnIndex::size).sum());
     stats.put(Constants.STATS_LAST_INSERT, lastInsertTs);
+    stats.put(Constants.STATS_FIRST_RECORD_APPEND, firstAppendTs);
     stats.put(Constants.STATS_LAST_RECORD_APPEND, lastAppendTs);
     stats.put(Constants.STATS_NUM_RECORDS, size);
     stats.put(Constants.STATS_NUM_COLUMNS, columns.size());
@@ -590,68 +1451,115 @@ public class OffHeapPartition implements Partition {
 
   @Override
   public void write(Kryo kryo, Output output) {
+    lock.readLock().lock();
+    try {
+      writeImpl(kryo, output);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  protected void writeImpl(Kryo kryo, Output output) {
     output.writeInt(size);
     // add fieldlookup
     kryo.writeClassAndObject(output, fieldLookup);
     // add dimension lookups
-    kryo.writeClassAndObject(output, lookups);
+    kryo.writeClassAndObject(output, new HashMap<String, Lookup>(lookups));
     // add metriclookup
     kryo.writeClassAndObject(output, metricLookup);
     // add columns
-    kryo.writeClassAndObject(output, columns);
+    kryo.writeClassAndObject(output, new HashMap<String, Column>(columns));
     // add metrics
-    kryo.writeClassAndObject(output, metrics);
+    kryo.writeClassAndObject(output, new HashMap<String, Metric>(metrics));
     lastSaveTs = System.currentTimeMillis();
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public void read(Kryo kryo, Input input) {
-    size = input.readInt();
-    fieldLookup = (Lookup) kryo.readClassAndObject(input);
-    lookups = (Map<String, Lookup>) kryo.readClassAndObject(input);
-    metricLookup = (Lookup) kryo.readClassAndObject(input);
-    columns = (Map<String, Column>) kryo.readClassAndObject(input);
-    metrics = (Map<String, Metric>) kryo.readClassAndObject(input);
-    initializeMap();
+    final int size = input.readInt();
+    final Lookup fieldLookup = (Lookup) kryo.readClassAndObject(input);
+    final Map<String, Lookup> lookups = (Map<String, Lookup>) kryo.readClassAndObject(input);
+    final Lookup metricLookup = (Lookup) kryo.readClassAndObject(input);
+    final Map<String, Column> columns = (Map<String, Column>) kryo.readClassAndObject(input);
+    final Map<String, Metric> metrics = (Map<String, Metric>) kryo.readClassAndObject(input);
+    setData(size, fieldLookup, lookups, metricLookup, columns, metrics, new HashMap<>());
   }
 
-  protected Map<String, String> bytesToMap(byte[] in) {
-    Map<String, String> out = new HashMap<String, String>();
-    ByteBuffer b = ByteBuffer.wrap(in);
+  /*
+   * Sets the data of a partition which has just been read. Zone maps missing from the given ones
+   * are built, which reads the whole column.
+   */
+  protected void setData(
+      int size,
+      Lookup fieldLookup,
+      Map<String, Lookup> lookups,
+      Lookup metricLookup,
+      Map<String, Column> columns,
+      Map<String, Metric> metrics,
+      Map<String, ZoneMap> zoneMaps) {
+    this.size = size;
+    this.fieldLookup = fieldLookup;
+    this.metricLookup = metricLookup;
+    // older snapshots contain plain hash maps
+    this.lookups = new ConcurrentHashMap<String, Lookup>(lookups);
+    this.columns = new ConcurrentHashMap<String, Column>(columns);
+    this.metrics = new ConcurrentHashMap<String, Metric>(metrics);
+    columnsById = new Column[0];
+    metricsById = new Metric[0];
+    zoneMapsById = new ZoneMap[0];
     for (int i = 0; i < fieldLookup.size(); i++) {
-      String fieldName = fieldLookup.getKey(i);
-      String fieldValue;
-      if (b.remaining() > 0) {
-        int fieldId = b.getShort();
-        fieldValue = lookups.get(fieldName).getKey(fieldId);
-        fieldValue = fieldValue.equals("null") ? null : fieldValue;
-      } else fieldValue = null;
+      final Column column = columns.get(fieldLookup.getKey(i));
+      setColumn(i, fieldLookup.getKey(i), column);
+      final ZoneMap zoneMap = zoneMaps.get(fieldLookup.getKey(i));
+      setZoneMap(i, zoneMap != null ? zoneMap : ZoneMap.build(column, size));
+    }
+    for (int i = 0; i < metricLookup.size(); i++) {
+      setMetric(i, metricLookup.getKey(i), metrics.get(metricLookup.getKey(i)));
+    }
+    // the key map is built by the first insert, most partitions never get one
+    map = null;
+    isMapExpired = false;
+  }
+
+  protected Map<String, String> rowToMap(String[] fieldNames, Column[] columns, int offset) {
+    Map<String, String> out = new HashMap<String, String>();
+    for (int i = 0; i < fieldNames.length; i++) {
+      String fieldName = fieldNames[i];
+      String fieldValue = lookups.get(fieldName).getKey(columns[i].get(offset));
+      fieldValue = fieldValue.equals("null") ? null : fieldValue;
       out.put(fieldName, fieldValue);
     }
     return out;
   }
 
-  protected Map<String, Long> metricsToMap(int offset) {
+  protected Map<String, Long> metricsToMap(String[] metricNames, Metric[] metrics, int offset) {
     Map<String, Long> out = new HashMap<String, Long>();
-    for (int i = 0; i < metricLookup.size(); i++) {
-      String metricName = metricLookup.getKey(i);
-      Long metricValue = metrics.get(metricName).get(offset);
-      out.put(metricName, metricValue);
+    for (int i = 0; i < metricNames.length; i++) {
+      out.put(metricNames[i], metrics[i].get(offset));
     }
     return out;
   }
 
+  /*
+   * Streams rows stored when the method was called, the same way searches
+   * see them, so it does not need the key map and can run during inserts.
+   */
   @Override
   public Stream<DataRow> asDataRowStream() {
-    if (map == null) initializeMap();
-    return map.entrySet()
-        .map(
-            e -> {
+    final int knownSize = size;
+    final String[] fieldNames = fieldLookup.getKeys();
+    final String[] metricNames = metricLookup.getKeys();
+    final Snapshot snapshot = getSnapshot();
+    final Column[] columns = snapshot.columns;
+    final Metric[] metrics = snapshot.metrics;
+    final int curSize = Math.min(knownSize, snapshot.size);
+    return IntStream.range(0, curSize)
+        .mapToObj(
+            offset -> {
               DataRow r = new DataRow();
-              r.setFields(bytesToMap(e.getKey()));
-              int offset = e.getValue();
-              r.setCounters(metricsToMap(offset));
+              r.setFields(rowToMap(fieldNames, columns, offset));
+              r.setCounters(metricsToMap(metricNames, metrics, offset));
               return r;
             });
   }
@@ -0,0 +1,574 @@
+package org.cubedb.offheap;
+
+import org.cubedb.core.Column;
+import org.cubedb.core.Constants;
+import org.cubedb.core.Metric;
+import org.cubedb.core.lookups.HashMapLookup;
+import org.cubedb.core.lookups.Lookup;
+import org.cubedb.core.tiny.TinyColumn;
+import org.cubedb.core.tiny.TinyMetric;
+import org.cubedb.offheap.index.ZoneMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Native file format of an {@link OffHeapPartition}. Blocks of off-heap columns and metrics are
+ * stored uncompressed and page aligned, so a partition is read by mapping them from the file
+ * instead of copying them. The mapping is private: inserts into a read partition never modify the
+ * file, and files are replaced by renaming new ones over them.
+ *
+ * <pre>
+ * int     magic number, 0x43444250
+ * int     format version
+ * int     length H of the header
+ * int     CRC32 of the header, since version 7
+ * int     CRC32 of everything after the header, since version 7
+ * H bytes header:
+ *   int     number of rows
+ *   int     number of fields F
+ *   F x     field name, value lookup, column, zone map since version 8
+ *   int     number of metrics M
+ *   M x     metric name, metric
+ *   long    write-ahead log sequence number of the last change, since version 2
+ *   long    time the first and the last row were appended, since version 7
+ *   int     flags, since version 9: 1 if rows may have the same values of all fields, 2 if the
+ *           rows are compacted
+ * zeros up to the next multiple of PAGE_SIZE
+ * blocks of off-heap columns and metrics, in the order of the header, the blocks of each one
+ *         followed by zeros up to the next multiple of PAGE_SIZE
+ * </pre>
+ *
+ * Strings are written as an int length followed by UTF-8 bytes, lookups as an int count followed
+ * by their keys ordered by id. A column or a metric starts with a byte telling whether it is tiny
+ * (1), off-heap (0) or, for columns since version 6, run-length encoded (2), then an int index of
+ * its first row and an int number of records. Run-length encoded columns are followed by an int
+ * number of bits of a value, an int number of runs and the int value id and the int index of the
+ * row after the end of every run. Tiny ones are followed by
+ * their values as unsigned shorts, or as ints when the lookup has more ids than a short holds
+ * (since version 4). Off-heap columns are followed by an int number of bits of a value (of bytes
+ * before version 3) and an int number of blocks. A zone map is an int number of longs and the
+ * summaries of {@link ZoneMap#getSummaries()}, it is built when reading older versions, which
+ * reads the whole column. Off-heap metrics are followed by an int number of
+ * blocks, and for every block by an int number of bits of a value and a long base value the
+ * values are offsets from (before version 5, like columns, with 64 bit values).
+ */
+public class PartitionFile {
+  public static final int MAGIC = 0x43444250;
+  public static final int VERSION = 9;
+  public static final int PAGE_SIZE = 4096;
+  public static final String EXTENSION = ".part";
+  // Blocks are mapped in regions of at most this size
+  private static final long MAX_MAPPING_SIZE = 1L << 30;
+  private static final int PREFIX_SIZE = 5 * Integer.BYTES;
+  private static final int LEGACY_PREFIX_SIZE = 3 * Integer.BYTES;
+  // Kind of a column which is neither tiny nor off-heap
+  private static final int RUN_LENGTH_COLUMN = 2;
+  private static final int HAS_DUPLICATE_ROWS = 1;
+  private static final int IS_COMPACTED = 2;
+
+  /** Returns the name of the file of a partition, partition names can contain any character. */
+  public static String getFileName(String partitionName) {
+    try {
+      return URLEncoder.encode(partitionName, "UTF-8") + EXTENSION;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Returns the name of the partition stored in a file, or null for other files. */
+  public static String getPartitionName(String fileName) {
+    if (!fileName.endsWith(EXTENSION)) {
+      return null;
+    }
+    try {
+      return URLDecoder.decode(
+          fileName.substring(0, fileName.length() - EXTENSION.length()), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  public static void write(OffHeapPartition p, Path file) throws IOException {
+    p.lock.readLock().lock();
+    try {
+      writeImpl(p, file);
+      // writers hold the write lock, so the version is the one written
+      p.savedVersion = p.version;
+      p.lastSaveTs = System.currentTimeMillis();
+    } finally {
+      p.lock.readLock().unlock();
+    }
+  }
+
+  private static void writeImpl(OffHeapPartition p, Path file) throws IOException {
+    // blocks of every off-heap column and metric
+    final List<List<ByteBuffer>> blocks = new ArrayList<List<ByteBuffer>>();
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(header);
+    out.writeInt(p.size);
+    final String[] fieldNames = p.fieldLookup.getKeys();
+    out.writeInt(fieldNames.length);
+    for (int f = 0; f < fieldNames.length; f++) {
+      final String fieldName = fieldNames[f];
+      writeString(out, fieldName);
+      final Lookup lookup = p.lookups.get(fieldName);
+      writeLookup(out, lookup);
+      final Column column = p.columns.get(fieldName);
+      if (column instanceof RunLengthColumn) {
+        final RunLengthColumn runs = (RunLengthColumn) column;
+        out.writeByte(RUN_LENGTH_COLUMN);
+        out.writeInt(0);
+        out.writeInt(runs.getNumRecords());
+        out.writeInt(runs.getValueBits());
+        out.writeInt(runs.getNumRuns());
+        for (int run = 0; run < runs.getNumRuns(); run++) {
+          out.writeInt(runs.getRunValue(run));
+          out.writeInt(runs.getRunEnd(run));
+        }
+      } else if (column.isTiny()) {
+        final TinyColumn tiny = (TinyColumn) column;
+        final boolean isWide = hasWideIds(lookup);
+        writeRange(out, true, tiny.getOffset(), tiny.getNumRecords());
+        for (int i = 0; i < tiny.getNumRecords(); i++) {
+          if (isWide) out.writeInt(tiny.get(tiny.getOffset() + i));
+          else out.writeShort(tiny.get(tiny.getOffset() + i));
+        }
+      } else {
+        writeOffHeap(out, (MultiBuffer) column, blocks);
+      }
+      final long[] summaries = p.zoneMapsById[f].getSummaries();
+      out.writeInt(summaries.length);
+      for (long summary : summaries) {
+        out.writeLong(summary);
+      }
+    }
+    final String[] metricNames = p.metricLookup.getKeys();
+    out.writeInt(metricNames.length);
+    for (String metricName : metricNames) {
+      writeString(out, metricName);
+      final Metric metric = p.metrics.get(metricName);
+      if (metric.isTiny()) {
+        final TinyMetric tiny = (TinyMetric) metric;
+        writeRange(out, true, tiny.getOffset(), tiny.getNumRecords());
+        for (int i = 0; i < tiny.getNumRecords(); i++) {
+          out.writeLong(tiny.get(tiny.getOffset() + i));
+        }
+      } else {
+        final OffHeapMetric offHeap = (OffHeapMetric) metric;
+        final OffHeapMetric.Block[] metricBlocks = offHeap.getBlocks();
+        final List<ByteBuffer> data = new ArrayList<ByteBuffer>(metricBlocks.length);
+        writeRange(out, false, offHeap.getStartPos(), offHeap.getNumRecords());
+        out.writeInt(metricBlocks.length);
+        for (OffHeapMetric.Block block : metricBlocks) {
+          out.writeInt(block.valueBits);
+          out.writeLong(block.base);
+          data.add(block.data);
+        }
+        blocks.add(data);
+      }
+    }
+    out.writeLong(p.logSequence);
+    out.writeLong(p.firstAppendTs);
+    out.writeLong(p.lastAppendTs);
+    out.writeInt(
+        (p.hasDuplicateRows ? HAS_DUPLICATE_ROWS : 0) | (p.isCompacted ? IS_COMPACTED : 0));
+    out.close();
+
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      // the blocks are written first, the prefix has their checksum
+      final CRC32 blocksCrc = new CRC32();
+      channel.position(align(PREFIX_SIZE + header.size()));
+      for (List<ByteBuffer> buffers : blocks) {
+        for (ByteBuffer block : buffers) {
+          final ByteBuffer data = block.duplicate();
+          data.clear();
+          blocksCrc.update(data.duplicate());
+          writeFully(channel, data);
+        }
+        // blocks of narrow columns and metrics are smaller than a page
+        final long position = channel.position();
+        final ByteBuffer padding = ByteBuffer.allocate((int) (align(position) - position));
+        blocksCrc.update(padding.duplicate());
+        writeFully(channel, padding);
+      }
+      final CRC32 headerCrc = new CRC32();
+      headerCrc.update(header.toByteArray());
+      final ByteBuffer prefix =
+          ByteBuffer.allocate((int) align(PREFIX_SIZE + header.size()))
+              .putInt(MAGIC)
+              .putInt(VERSION)
+              .putInt(header.size())
+              .putInt((int) headerCrc.getValue())
+              .putInt((int) blocksCrc.getValue())
+              .put(header.toByteArray());
+      prefix.clear();
+      channel.position(0);
+      writeFully(channel, prefix);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+
+  private static void writeRange(DataOutputStream out, boolean isTiny, int startPos, int numRecords)
+      throws IOException {
+    out.writeBoolean(isTiny);
+    out.writeInt(startPos);
+    out.writeInt(numRecords);
+  }
+
+  private static void writeOffHeap(
+      DataOutputStream out, MultiBuffer buffer, List<List<ByteBuffer>> blocks)
+      throws IOException {
+    writeRange(out, false, buffer.getStartPos(), buffer.getNumRecords());
+    out.writeInt(buffer.getValueBits());
+    out.writeInt(buffer.getNumBuffers());
+    blocks.add(buffer.getBuffers());
+  }
+
+  private static boolean hasWideIds(Lookup lookup) {
+    return Column.getValueBits(lookup.size() - 1) > Short.SIZE;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeLookup(DataOutputStream out, Lookup lookup) throws IOException {
+    final String[] keys = lookup.getKeys();
+    out.writeInt(keys.length);
+    for (String key : keys) {
+      writeString(out, key);
+    }
+  }
+
+  /**
+   * Reads a partition, mapping its column and metric blocks from the file. The checksum of the
+   * header is always checked, the one of the blocks only if {@link
+   * Constants#VERIFY_PARTITION_BLOCKS} is set, since it reads all of them.
+   */
+  public static OffHeapPartition read(Path file) throws IOException {
+    // private mappings need a channel open for writing, even though nothing is written
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+      readFully(channel, prefix, 0, LEGACY_PREFIX_SIZE);
+      prefix.flip();
+      if (prefix.getInt() != MAGIC) {
+        throw new IOException("Not a partition file: " + file);
+      }
+      final int version = prefix.getInt();
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported version " + version + " of partition file " + file);
+      }
+      final int headerSize = prefix.getInt();
+      final int prefixSize = version >= 7 ? PREFIX_SIZE : LEGACY_PREFIX_SIZE;
+      if (headerSize < 0 || prefixSize + (long) headerSize > channel.size()) {
+        throw new IOException("Truncated partition file " + file);
+      }
+      final ByteBuffer header = ByteBuffer.allocate(headerSize);
+      if (version >= 7) {
+        prefix.clear();
+        readFully(channel, prefix, 0, PREFIX_SIZE);
+        prefix.position(LEGACY_PREFIX_SIZE);
+        final int headerCrc = prefix.getInt();
+        final int blocksCrc = prefix.getInt();
+        readFully(channel, header, PREFIX_SIZE, headerSize);
+        final CRC32 crc = new CRC32();
+        crc.update(header.array());
+        if ((int) crc.getValue() != headerCrc) {
+          throw new IOException("Corrupt header of partition file " + file);
+        }
+        if (Constants.VERIFY_PARTITION_BLOCKS
+            && checksum(channel, align(PREFIX_SIZE + headerSize)) != blocksCrc) {
+          throw new IOException("Corrupt blocks of partition file " + file);
+        }
+      } else {
+        readFully(channel, header, LEGACY_PREFIX_SIZE, headerSize);
+      }
+      final DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(header.array()));
+      final BlockMapper mapper =
+          new BlockMapper(channel, align(prefixSize + headerSize), file);
+
+      final int size = in.readInt();
+      final Lookup fieldLookup = new HashMapLookup(false);
+      final Map<String, Lookup> lookups = new HashMap<String, Lookup>();
+      final Map<String, Column> columns = new HashMap<String, Column>();
+      final Map<String, ZoneMap> zoneMaps = new HashMap<String, ZoneMap>();
+      final int numFields = in.readInt();
+      for (int f = 0; f < numFields; f++) {
+        final String fieldName = readString(in);
+        fieldLookup.getValue(fieldName);
+        final Lookup lookup = readLookup(in);
+        lookups.put(fieldName, lookup);
+        final byte kind = in.readByte();
+        final int startPos = in.readInt();
+        final int numRecords = in.readInt();
+        if (kind == RUN_LENGTH_COLUMN) {
+          final int valueBits = in.readInt();
+          final int[] runValues = new int[in.readInt()];
+          final int[] runEnds = new int[runValues.length];
+          for (int run = 0; run < runValues.length; run++) {
+            runValues[run] = in.readInt();
+            runEnds[run] = in.readInt();
+          }
+          final RunLengthColumn column = new RunLengthColumn(runValues, runEnds, valueBits);
+          if (startPos != 0 || numRecords != column.getNumRecords()) {
+            throw new IOException("Invalid run-length encoded column " + fieldName);
+          }
+          columns.put(fieldName, column);
+        } else if (kind != 0) {
+          // tiny
+          final TinyColumn column =
+              new TinyColumn(startPos, Column.getValueBits(lookup.size() - 1));
+          final boolean isWide = version >= 4 && hasWideIds(lookup);
+          for (int i = 0; i < numRecords; i++) {
+            column.append(isWide ? in.readInt() : in.readUnsignedShort());
+          }
+          columns.put(fieldName, column);
+        } else {
+          final int valueBits = readValueBits(in, version);
+          if (!Column.isValidValueBits(valueBits)) {
+            throw new IOException("Column " + fieldName + " has values of " + valueBits + " bits");
+          }
+          final OffHeapColumn column = new OffHeapColumn(0, valueBits);
+          readOffHeap(in, column, valueBits, startPos, numRecords, mapper);
+          columns.put(fieldName, column);
+        }
+        if (version >= 8) {
+          final long[] summaries = new long[in.readInt()];
+          for (int i = 0; i < summaries.length; i++) {
+            summaries[i] = in.readLong();
+          }
+          try {
+            zoneMaps.put(fieldName, ZoneMap.wrap(summaries, size));
+          } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid zone map of column " + fieldName, e);
+          }
+        }
+      }
+      final Lookup metricLookup = new HashMapLookup(false);
+      final Map<String, Metric> metrics = new HashMap<String, Metric>();
+      final int numMetrics = in.readInt();
+      for (int m = 0; m < numMetrics; m++) {
+        final String metricName = readString(in);
+        metricLookup.getValue(metricName);
+        final boolean isTiny = in.readBoolean();
+        final int startPos = in.readInt();
+        final int numRecords = in.readInt();
+        if (isTiny) {
+          final TinyMetric metric = new TinyMetric(startPos);
+          for (int i = 0; i < numRecords; i++) {
+            metric.append(in.readLong());
+          }
+          metrics.put(metricName, metric);
+        } else {
+          final OffHeapMetric metric = new OffHeapMetric();
+          final OffHeapMetric.Block[] blocks =
+              version >= 5
+                  ? readMetricBlocks(in, mapper)
+                  : readLegacyMetricBlocks(in, version, mapper);
+          metric.wrap(startPos, numRecords, blocks);
+          metrics.put(metricName, metric);
+        }
+      }
+
+      final long logSequence = version >= 2 ? in.readLong() : 0;
+      final long firstAppendTs = version >= 7 ? in.readLong() : 0;
+      final long lastAppendTs = version >= 7 ? in.readLong() : 0;
+      // older files do not tell, compaction merges duplicate rows if there are any
+      final int flags = version >= 9 ? in.readInt() : size > 0 ? HAS_DUPLICATE_ROWS : 0;
+
+      final OffHeapPartition p = new OffHeapPartition();
+      p.setData(size, fieldLookup, lookups, metricLookup, columns, metrics, zoneMaps);
+      p.logSequence = logSequence;
+      p.firstAppendTs = firstAppendTs;
+      p.lastAppendTs = lastAppendTs;
+      p.hasDuplicateRows = (flags & HAS_DUPLICATE_ROWS) != 0;
+      p.isCompacted = (flags & IS_COMPACTED) != 0;
+      // files of older versions are written again by the next save, with their zone maps
+      if (version == VERSION) {
+        p.savedVersion = p.version;
+      }
+      return p;
+    } catch (EOFException e) {
+      throw new IOException("Truncated partition file " + file, e);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst, long position, int length)
+      throws IOException {
+    dst.limit(length);
+    while (dst.hasRemaining()) {
+      if (channel.read(dst, position + dst.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  // CRC32 of a file from the position to its end
+  private static int checksum(FileChannel channel, long position) throws IOException {
+    final CRC32 crc = new CRC32();
+    final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE * 16);
+    long offset = position;
+    while (true) {
+      buffer.clear();
+      final int read = channel.read(buffer, offset);
+      if (read < 0) {
+        return (int) crc.getValue();
+      }
+      buffer.flip();
+      crc.update(buffer);
+      offset += read;
+    }
+  }
+
+  private static int readValueBits(DataInputStream in, int version) throws IOException {
+    return version >= 3 ? in.readInt() : in.readInt() * Byte.SIZE;
+  }
+
+  private static void readOffHeap(
+      DataInputStream in,
+      MultiBuffer buffer,
+      int valueBits,
+      int startPos,
+      int numRecords,
+      BlockMapper mapper)
+      throws IOException {
+    final int numBlocks = in.readInt();
+    if (valueBits != buffer.getValueBits()) {
+      throw new IOException(
+          String.format("Values of %d bits, expected %d", valueBits, buffer.getValueBits()));
+    }
+    final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>(numBlocks);
+    for (int i = 0; i < numBlocks; i++) {
+      blocks.add(mapper.next(MultiBuffer.BUFFER_SIZE / Byte.SIZE * valueBits));
+    }
+    mapper.skipToPage();
+    buffer.wrap(startPos, numRecords, blocks);
+  }
+
+  private static OffHeapMetric.Block[] readMetricBlocks(DataInputStream in, BlockMapper mapper)
+      throws IOException {
+    final OffHeapMetric.Block[] blocks = new OffHeapMetric.Block[in.readInt()];
+    final int[] valueBits = new int[blocks.length];
+    final long[] bases = new long[blocks.length];
+    for (int i = 0; i < blocks.length; i++) {
+      valueBits[i] = in.readInt();
+      bases[i] = in.readLong();
+      if (valueBits[i] < 1
+          || valueBits[i] > Long.SIZE
+          || Integer.bitCount(valueBits[i]) != 1
+          || (valueBits[i] == Long.SIZE && bases[i] != 0)) {
+        throw new IOException("Metric block of " + valueBits[i] + " bits from " + bases[i]);
+      }
+    }
+    for (int i = 0; i < blocks.length; i++) {
+      final ByteBuffer data = mapper.next(OffHeapMetric.Block.getSize(valueBits[i]));
+      blocks[i] = new OffHeapMetric.Block(data, valueBits[i], bases[i]);
+    }
+    mapper.skipToPage();
+    return blocks;
+  }
+
+  // Metrics were stored in blocks of 64 bit values before version 5
+  private static OffHeapMetric.Block[] readLegacyMetricBlocks(
+      DataInputStream in, int version, BlockMapper mapper) throws IOException {
+    final int valueBits = readValueBits(in, version);
+    if (valueBits != Long.SIZE) {
+      throw new IOException(String.format("Values of %d bits, expected %d", valueBits, Long.SIZE));
+    }
+    final OffHeapMetric.Block[] blocks = new OffHeapMetric.Block[in.readInt()];
+    for (int i = 0; i < blocks.length; i++) {
+      final ByteBuffer data = mapper.next(OffHeapMetric.Block.getSize(valueBits));
+      blocks[i] = new OffHeapMetric.Block(data, valueBits, 0);
+    }
+    mapper.skipToPage();
+    return blocks;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static Lookup readLookup(DataInputStream in) throws IOException {
+    final Lookup lookup = new HashMapLookup(false);
+    final int numKeys = in.readInt();
+    for (int i = 0; i < numKeys; i++) {
+      lookup.getValue(readString(in));
+    }
+    return lookup;
+  }
+
+  // Maps consecutive blocks of a file, a region of up to MAX_MAPPING_SIZE at a time
+  private static class BlockMapper {
+    private final FileChannel channel;
+    private final long fileSize;
+    private final Path file;
+    private long offset;
+    private ByteBuffer region;
+    private long regionStart;
+
+    BlockMapper(FileChannel channel, long offset, Path file) throws IOException {
+      this.channel = channel;
+      this.fileSize = channel.size();
+      this.offset = offset;
+      this.file = file;
+    }
+
+    ByteBuffer next(int length) throws IOException {
+      if (offset + length > fileSize) {
+        throw new IOException("Truncated partition file " + file);
+      }
+      if (region == null || offset + length > regionStart + region.capacity()) {
+        regionStart = offset;
+        final long regionSize = Math.min(MAX_MAPPING_SIZE, fileSize - offset);
+        region = channel.map(FileChannel.MapMode.PRIVATE, regionStart, regionSize);
+      }
+      final ByteBuffer block = region.duplicate();
+      block.position((int) (offset - regionStart));
+      block.limit(block.position() + length);
+      offset += length;
+      return block.slice();
+    }
+
+    void skipToPage() {
+      offset = align(offset);
+    }
+  }
+}
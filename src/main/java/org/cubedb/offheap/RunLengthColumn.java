@@ -0,0 +1,206 @@
+package org.cubedb.offheap;
+
+import org.cubedb.core.Column;
+import org.cubedb.offheap.matchers.IdMatcher;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.Arrays;
+
+/**
+ * A read-only column of a compacted partition, stored as runs of rows with the same value id.
+ * Rows of compacted partitions are sorted, so columns with few distinct values take a few runs.
+ * Inserts into a compacted partition first replace its run-length columns by {@link #widen(int)}.
+ */
+public class RunLengthColumn implements Column, KryoSerializable {
+  private int[] runValues;
+  // Index of the row after the last one of every run, ascending
+  private int[] runEnds;
+  private int valueBits;
+
+  public RunLengthColumn() {
+    this(new int[0], new int[0], 1);
+  }
+
+  RunLengthColumn(int[] runValues, int[] runEnds, int valueBits) {
+    if (!Column.isValidValueBits(valueBits)) {
+      throw new IllegalArgumentException("Columns can not have values of " + valueBits + " bits");
+    }
+    this.runValues = runValues;
+    this.runEnds = runEnds;
+    this.valueBits = valueBits;
+  }
+
+  /**
+   * Encodes the first numRecords values into runs, or returns null when the runs would take more
+   * space than a column of values of valueBits bits.
+   */
+  public static RunLengthColumn encode(int[] values, int numRecords, int valueBits) {
+    int numRuns = 0;
+    for (int i = 0; i < numRecords; i++) {
+      if (i == 0 || values[i] != values[i - 1]) {
+        numRuns++;
+      }
+    }
+    if ((long) numRuns * 2 * Integer.BYTES >= (long) numRecords * valueBits / Byte.SIZE) {
+      return null;
+    }
+    final int[] runValues = new int[numRuns];
+    final int[] runEnds = new int[numRuns];
+    int run = -1;
+    for (int i = 0; i < numRecords; i++) {
+      if (i == 0 || values[i] != values[i - 1]) {
+        runValues[++run] = values[i];
+      }
+      runEnds[run] = i + 1;
+    }
+    return new RunLengthColumn(runValues, runEnds, valueBits);
+  }
+
+  // Index of the run of a row
+  private int findRun(int index) {
+    final int run = Arrays.binarySearch(runEnds, index);
+    return run >= 0 ? run + 1 : -run - 1;
+  }
+
+  public int getNumRuns() {
+    return runValues.length;
+  }
+
+  int getRunValue(int run) {
+    return runValues[run];
+  }
+
+  int getRunEnd(int run) {
+    return runEnds[run];
+  }
+
+  @Override
+  public void append(int value) {
+    throw new UnsupportedOperationException("Run-length encoded columns are read-only");
+  }
+
+  @Override
+  public int get(int index) {
+    if (index < 0 || index >= getNumRecords()) return 0;
+    return runValues[findRun(index)];
+  }
+
+  @Override
+  public void getBlock(int fromIndex, int[] dst, int length) {
+    final int end = Math.max(0, Math.min(length, getNumRecords() - fromIndex));
+    int i = 0;
+    for (int run = findRun(fromIndex); i < end; run++) {
+      final int runEnd = Math.min(runEnds[run] - fromIndex, end);
+      Arrays.fill(dst, i, runEnd, runValues[run]);
+      i = runEnd;
+    }
+    Arrays.fill(dst, i, length, 0);
+  }
+
+  /**
+   * Sets bits of {@code bitmap} for rows {@code [fromIndex, fromIndex + length)} which match the
+   * matcher, testing every run once instead of every row. All other bits are cleared.
+   */
+  public void match(IdMatcher matcher, int fromIndex, int length, long[] bitmap) {
+    Arrays.fill(bitmap, 0L);
+    final int end = Math.max(0, Math.min(length, getNumRecords() - fromIndex));
+    int i = 0;
+    for (int run = findRun(fromIndex); i < end; run++) {
+      final int runEnd = Math.min(runEnds[run] - fromIndex, end);
+      if (matcher.match(runValues[run])) {
+        setRange(bitmap, i, runEnd);
+      }
+      i = runEnd;
+    }
+  }
+
+  // Sets bits [from, to) of the bitmap
+  private static void setRange(long[] bitmap, int from, int to) {
+    if (from >= to) {
+      return;
+    }
+    final int fromWord = from >>> 6;
+    final int toWord = (to - 1) >>> 6;
+    final long fromMask = -1L << from;
+    final long toMask = -1L >>> -to;
+    if (fromWord == toWord) {
+      bitmap[fromWord] |= fromMask & toMask;
+      return;
+    }
+    bitmap[fromWord] |= fromMask;
+    Arrays.fill(bitmap, fromWord + 1, toWord, -1L);
+    bitmap[toWord] |= toMask;
+  }
+
+  @Override
+  public int getValueBits() {
+    return valueBits;
+  }
+
+  @Override
+  public Column widen(int valueBits) {
+    if (valueBits < this.valueBits) {
+      throw new IllegalArgumentException("Can not narrow a column to " + valueBits + " bits");
+    }
+    final OffHeapColumn column = new OffHeapColumn(0, valueBits);
+    for (int run = 0, i = 0; run < runValues.length; run++) {
+      for (; i < runEnds[run]; i++) {
+        column.append(runValues[run]);
+      }
+    }
+    return column;
+  }
+
+  @Override
+  public long size() {
+    return (long) runValues.length * 2 * Integer.BYTES;
+  }
+
+  @Override
+  public void free() {
+    runValues = new int[0];
+    runEnds = new int[0];
+  }
+
+  @Override
+  public int getNumBuffers() {
+    return 0;
+  }
+
+  @Override
+  public int getNumRecords() {
+    return runEnds.length == 0 ? 0 : runEnds[runEnds.length - 1];
+  }
+
+  @Override
+  public boolean isTiny() {
+    return false;
+  }
+
+  // Serialized as the number of bits of a value, the number of runs and the value and end of runs
+  @Override
+  public void write(Kryo kryo, Output output) {
+    output.writeInt(valueBits);
+    output.writeInt(runValues.length);
+    for (int run = 0; run < runValues.length; run++) {
+      output.writeInt(runValues[run]);
+      output.writeInt(runEnds[run]);
+    }
+  }
+
+  @Override
+  public void read(Kryo kryo, Input input) {
+    valueBits = input.readInt();
+    final int numRuns = input.readInt();
+    runValues = new int[numRuns];
+    runEnds = new int[numRuns];
+    for (int run = 0; run < numRuns; run++) {
+      runValues[run] = input.readInt();
+      runEnds[run] = input.readInt();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package org.cubedb.offheap.index;
+
+import org.cubedb.core.Column;
+import org.cubedb.offheap.matchers.IdMatcher;
+
+import java.util.Arrays;
+
+/**
+ * An inverted index of a column: value id -> bitmap of rows having this value. Covers the first
+ * {@link #getNumRows()} rows of the column.
+ */
+public class ColumnIndex {
+  private final Column column;
+  private final RowBitmap[] bitmaps;
+  private final int numRows;
+
+  protected ColumnIndex(Column column, RowBitmap[] bitmaps, int numRows) {
+    this.column = column;
+    this.bitmaps = bitmaps;
+    this.numRows = numRows;
+  }
+
+  public static ColumnIndex build(Column column, int numRows) {
+    RowBitmap[] bitmaps = new RowBitmap[16];
+    final int[] block = new int[Math.min(RowBitmap.BLOCK_SIZE, Math.max(numRows, 1))];
+    for (int blockStart = 0; blockStart < numRows; blockStart += block.length) {
+      final int blockLength = Math.min(block.length, numRows - blockStart);
+      column.getBlock(blockStart, block, blockLength);
+      for (int i = 0; i < blockLength; i++) {
+        final int valueId = block[i];
+        if (valueId >= bitmaps.length) {
+          bitmaps = Arrays.copyOf(bitmaps, Math.max(bitmaps.length * 2, valueId + 1));
+        }
+        if (bitmaps[valueId] == null) {
+          bitmaps[valueId] = new RowBitmap();
+        }
+        bitmaps[valueId].add(blockStart + i);
+      }
+    }
+    return new ColumnIndex(column, bitmaps, numRows);
+  }
+
+  /**
+   * Sets bits of {@code bitmap} for rows of the {@code blockId}-th block which match the matcher.
+   * All other bits are cleared.
+   */
+  public void match(IdMatcher matcher, int blockId, long[] bitmap) {
+    Arrays.fill(bitmap, 0L);
+    for (int valueId : matcher.getValues()) {
+      if (valueId >= 0 && valueId < bitmaps.length && bitmaps[valueId] != null) {
+        bitmaps[valueId].orInto(blockId, bitmap);
+      }
+    }
+  }
+
+  /** Returns the column the index was built from. */
+  public Column getColumn() {
+    return column;
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  public long size() {
+    long size = (long) bitmaps.length * 8;
+    for (RowBitmap b : bitmaps) {
+      if (b != null) {
+        size += b.size();
+      }
+    }
+    return size;
+  }
+}
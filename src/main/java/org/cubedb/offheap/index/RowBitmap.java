@@ -0,0 +1,106 @@
+package org.cubedb.offheap.index;
+
+import org.cubedb.core.Constants;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of row numbers, split into blocks of {@link Constants#INITIAL_PARTITION_SIZE}
+ * rows (the same blocks the partition scan works with). Like in roaring bitmaps, each non-empty
+ * block is stored either as a sorted array of row offsets (sparse blocks) or as a plain bitmap
+ * (dense blocks).
+ *
+ * <p>Rows have to be added in ascending order.
+ */
+public class RowBitmap {
+  static final int BLOCK_SIZE = Constants.INITIAL_PARTITION_SIZE;
+  private static final int BLOCK_WORDS = (BLOCK_SIZE + 63) >>> 6;
+  // An array container takes more space than a bitmap one above this cardinality
+  private static final int MAX_ARRAY_CARDINALITY = BLOCK_WORDS * Long.BYTES / Short.BYTES;
+
+  private int[] blockIds = new int[1];
+  // short[] for array containers, long[] for bitmap containers
+  private Object[] containers = new Object[1];
+  // cardinality of each container
+  private int[] counts = new int[1];
+  private int numContainers;
+  private int cardinality;
+
+  public void add(int row) {
+    final int blockId = row / BLOCK_SIZE;
+    final int offset = row % BLOCK_SIZE;
+    if (numContainers == 0 || blockIds[numContainers - 1] != blockId) {
+      if (numContainers == blockIds.length) {
+        final int newLength = numContainers * 2;
+        blockIds = Arrays.copyOf(blockIds, newLength);
+        containers = Arrays.copyOf(containers, newLength);
+        counts = Arrays.copyOf(counts, newLength);
+      }
+      blockIds[numContainers] = blockId;
+      containers[numContainers] = new short[4];
+      counts[numContainers] = 0;
+      numContainers++;
+    }
+    final int c = numContainers - 1;
+    final int count = counts[c];
+    if (containers[c] instanceof short[]) {
+      short[] rows = (short[]) containers[c];
+      if (count < MAX_ARRAY_CARDINALITY) {
+        if (count == rows.length) {
+          rows = Arrays.copyOf(rows, Math.min(count * 2, MAX_ARRAY_CARDINALITY));
+          containers[c] = rows;
+        }
+        rows[count] = (short) offset;
+      } else {
+        final long[] bitmap = new long[BLOCK_WORDS];
+        for (int i = 0; i < count; i++) {
+          bitmap[rows[i] >>> 6] |= 1L << rows[i];
+        }
+        bitmap[offset >>> 6] |= 1L << offset;
+        containers[c] = bitmap;
+      }
+    } else {
+      ((long[]) containers[c])[offset >>> 6] |= 1L << offset;
+    }
+    counts[c] = count + 1;
+    cardinality++;
+  }
+
+  /**
+   * Sets bits of {@code bitmap} for rows of the {@code blockId}-th block which are in this set. Bit
+   * {@code i} of the bitmap corresponds to row {@code blockId * BLOCK_SIZE + i}.
+   */
+  public void orInto(int blockId, long[] bitmap) {
+    final int c = Arrays.binarySearch(blockIds, 0, numContainers, blockId);
+    if (c < 0) {
+      return;
+    }
+    if (containers[c] instanceof short[]) {
+      final short[] rows = (short[]) containers[c];
+      for (int i = 0; i < counts[c]; i++) {
+        final int offset = rows[i];
+        bitmap[offset >>> 6] |= 1L << offset;
+      }
+    } else {
+      final long[] words = (long[]) containers[c];
+      for (int w = 0; w < bitmap.length; w++) {
+        bitmap[w] |= words[w];
+      }
+    }
+  }
+
+  public int getCardinality() {
+    return cardinality;
+  }
+
+  public long size() {
+    long size = (long) blockIds.length * (Integer.BYTES * 2 + 8);
+    for (int c = 0; c < numContainers; c++) {
+      size +=
+          containers[c] instanceof short[]
+              ? ((short[]) containers[c]).length * Short.BYTES
+              : BLOCK_WORDS * Long.BYTES;
+    }
+    return size;
+  }
+}
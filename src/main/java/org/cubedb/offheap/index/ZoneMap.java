@@ -0,0 +1,143 @@
+package org.cubedb.offheap.index;
+
+import org.cubedb.core.Column;
+import org.cubedb.core.Constants;
+import org.cubedb.offheap.matchers.IdMatcher;
+
+import java.util.Arrays;
+
+/**
+ * Summaries of the value ids of a column per block of {@link Constants#INITIAL_PARTITION_SIZE}
+ * rows (the same blocks the partition scan works with): a bitmap of the ids below 64, and the
+ * smallest and the largest id. Searches skip evaluating a matcher over a block when the summary
+ * tells that it matches none or all of its rows.
+ *
+ * <p>Values are appended row by row by a single writer. A summary only ever grows, so a search
+ * reading it while rows are appended sees a summary of at least the rows it knows of.
+ */
+public class ZoneMap {
+  static final int BLOCK_SIZE = Constants.INITIAL_PARTITION_SIZE;
+  public static final int MATCHES_NONE = 0;
+  public static final int MATCHES_SOME = 1;
+  public static final int MATCHES_ALL = 2;
+
+  // Bitmap and smallest and largest id (as the high and the low int) of every block
+  private volatile long[] blocks = new long[2];
+  private int numRows;
+
+  /** Builds the summaries of the first numRows rows of the column. */
+  public static ZoneMap build(Column column, int numRows) {
+    final ZoneMap zoneMap = new ZoneMap();
+    final int[] block = new int[BLOCK_SIZE];
+    for (int blockStart = 0; blockStart < numRows; blockStart += BLOCK_SIZE) {
+      final int blockLength = Math.min(BLOCK_SIZE, numRows - blockStart);
+      column.getBlock(blockStart, block, blockLength);
+      for (int i = 0; i < blockLength; i++) {
+        zoneMap.add(block[i]);
+      }
+    }
+    return zoneMap;
+  }
+
+  /** Returns a zone map of numRows rows with summaries returned by {@link #getSummaries()}. */
+  public static ZoneMap wrap(long[] summaries, int numRows) {
+    if (summaries.length != getNumBlocks(numRows) * 2) {
+      throw new IllegalArgumentException(
+          summaries.length / 2 + " summaries for " + numRows + " rows");
+    }
+    final ZoneMap zoneMap = new ZoneMap();
+    // the array grows by doubling, which needs room for a block
+    zoneMap.blocks = Arrays.copyOf(summaries, Math.max(2, summaries.length));
+    zoneMap.numRows = numRows;
+    return zoneMap;
+  }
+
+  /** Returns the summaries of the blocks with rows, as two longs per block. */
+  public long[] getSummaries() {
+    return Arrays.copyOf(blocks, getNumBlocks(numRows) * 2);
+  }
+
+  private static int getNumBlocks(int numRows) {
+    return (numRows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /** Adds the value id of the next row. */
+  public void add(int valueId) {
+    final int index = numRows / BLOCK_SIZE * 2;
+    long[] blocks = this.blocks;
+    if (index == blocks.length) {
+      blocks = Arrays.copyOf(blocks, blocks.length * 2);
+      this.blocks = blocks;
+    }
+    final long bit = valueId < Long.SIZE ? 1L << valueId : 0L;
+    if (numRows % BLOCK_SIZE == 0) {
+      blocks[index] = bit;
+      blocks[index + 1] = range(valueId, valueId);
+    } else {
+      final long range = blocks[index + 1];
+      blocks[index] |= bit;
+      if (valueId < getMin(range) || valueId > getMax(range)) {
+        blocks[index + 1] =
+            range(Math.min(valueId, getMin(range)), Math.max(valueId, getMax(range)));
+      }
+    }
+    numRows++;
+  }
+
+  private static long range(int min, int max) {
+    return (long) min << 32 | max & 0xFFFFFFFFL;
+  }
+
+  private static int getMin(long range) {
+    return (int) (range >> 32);
+  }
+
+  private static int getMax(long range) {
+    return (int) range;
+  }
+
+  public int getNumRows() {
+    return numRows;
+  }
+
+  /**
+   * Tells whether the matcher matches none, some or all of the rows of the {@code blockId}-th
+   * block. Some is returned whenever the summary can not tell.
+   */
+  public int match(IdMatcher matcher, int blockId) {
+    final int[] values = matcher.getValues();
+    final long[] blocks = this.blocks;
+    if (values.length == 0 || blockId * 2 >= blocks.length) {
+      return MATCHES_SOME;
+    }
+    final long bitmap = blocks[blockId * 2];
+    final long range = blocks[blockId * 2 + 1];
+    final int min = getMin(range);
+    final int max = getMax(range);
+    boolean matchesAny = false;
+    long matchedBits = 0L;
+    boolean matchesMin = false;
+    for (int v : values) {
+      if (v < min || v > max) {
+        continue;
+      }
+      if (v < Long.SIZE) {
+        matchedBits |= 1L << v;
+        matchesAny |= (bitmap & 1L << v) != 0;
+      } else {
+        matchesAny = true;
+      }
+      matchesMin |= v == min;
+    }
+    if (!matchesAny) {
+      return MATCHES_NONE;
+    }
+    final boolean matchesAll =
+        max < Long.SIZE ? (bitmap & ~matchedBits) == 0 : min == max && matchesMin;
+    return matchesAll ? MATCHES_ALL : MATCHES_SOME;
+  }
+
+  public long size() {
+    return (long) blocks.length * Long.BYTES;
+  }
+}
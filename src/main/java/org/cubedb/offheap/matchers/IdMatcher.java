@@ -40,10 +40,32 @@ public class IdMatcher {
     }
   }
 
+  public int[] getValues() {
+    return values;
+  }
+
   public boolean match(final int v) {
     return matcher.test(v);
   }
 
+  /**
+   * Evaluates the matcher over the first {@code length} value ids of a block, setting bit {@code i}
+   * of {@code bitmap} when {@code valueIds[i]} matches. All other bits are cleared.
+   */
+  public void match(final int[] valueIds, final int length, final long[] bitmap) {
+    Arrays.fill(bitmap, 0L);
+    if (values.length == 1) {
+      final int v = values[0];
+      for (int i = 0; i < length; i++) {
+        bitmap[i >>> 6] |= (valueIds[i] == v ? 1L : 0L) << i;
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        if (matcher.test(valueIds[i])) bitmap[i >>> 6] |= 1L << i;
+      }
+    }
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -1,5 +1,10 @@
 package com.cfelde.bohmap;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 
@@ -17,4 +22,44 @@ public class BOHMapTest {
 		keyBinary = new Binary(new byte[] { 1, 0, 0, 0 });
 		map.put(keyBinary, valueBinary); // should not crash here
 	}
+
+	@Test
+	public void testPutGetInt() {
+		BOHMap map = new BOHMap(16);
+		byte[] key = new byte[] { 0, 1, 0, 2 };
+		assertEquals(-1, map.getInt(key, -1));
+		assertTrue(map.putInt(key, 5));
+		// the key is copied, so the array can be reused
+		key[3] = 3;
+		assertEquals(-1, map.getInt(key, -1));
+		assertTrue(map.putInt(key, 1 << 20));
+		assertFalse(map.putInt(key, -7));
+		assertEquals(-7, map.getInt(key, -1));
+		assertEquals(5, map.getInt(new byte[] { 0, 1, 0, 2 }, -1));
+		assertEquals(2, map.size());
+		// values are compatible with the Binary based methods
+		assertArrayEquals(new byte[] { 0, 0, 0, 5 }, map.get(new Binary(new byte[] { 0, 1, 0, 2 })).getValue());
+	}
+
+	@Test
+	public void testMovePartition() {
+		BOHMap source = new BOHMap(4);
+		BOHMap target = new BOHMap(16);
+		for (int i = 0; i < 100; i++) {
+			source.putInt(new byte[] { 0, (byte) i }, i);
+		}
+		int moved = 0;
+		for (int p = 0; p < source.getPartitionCount(); p++) {
+			moved += source.movePartition(p, target);
+		}
+		assertEquals(100, moved);
+		assertEquals(0, source.size());
+		assertEquals(100, target.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(-1, source.getInt(new byte[] { 0, (byte) i }, -1));
+			assertEquals(i, target.getInt(new byte[] { 0, (byte) i }, -1));
+		}
+		assertFalse(target.putInt(new byte[] { 0, 7 }, 1));
+		assertEquals(1, target.getInt(new byte[] { 0, 7 }, -1));
+	}
 }
@@ -0,0 +1,111 @@
+package org.cubedb.api.ext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.cubedb.core.beans.ColumnarBatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class ColumnarBatchFormatTest {
+
+  @Test
+  public void testWriteRead() throws IOException {
+    final int numRows = 20000;
+    final int[][] fieldValues = new int[2][numRows];
+    final long[][] metricValues = new long[1][numRows];
+    for (int i = 0; i < numRows; i++) {
+      fieldValues[0][i] = i % 3;
+      fieldValues[1][i] = i % 2 == 0 ? -1 : 1;
+      metricValues[0][i] = i;
+    }
+    ColumnarBatch batch =
+        new ColumnarBatch(
+            "cube",
+            "p",
+            new String[] {"f1", "f2"},
+            new String[] {"c"},
+            new String[] {"v1", "v2", null},
+            numRows,
+            fieldValues,
+            metricValues);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    ColumnarBatchFormat.write(out, batch);
+    ColumnarBatchFormat.write(out, batch);
+    out.flush();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    for (int b = 0; b < 2; b++) {
+      ColumnarBatch read = ColumnarBatchFormat.read(in);
+      assertEquals("cube", read.getCubeName());
+      assertEquals("p", read.getPartition());
+      assertArrayEquals(batch.getFieldNames(), read.getFieldNames());
+      assertArrayEquals(batch.getMetricNames(), read.getMetricNames());
+      assertArrayEquals(batch.getValues(), read.getValues());
+      assertEquals(numRows, read.getNumRows());
+      assertArrayEquals(fieldValues[0], read.getFieldValues()[0]);
+      assertArrayEquals(fieldValues[1], read.getFieldValues()[1]);
+      assertArrayEquals(metricValues[0], read.getMetricValues()[0]);
+    }
+    assertNull(ColumnarBatchFormat.read(in));
+  }
+
+  @Test(expected = MalformedBatchException.class)
+  public void testReadTooManyRows() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(ColumnarBatchFormat.MAGIC);
+    out.writeUTF("cube");
+    out.writeUTF("p");
+    out.writeInt(2);
+    out.writeBoolean(false);
+    out.writeUTF("f1");
+    out.writeBoolean(false);
+    out.writeUTF("f2");
+    out.writeInt(0);
+    out.writeInt(0);
+    // the columns are not allocated
+    out.writeInt(Integer.MAX_VALUE);
+    out.flush();
+    ColumnarBatchFormat.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test(expected = MalformedBatchException.class)
+  public void testReadTooManyStrings() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(ColumnarBatchFormat.MAGIC);
+    out.writeUTF("cube");
+    out.writeUTF("p");
+    out.writeInt(Integer.MAX_VALUE);
+    out.flush();
+    ColumnarBatchFormat.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadOutOfRangeValue() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(ColumnarBatchFormat.MAGIC);
+    out.writeUTF("cube");
+    out.writeUTF("p");
+    out.writeInt(1);
+    out.writeBoolean(false);
+    out.writeUTF("f1");
+    out.writeInt(0);
+    out.writeInt(0);
+    out.writeInt(1);
+    out.writeInt(0);
+    out.flush();
+    ColumnarBatchFormat.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+}
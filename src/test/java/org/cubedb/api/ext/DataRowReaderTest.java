@@ -0,0 +1,63 @@
+package org.cubedb.api.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cubedb.core.beans.DataRow;
+import org.cubedb.utils.TestUtils;
+
+import com.jsoniter.output.JsonStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class DataRowReaderTest {
+
+  private InputStream toStream(String json) {
+    return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testReadInChunks() throws IOException {
+    List<DataRow> data = TestUtils.genSimpleData("cubeName", "p", "f", "c", 25);
+    try (DataRowReader reader = new DataRowReader(toStream(JsonStream.serialize(data)))) {
+      List<DataRow> chunk = reader.next(10);
+      assertEquals(data.subList(0, 10), chunk);
+      chunk = reader.next(10);
+      assertEquals(data.subList(10, 20), chunk);
+      chunk = reader.next(10);
+      assertEquals(data.subList(20, 25), chunk);
+      assertTrue(reader.next(10).isEmpty());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testReadNullsAndUnknownFields() throws IOException {
+    String json =
+        "[{\"cubeName\": \"c\", \"partition\": \"p\", \"extra\": {\"a\": [1, 2]},"
+            + " \"fields\": {\"f1\": null, \"f2\": \"v\"}, \"counters\": {\"c\": 3}}]";
+    try (DataRowReader reader = new DataRowReader(toStream(json))) {
+      DataRow row = reader.next();
+      assertEquals("c", row.getCubeName());
+      assertEquals("p", row.getPartition());
+      assertTrue(row.getFields().containsKey("f1"));
+      assertNull(row.getFields().get("f1"));
+      assertEquals("v", row.getFields().get("f2"));
+      assertEquals(3L, row.getCounters().get("c").longValue());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testReadEmpty() throws IOException {
+    try (DataRowReader reader = new DataRowReader(toStream("[]"))) {
+      assertTrue(reader.next(10).isEmpty());
+    }
+  }
+}
@@ -3,10 +3,13 @@ package org.cubedb.api.filters;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import org.cubedb.api.ext.MalformedBatchException;
+import org.cubedb.api.resources.PartialInsertException;
 import org.junit.Test;
 
 import javax.ws.rs.core.Response;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 /** Created by krash on 28.06.17. */
 public class GenericExceptionMapperTest {
@@ -24,4 +27,25 @@ public class GenericExceptionMapperTest {
     assertTrue(map.containsKey("causedBy"));
     assertTrue(map.containsKey("trace"));
   }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void toResponsePartialInsert() throws Exception {
+    GenericExceptionMapper mapper = new GenericExceptionMapper();
+    Response response =
+        mapper.toResponse(new PartialInsertException(20000, new IllegalStateException("bad row")));
+    assertEquals(Response.Status.INTERNAL_SERVER_ERROR, response.getStatusInfo());
+    Map<String, String> map = (Map<String, String>) response.getEntity();
+    assertEquals("20000", map.get("numInsertedRows"));
+
+    // an overloaded server still asks to retry the rest of the rows later
+    response =
+        mapper.toResponse(new PartialInsertException(0, new RejectedExecutionException("busy")));
+    assertEquals(Response.Status.SERVICE_UNAVAILABLE, response.getStatusInfo());
+
+    // so does a malformed body, whose rows are not retried
+    response =
+        mapper.toResponse(new PartialInsertException(0, new MalformedBatchException("too large")));
+    assertEquals(Response.Status.BAD_REQUEST, response.getStatusInfo());
+  }
 }
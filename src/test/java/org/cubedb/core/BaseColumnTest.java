@@ -2,6 +2,8 @@ package org.cubedb.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +20,8 @@ public abstract class BaseColumnTest {
 
   protected abstract Column createColumn();
 
+  protected abstract Column createColumn(int valueBits);
+
   @Test
   public void testInitialState() {
     assertEquals(0, column.getNumRecords());
@@ -35,4 +39,81 @@ public abstract class BaseColumnTest {
     }
     assertNotEquals(0, column.size());
   }
+
+  @Test
+  public void testGetBlock() {
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE + 100;
+    for (int i = 0; i < numRecords; i++) {
+      column.append(i % 1000);
+    }
+    int[] block = new int[200];
+    column.getBlock(Constants.INITIAL_PARTITION_SIZE - 50, block, block.length);
+    for (int i = 0; i < block.length; i++) {
+      int index = Constants.INITIAL_PARTITION_SIZE - 50 + i;
+      assertEquals(index < numRecords ? index % 1000 : 0, block[i]);
+    }
+  }
+
+  @Test
+  public void testValueBits() {
+    assertEquals(1, Column.getValueBits(0));
+    assertEquals(1, Column.getValueBits(1));
+    assertEquals(2, Column.getValueBits(3));
+    assertEquals(4, Column.getValueBits(4));
+    assertEquals(8, Column.getValueBits(255));
+    assertEquals(16, Column.getValueBits(256));
+    assertEquals(16, Column.getValueBits(65535));
+    assertEquals(32, Column.getValueBits(65536));
+    assertEquals(32, Column.getValueBits(-1));
+  }
+
+  @Test
+  public void testNarrowValues() {
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE + 100;
+    int[] block = new int[numRecords];
+    for (int valueBits = 1; valueBits < Integer.SIZE; valueBits *= 2) {
+      Column column = createColumn(valueBits);
+      final int numValues = 1 << valueBits;
+      for (int i = 0; i < numRecords; i++) {
+        column.append(i * 7 % numValues);
+      }
+      assertEquals(valueBits, column.getValueBits());
+      for (int i = 0; i < numRecords; i++) {
+        assertEquals(i * 7 % numValues, column.get(i));
+      }
+      column.getBlock(3, block, numRecords);
+      for (int i = 0; i < numRecords; i++) {
+        assertEquals(i + 3 < numRecords ? (i + 3) * 7 % numValues : 0, block[i]);
+      }
+      try {
+        column.append(numValues);
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals(numRecords, column.getNumRecords());
+      }
+    }
+  }
+
+  @Test
+  public void testWiden() {
+    Column column = createColumn(1);
+    for (int i = 0; i < 100; i++) {
+      column.append(i % 2);
+    }
+    Column wide = column.widen(8);
+    assertEquals(8, wide.getValueBits());
+    wide.append(200);
+    assertEquals(100, column.getNumRecords());
+    assertEquals(101, wide.getNumRecords());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i % 2, wide.get(i));
+    }
+    assertEquals(200, wide.get(100));
+    assertTrue(wide.size() > column.size());
+
+    wide = wide.widen(32);
+    wide.append(Integer.MAX_VALUE);
+    assertEquals(200, wide.get(100));
+    assertEquals(Integer.MAX_VALUE, wide.get(101));
+  }
 }
@@ -42,4 +42,43 @@ public abstract class BaseMetricTest {
     metric.incrementBy(0, 100);
     assertEquals(100, metric.get(0));
   }
+
+  @Test
+  public void testGetBlock() {
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE + 100;
+    for (int i = 0; i < numRecords; i++) {
+      metric.append(i);
+    }
+    long[] block = new long[200];
+    metric.getBlock(Constants.INITIAL_PARTITION_SIZE - 50, block, block.length);
+    for (int i = 0; i < block.length; i++) {
+      int index = Constants.INITIAL_PARTITION_SIZE - 50 + i;
+      assertEquals(index < numRecords ? index : 0L, block[i]);
+    }
+  }
+
+  @Test
+  public void testWideValues() {
+    final long[] values = {
+      1, 255, 256, 65535, 65536, 1L << 32, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0
+    };
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE + values.length;
+    for (int i = 0; i < numRecords; i++) {
+      metric.append(i < Constants.INITIAL_PARTITION_SIZE ? 1 : values[i % values.length]);
+    }
+    metric.incrementBy(10, 1L << 40);
+    metric.incrementBy(11, -2);
+    metric.incrementBy(numRecords - 1, 300);
+    for (int i = 0; i < numRecords; i++) {
+      long expected = i < Constants.INITIAL_PARTITION_SIZE ? 1 : values[i % values.length];
+      if (i == 10) {
+        expected += 1L << 40;
+      } else if (i == 11) {
+        expected -= 2;
+      } else if (i == numRecords - 1) {
+        expected += 300;
+      }
+      assertEquals(expected, metric.get(i));
+    }
+  }
 }
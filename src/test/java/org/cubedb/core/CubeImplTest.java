@@ -2,6 +2,9 @@ package org.cubedb.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.commons.io.output.NullOutputStream;
 import org.junit.Test;
@@ -26,7 +29,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
@@ -98,6 +103,76 @@ public class CubeImplTest {
     // cube.in
   }
 
+  @Test
+  public void testQueryCache() {
+    Cube cube = new CubeImpl("ts");
+    for (int i = 0; i < 3; i++) {
+      List<DataRow> data = TestUtils.genMultiColumnData("f", 3, 3);
+      for (DataRow d : data) {
+        d.setPartition("p_" + i);
+      }
+      cube.insert(data);
+    }
+    List<Filter> filters = TestUtils.getFilterFor("f_1", "f_1_0");
+    Map<GroupedSearchResultRow, Long> result = cube.get("p_0", "p_2", filters, null);
+    assertSame(result, cube.get("p_0", "p_2", TestUtils.getFilterFor("f_1", "f_1_0"), null));
+    assertNotSame(result, cube.get("p_0", "p_1", filters, null));
+    assertNotSame(result, cube.get("p_0", "p_2", filters, "f_2"));
+
+    // a write into a searched partition invalidates the result
+    List<DataRow> data = TestUtils.genDataRowList("p_1", "f_1", "f_1_0");
+    cube.insert(data);
+    Map<GroupedSearchResultRow, Long> newResult = cube.get("p_0", "p_2", filters, null);
+    assertNotSame(result, newResult);
+    assertSame(newResult, cube.get("p_0", "p_2", filters, null));
+
+    // so does a new partition within the range
+    data = TestUtils.genDataRowList("p_11", "f_1", "f_1_0");
+    cube.insert(data);
+    assertNotSame(newResult, cube.get("p_0", "p_2", filters, null));
+  }
+
+  @Test
+  public void testQueryCacheMaxRows() {
+    final int oldMaxRows = Constants.QUERY_CACHE_MAX_ROWS;
+    final CubeImpl cube;
+    try {
+      Constants.QUERY_CACHE_MAX_ROWS = 15;
+      cube = new CubeImpl("ts");
+    } finally {
+      Constants.QUERY_CACHE_MAX_ROWS = oldMaxRows;
+    }
+    List<DataRow> data = TestUtils.genMultiColumnData("f", 3, 3);
+    for (DataRow d : data) {
+      d.setPartition("p_0");
+    }
+    cube.insert(data);
+    List<Filter> noFilters = new ArrayList<Filter>();
+    Map<GroupedSearchResultRow, Long> result = cube.get("p_0", "p_0", noFilters, null);
+    assertEquals(10, result.size());
+    assertSame(result, cube.get("p_0", "p_0", noFilters, null));
+    assertEquals(10, cube.queryCache.getNumRows());
+
+    // the least recently used result is evicted to make room for the next one
+    List<Filter> filters = TestUtils.getFilterFor("f_1", "f_1_0");
+    Map<GroupedSearchResultRow, Long> filtered = cube.get("p_0", "p_0", filters, null);
+    assertSame(filtered, cube.get("p_0", "p_0", filters, null));
+    assertEquals(1, cube.queryCache.size());
+    assertEquals(filtered.size(), cube.queryCache.getNumRows());
+    assertNotSame(result, cube.get("p_0", "p_0", noFilters, null));
+
+    // results with more rows than the cache holds are not cached
+    data = TestUtils.genMultiColumnData("f", 3, 6);
+    for (DataRow d : data) {
+      d.setPartition("p_1");
+    }
+    cube.insert(data);
+    result = cube.get("p_1", "p_1", noFilters, null);
+    assertTrue(result.size() > 15);
+    assertNotSame(result, cube.get("p_1", "p_1", noFilters, null));
+    assertTrue(cube.queryCache.getNumRows() <= 15);
+  }
+
   @Test
   public void testGetDataRepeated() {
     int numFields = 8;
@@ -222,6 +297,180 @@ public class CubeImplTest {
     newCube.load(out.getAbsolutePath());
   }
 
+  @Test
+  public void testSerDePartitionFiles() throws IOException {
+    Cube cube = new CubeImpl("ts");
+    for (int i = 0; i < 3; i++) {
+      List<DataRow> data = TestUtils.genMultiColumnData("f", 4, 3);
+      for (DataRow d : data) {
+        d.setPartition("p_" + (1000 + i));
+      }
+      cube.insert(data);
+    }
+    File dir = Files.createTempDirectory("cube").toFile();
+    cube.save(dir.getAbsolutePath());
+    assertEquals(3, dir.listFiles().length);
+    Cube newCube = new CubeImpl("ts");
+    newCube.load(dir.getAbsolutePath());
+    assertEquals(
+        cube.get("p_1000", "p_1002", new ArrayList<Filter>(), null),
+        newCube.get("p_1000", "p_1002", new ArrayList<Filter>(), null));
+
+    // files of deleted partitions are removed on the next save
+    newCube.deletePartition("p_1001");
+    newCube.save(dir.getAbsolutePath());
+    assertEquals(2, dir.listFiles().length);
+    cube.load(dir.getAbsolutePath());
+    assertEquals(
+        new TreeSet<String>(Arrays.asList("p_1000", "p_1002")), cube.getPartitions("", "z"));
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testSaveKeepsOtherFiles() throws IOException {
+    CubeImpl cube = new CubeImpl("ts");
+    for (int i = 0; i < 3; i++) {
+      cube.insert(TestUtils.genDataRowList("p_" + (1000 + i), "f1", "v1"));
+    }
+    File dir = Files.createTempDirectory("cube").toFile();
+    cube.save(dir.getAbsolutePath());
+    assertTrue(new File(dir, "notes.txt").createNewFile());
+
+    // files which are not partition files of the cube are left alone
+    CubeImpl newCube = new CubeImpl("ts");
+    newCube.load(dir.getAbsolutePath());
+    newCube.insert(TestUtils.genDataRowList("p_1001", "f1", "v2"));
+    newCube.save(dir.getAbsolutePath());
+    assertEquals(4, dir.listFiles().length);
+
+    // a deleted partition inserted again before the save keeps its file
+    newCube.deletePartition("p_1002");
+    newCube.insert(TestUtils.genDataRowList("p_1002", "f1", "v3"));
+    newCube.save(dir.getAbsolutePath());
+    assertEquals(4, dir.listFiles().length);
+    cube.load(dir.getAbsolutePath());
+    assertEquals(
+        new TreeSet<String>(Arrays.asList("p_1000", "p_1001", "p_1002")),
+        cube.getPartitions("", "z"));
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testIncrementalSave() throws IOException {
+    Cube cube = new CubeImpl("ts");
+    for (int i = 0; i < 3; i++) {
+      cube.insert(TestUtils.genDataRowList("p_" + (1000 + i), "f1", "v1"));
+    }
+    File dir = Files.createTempDirectory("cube").toFile();
+    cube.save(dir.getAbsolutePath());
+    for (File f : dir.listFiles()) {
+      f.setLastModified(0);
+    }
+    cube.insert(TestUtils.genDataRowList("p_1001", "f1", "v2"));
+    cube.save(dir.getAbsolutePath());
+    for (File f : dir.listFiles()) {
+      assertEquals(f.getName(), f.getName().startsWith("p_1001"), f.lastModified() != 0);
+    }
+
+    // a loaded cube only rewrites what changed after the load
+    Cube newCube = new CubeImpl("ts");
+    newCube.load(dir.getAbsolutePath());
+    for (File f : dir.listFiles()) {
+      f.setLastModified(0);
+    }
+    newCube.save(dir.getAbsolutePath());
+    for (File f : dir.listFiles()) {
+      assertEquals(f.getName(), 0, f.lastModified());
+    }
+
+    // saving somewhere else writes everything
+    File otherDir = Files.createTempDirectory("cube").toFile();
+    cube.save(otherDir.getAbsolutePath());
+    assertEquals(3, otherDir.listFiles().length);
+    for (File d : new File[] {dir, otherDir}) {
+      for (File f : d.listFiles()) {
+        f.delete();
+      }
+      d.delete();
+    }
+  }
+
+  @Test
+  public void testLoadSkipsCorruptPartitions() throws IOException {
+    CubeImpl cube = new CubeImpl("ts");
+    for (int i = 0; i < 3; i++) {
+      cube.insert(TestUtils.genDataRowList("p_" + (1000 + i), "f1", "v1"));
+    }
+    File dir = Files.createTempDirectory("cube").toFile();
+    cube.save(dir.getAbsolutePath());
+    File file = new File(dir, "p_1001.part");
+    Files.write(file.toPath(), new byte[] {1, 2, 3});
+
+    CubeImpl newCube = new CubeImpl("ts");
+    newCube.load(dir.getAbsolutePath());
+    assertEquals(
+        new TreeSet<String>(Arrays.asList("p_1000", "p_1002")), newCube.getPartitions("", "z"));
+    // the corrupt file is kept aside, and not replaced by the next save
+    File corruptFile = new File(dir, "p_1001.part" + CubeImpl.CORRUPT_EXTENSION);
+    assertTrue(corruptFile.isFile());
+    newCube.insert(TestUtils.genDataRowList("p_1001", "f1", "v2"));
+    newCube.save(dir.getAbsolutePath());
+    assertEquals(3, Files.size(corruptFile.toPath()));
+    assertEquals(4, dir.listFiles().length);
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testLoadLastPartitions() throws IOException {
+    CubeImpl cube = new CubeImpl("ts");
+    for (int i = 0; i < 4; i++) {
+      cube.insert(TestUtils.genDataRowList("p_" + (1000 + i), "f1", "v1"));
+    }
+    File dir = Files.createTempDirectory("cube").toFile();
+    cube.save(dir.getAbsolutePath());
+
+    CubeImpl newCube = new CubeImpl("ts");
+    newCube.load(dir.getAbsolutePath(), 2);
+    assertEquals(2, newCube.partitions.size());
+    assertEquals(
+        cube.get("p_1002", "p_1003", new ArrayList<Filter>(), null),
+        newCube.get("p_1000", "p_1003", new ArrayList<Filter>(), null));
+    // partitions left on disk are listed, and read before they are changed
+    assertEquals(4, newCube.getPartitions(null, null).size());
+    newCube.insert(TestUtils.genDataRowList("p_1001", "f1", "v2"));
+    cube.insert(TestUtils.genDataRowList("p_1001", "f1", "v2"));
+    assertEquals(
+        cube.get("p_1001", "p_1003", new ArrayList<Filter>(), null),
+        newCube.get("p_1000", "p_1003", new ArrayList<Filter>(), null));
+
+    // and saved or deleted like the loaded ones
+    File otherDir = Files.createTempDirectory("cube").toFile();
+    newCube.deletePartition("p_1000");
+    newCube.save(dir.getAbsolutePath());
+    newCube.save(otherDir.getAbsolutePath());
+    CubeImpl otherCube = new CubeImpl("ts");
+    otherCube.load(otherDir.getAbsolutePath());
+    assertEquals(
+        new TreeSet<String>(Arrays.asList("p_1001", "p_1002", "p_1003")),
+        otherCube.getPartitions(null, null));
+    assertEquals(3, dir.listFiles().length);
+    for (File d : new File[] {dir, otherDir}) {
+      for (File f : d.listFiles()) {
+        f.delete();
+      }
+      d.delete();
+    }
+  }
+
   @Test
   public void testSerDeJson() throws IOException {
     Cube cube = new CubeImpl("ts");
@@ -1,6 +1,9 @@
 package org.cubedb.core;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
@@ -10,10 +13,14 @@ import org.slf4j.LoggerFactory;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.utils.TestUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MultiCubeConcurrencyTest {
   public static final Logger log = LoggerFactory.getLogger(MultiCubeConcurrencyTest.class);
@@ -81,6 +88,139 @@ public class MultiCubeConcurrencyTest {
     FileUtils.deleteDirectory(savePath.toFile());
   }
 
+  @Test
+  public void testParallelInsert() throws IOException, InterruptedException {
+    Path savePath = Files.createTempDirectory("savePath");
+    final MultiCubeImpl c = new MultiCubeImpl(savePath.toString());
+    final int numThreads = Runtime.getRuntime().availableProcessors() * 2;
+    final int numBatches = 10;
+    final int batchSize = TestUtils.genMultiColumnData("f", 3, 4).size();
+    TestUtils.runInParallel(
+        numThreads,
+        i -> {
+          for (int j = 0; j < numBatches; j++) {
+            c.insert(TestUtils.genMultiColumnData("c_" + i % 2, "p_" + j % 3, "f", 3, 4));
+          }
+        });
+    for (int cubeId = 0; cubeId < 2; cubeId++) {
+      long total =
+          c.get("c_" + cubeId, 10, new ArrayList<Filter>())
+              .entrySet()
+              .stream()
+              .filter(e -> e.getKey().getFieldName().equals("f_0"))
+              .mapToLong(e -> e.getValue().longValue())
+              .sum();
+      int numInsertingThreads = (numThreads + 1 - cubeId) / 2;
+      assertEquals((long) numInsertingThreads * numBatches * batchSize, total);
+    }
+    FileUtils.deleteDirectory(savePath.toFile());
+  }
+
+  @Test
+  public void testParallelLoad() throws IOException {
+    Path savePath = Files.createTempDirectory("savePath");
+    MultiCubeImpl c = new MultiCubeImpl(savePath.toString());
+    final int numCubes = 8;
+    for (int cubeId = 0; cubeId < numCubes; cubeId++) {
+      for (int p = 0; p < 4; p++) {
+        c.insert(TestUtils.genMultiColumnData("c_" + cubeId, "p_" + p, "f_", 3, 3));
+      }
+    }
+    c.save(savePath.toString());
+    // one cube in the old format
+    c.getCube("c_0").save(savePath.resolve("c_legacy.snappy").toString());
+
+    MultiCubeImpl loaded = new MultiCubeImpl(savePath.toString());
+    loaded.load(savePath.toString());
+    for (int cubeId = 0; cubeId < numCubes; cubeId++) {
+      assertEquals(
+          c.get("c_" + cubeId, 4, new ArrayList<Filter>()),
+          loaded.get("c_" + cubeId, 4, new ArrayList<Filter>()));
+    }
+    assertEquals(
+        c.get("c_0", 4, new ArrayList<Filter>()),
+        loaded.get("c_legacy", 4, new ArrayList<Filter>()));
+    FileUtils.deleteDirectory(savePath.toFile());
+  }
+
+  @Test
+  public void testChangesAfterFailedLoad() throws IOException {
+    File file = File.createTempFile("savePath", "");
+    file.deleteOnExit();
+    MultiCubeImpl c = new MultiCubeImpl(file.getAbsolutePath());
+    try {
+      c.load(file.getAbsolutePath());
+      fail("Loaded from a file");
+    } catch (InvalidParameterException e) {
+      // expected
+    }
+    assertTrue(c.isLoading());
+    try {
+      c.insert(TestUtils.genMultiColumnData("c_0", "p_0", "f_", 3, 3));
+      fail("Inserted without a write-ahead log");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertFalse(c.hasCube("c_0"));
+  }
+
+  @Test
+  public void testRequestsDuringLoad() throws IOException, InterruptedException {
+    Path savePath = Files.createTempDirectory("savePath");
+    MultiCubeImpl c = new MultiCubeImpl(savePath.toString());
+    for (int cubeId = 0; cubeId < 2; cubeId++) {
+      c.insert(TestUtils.genMultiColumnData("c_" + cubeId, "p_0", "f_", 3, 3));
+    }
+    c.save(savePath.toString());
+
+    // c_1 is loaded once the requests below are made
+    final CountDownLatch isLoadingC1 = new CountDownLatch(1);
+    final CountDownLatch canLoadC1 = new CountDownLatch(1);
+    MultiCubeImpl loaded =
+        new MultiCubeImpl(savePath.toString()) {
+          @Override
+          protected void loadCube(File directory, File cubeFile) {
+            if (cubeFile.getName().equals("c_1")) {
+              isLoadingC1.countDown();
+              try {
+                canLoadC1.await();
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+            }
+            super.loadCube(directory, cubeFile);
+          }
+        };
+    Thread loader = new Thread(() -> loaded.load(savePath.toString()));
+    loader.start();
+    isLoadingC1.await();
+    assertTrue(loaded.isLoading());
+    try {
+      loaded.get("c_1", 1, new ArrayList<Filter>());
+      fail("Searched a cube which is not loaded yet");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    try {
+      loaded.insert(TestUtils.genMultiColumnData("c_0", "p_1", "f_", 3, 3));
+      fail("Inserted while loading");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    canLoadC1.countDown();
+    loader.join();
+
+    assertFalse(loaded.isLoading());
+    for (int cubeId = 0; cubeId < 2; cubeId++) {
+      assertEquals(
+          c.get("c_" + cubeId, 1, new ArrayList<Filter>()),
+          loaded.get("c_" + cubeId, 1, new ArrayList<Filter>()));
+    }
+    assertEquals(0, loaded.get("c_2", 1, new ArrayList<Filter>()).size());
+    loaded.insert(TestUtils.genMultiColumnData("c_0", "p_1", "f_", 3, 3));
+    FileUtils.deleteDirectory(savePath.toFile());
+  }
+
   protected static class Saver implements Runnable {
     public long totalTimeNs;
     final String savePath;
@@ -0,0 +1,68 @@
+package org.cubedb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+public class TaskExecutorTest {
+
+  @Test
+  public void testInvokeAll() throws Exception {
+    TaskExecutor executor = new TaskExecutor(4, 2, 1000);
+    List<Callable<Integer>> tasks = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      final int value = i;
+      tasks.add(() -> value * 2);
+    }
+    List<Future<Integer>> results = executor.invokeAll(tasks);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i * 2, results.get(i).get().intValue());
+    }
+    assertEquals(10L, executor.getStats().get(Constants.STATS_EXECUTOR_COMPLETED_TASKS));
+    assertEquals(0, executor.getStats().get(Constants.STATS_EXECUTOR_ACTIVE_TASKS));
+    assertEquals(0, executor.getStats().get(Constants.STATS_EXECUTOR_QUEUED_TASKS));
+  }
+
+  @Test
+  public void testAdmissionControl() throws Exception {
+    final TaskExecutor executor = new TaskExecutor(2, 1, 10);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread blocker =
+        new Thread(
+            () -> {
+              try {
+                executor.invokeAll(
+                    Collections.singletonList(
+                        () -> {
+                          started.countDown();
+                          release.await();
+                          return null;
+                        }));
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+    blocker.start();
+    started.await();
+    assertEquals(1, executor.getStats().get(Constants.STATS_EXECUTOR_ACTIVE_TASKS));
+    try {
+      executor.invokeAll(Collections.singletonList(() -> null));
+      fail("The task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      assertEquals(1L, executor.getStats().get(Constants.STATS_EXECUTOR_REJECTED_TASKS));
+    }
+    release.countDown();
+    blocker.join();
+    assertEquals(1, executor.invokeAll(Collections.singletonList(() -> 1)).size());
+  }
+}
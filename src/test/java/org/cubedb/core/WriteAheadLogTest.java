@@ -0,0 +1,285 @@
+package org.cubedb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.cubedb.core.beans.ColumnarBatch;
+import org.cubedb.core.beans.DataRow;
+import org.cubedb.core.beans.Filter;
+import org.cubedb.utils.TestUtils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class WriteAheadLogTest {
+
+  private List<WriteAheadLog.Record> replay(File dir) throws IOException {
+    List<WriteAheadLog.Record> records = new ArrayList<WriteAheadLog.Record>();
+    WriteAheadLog.replay(dir, records::add);
+    return records;
+  }
+
+  @Test
+  public void testAppendReplay() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, 5, 0);
+    List<DataRow> rows = TestUtils.genDataRowList("p_1", "f1", "v1", "f2", null);
+    rows.get(0).setCubeName("cube");
+    rows.get(0).getCounters().put("c2", null);
+    assertEquals(5, wal.append(WriteAheadLog.encodeRows("cube", "p_1", rows)));
+    ColumnarBatch batch =
+        new ColumnarBatch(
+            "cube",
+            "p_2",
+            new String[] {"f1"},
+            new String[] {"c"},
+            new String[] {"a", "b"},
+            2,
+            new int[][] {{1, -1}},
+            new long[][] {{3, 4}});
+    assertEquals(6, wal.append(WriteAheadLog.encodeBatch(batch)));
+    assertEquals(7, wal.append(WriteAheadLog.encodeDelete("cube", "p_1")));
+    wal.commit();
+
+    List<WriteAheadLog.Record> records = replay(dir);
+    assertEquals(3, records.size());
+    assertEquals(7, WriteAheadLog.replay(dir, r -> {}));
+    WriteAheadLog.Record r = records.get(0);
+    assertEquals(5, r.getSequence());
+    assertEquals(WriteAheadLog.TYPE_ROWS, r.getType());
+    assertEquals(rows, r.getRows());
+    r = records.get(1);
+    assertEquals(WriteAheadLog.TYPE_BATCH, r.getType());
+    assertEquals("p_2", r.getBatch().getPartition());
+    assertEquals(Arrays.asList("a", "b"), Arrays.asList(r.getBatch().getValues()));
+    assertEquals(-1, r.getBatch().getFieldValues()[0][1]);
+    assertEquals(4, r.getBatch().getMetricValues()[0][1]);
+    r = records.get(2);
+    assertEquals(WriteAheadLog.TYPE_DELETE, r.getType());
+    assertEquals("cube", r.getCubeName());
+    assertEquals("p_1", r.getPartition());
+    assertNull(r.getRows());
+    wal.close();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testIncompleteRecord() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, 1, 0);
+    for (int i = 0; i < 3; i++) {
+      wal.append(WriteAheadLog.encodeDelete("cube", "p_" + i));
+    }
+    wal.close();
+    File segment = dir.listFiles()[0];
+    try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+      f.setLength(f.length() - 1);
+    }
+    assertEquals(2, replay(dir).size());
+
+    // changes logged after a restart are replayed after the incomplete segment
+    wal = new WriteAheadLog(dir, 3, 0);
+    assertEquals(3, wal.append(WriteAheadLog.encodeDelete("cube", "p_3")));
+    wal.close();
+    List<WriteAheadLog.Record> records = replay(dir);
+    assertEquals(3, records.size());
+    assertEquals("p_3", records.get(2).getPartition());
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testRemoveSegments() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, 1, 10);
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_1"));
+    long segment = wal.startSegment();
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_2"));
+    wal.removeSegmentsBefore(segment);
+    wal.sync();
+    List<WriteAheadLog.Record> records = replay(dir);
+    assertEquals(1, records.size());
+    assertEquals(2, records.get(0).getSequence());
+
+    // the first sequence number of a segment is kept even when it has no changes
+    wal.removeSegmentsBefore(wal.startSegment());
+    assertEquals(0, replay(dir).size());
+    assertEquals(2, WriteAheadLog.replay(dir, r -> {}));
+    wal.close();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testRetainSegments() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, 1, 10);
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_1"));
+    wal.append(WriteAheadLog.encodeDelete("other", "p_1"));
+    wal.startSegment();
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_2"));
+    long segment = wal.startSegment();
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_3"));
+    wal.sync();
+    assertEquals(0, wal.retainSegmentsBefore(segment, "none"::equals));
+    assertEquals(1, replay(dir).size());
+
+    wal.append(WriteAheadLog.encodeDelete("other", "p_2"));
+    segment = wal.startSegment();
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_4"));
+    wal.sync();
+    assertTrue(wal.retainSegmentsBefore(segment, "cube"::equals) > 0);
+    List<WriteAheadLog.Record> records = replay(dir);
+    assertEquals(2, records.size());
+    assertEquals("p_3", records.get(0).getPartition());
+    assertEquals("p_4", records.get(1).getPartition());
+    assertEquals(2, dir.list().length);
+    assertEquals(6, WriteAheadLog.replay(dir, r -> {}));
+    wal.close();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testClose() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, 1, 0);
+    wal.append(WriteAheadLog.encodeDelete("cube", "p_1"));
+    wal.close();
+    // syncs racing with the close find the changes synced by it
+    wal.sync();
+    wal.commit();
+    wal.close();
+    try {
+      wal.append(WriteAheadLog.encodeDelete("cube", "p_2"));
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(1, replay(dir).size());
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private void insert(MultiCube cube, String partition, int numFields, int numValues) {
+    cube.insert(TestUtils.genMultiColumnData("cube", partition, "f", numFields, numValues));
+  }
+
+  // Loads a copy of the directory, as if the process of the cube had crashed
+  private void assertRecovered(MultiCube cube, File dir) throws IOException {
+    File copy = Files.createTempDirectory("wal").toFile();
+    FileUtils.copyDirectory(dir, copy);
+    MultiCube recovered = new MultiCubeImpl(copy.getAbsolutePath());
+    recovered.load(copy.getAbsolutePath());
+    assertEquals(
+        cube.get("cube", "p_0", "p_9", new ArrayList<Filter>()),
+        recovered.get("cube", "p_0", "p_9", new ArrayList<Filter>()));
+    FileUtils.deleteDirectory(copy);
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    MultiCube cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    insert(cube, "p_1", 3, 4);
+    insert(cube, "p_2", 3, 4);
+    assertRecovered(cube, dir);
+
+    // changes made before the save are not replayed again
+    cube.save(dir.getAbsolutePath());
+    insert(cube, "p_1", 4, 3);
+    insert(cube, "p_3", 3, 4);
+    cube.deleteCube("cube", "p_2", "p_2");
+    assertRecovered(cube, dir);
+
+    // nor after the recovered cube is saved
+    cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    cube.save(dir.getAbsolutePath());
+    insert(cube, "p_3", 3, 4);
+    assertRecovered(cube, dir);
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testSaveKeepsCubesWhichFailedToLoad() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    MultiCube cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    cube.insert(TestUtils.genMultiColumnData("other", "p_1", "f", 3, 4));
+    cube.save(dir.getAbsolutePath());
+    // corrupt partition files are skipped, but a corrupt cube file fails the whole cube
+    File cubeFile = new File(dir, "cube.gz");
+    final byte[] corrupt = new byte[Long.BYTES];
+    Files.write(cubeFile.toPath(), corrupt);
+
+    cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    insert(cube, "p_2", 3, 4);
+    cube.deleteCube("other", null, null);
+    cube.save(dir.getAbsolutePath());
+    assertArrayEquals(corrupt, Files.readAllBytes(cubeFile.toPath()));
+    assertFalse(new File(dir, "cube").exists());
+    assertFalse(new File(dir, "other").exists());
+    // the changes made to the cube since are not removed from the log
+    cube.load(dir.getAbsolutePath());
+    assertEquals(1, replay(dir).stream().filter(r -> r.getCubeName().equals("cube")).count());
+    // while the changes of the other cubes are removed
+    assertEquals(1, replay(dir).size());
+    // but not replayed into a partial cube
+    assertFalse(cube.hasCube("cube"));
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testRecoveryOfDeletedCubes() throws IOException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    MultiCube cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    insert(cube, "p_1", 3, 4);
+    cube.save(dir.getAbsolutePath());
+    cube.deleteCube("cube", null, null);
+
+    MultiCube recovered = new MultiCubeImpl(dir.getAbsolutePath());
+    recovered.load(dir.getAbsolutePath());
+    assertFalse(recovered.hasCube("cube"));
+    recovered.save(dir.getAbsolutePath());
+    assertFalse(new File(dir, "cube").exists());
+
+    // changes made after the delete create the cube again
+    recovered.deleteCube("cube", null, null);
+    insert(recovered, "p_2", 3, 4);
+    assertRecovered(recovered, dir);
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testRecoveryOfInsertsDuringSave() throws IOException, InterruptedException {
+    File dir = Files.createTempDirectory("wal").toFile();
+    MultiCube cube = new MultiCubeImpl(dir.getAbsolutePath());
+    cube.load(dir.getAbsolutePath());
+    Thread inserter =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 200; i++) {
+                insert(cube, "p_" + i % 5, 3, 2);
+              }
+            });
+    inserter.start();
+    while (inserter.isAlive()) {
+      cube.save(dir.getAbsolutePath());
+    }
+    inserter.join();
+    assertRecovered(cube, dir);
+    FileUtils.deleteDirectory(dir);
+  }
+}
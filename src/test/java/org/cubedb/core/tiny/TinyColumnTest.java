@@ -9,4 +9,9 @@ public class TinyColumnTest extends BaseColumnTest {
   protected Column createColumn() {
     return new TinyColumn();
   }
+
+  @Override
+  protected Column createColumn(int valueBits) {
+    return new TinyColumn(0, valueBits);
+  }
 }
@@ -0,0 +1,36 @@
+package org.cubedb.offheap;
+
+import static org.junit.Assert.assertEquals;
+
+import org.cubedb.core.KeyMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BOHKeyMapTest {
+
+  private byte[] key(int i) {
+    return ByteBuffer.allocate(12).putInt(4, i).array();
+  }
+
+  @Test
+  public void testPutGetWhileResizing() {
+    final int numKeys = 200000;
+    KeyMap map = new BOHKeyMap(0, 6);
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(KeyMap.NO_VALUE, map.get(key(i)));
+      map.put(key(i), i);
+      assertEquals(i + 1, map.size());
+      // updates of keys which may not have been moved yet
+      map.put(key(i / 2), i / 2 + 1);
+      assertEquals(i / 2 + 1, map.get(key(i / 2)));
+      map.put(key(i / 2), i / 2);
+    }
+    assertEquals(numKeys, map.size());
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(i, map.get(key(i)));
+    }
+    assertEquals(numKeys, map.entrySet().count());
+  }
+}
@@ -0,0 +1,74 @@
+package org.cubedb.offheap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.cubedb.core.KeyMap;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.stream.Collectors;
+
+public class LongKeyMapTest {
+
+  private byte[] key(int length, int seed) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) ((seed >>> (8 * (i % Integer.BYTES))) + i);
+    }
+    return b;
+  }
+
+  private void testPutGet(int keyLongs, int keyLength) {
+    final int numKeys = 100000;
+    KeyMap map = new LongKeyMap(0, keyLongs);
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(KeyMap.NO_VALUE, map.get(key(keyLength, i)));
+      map.put(key(keyLength, i), i);
+    }
+    assertEquals(numKeys, map.size());
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(i, map.get(key(keyLength, i)));
+    }
+    map.put(key(keyLength, 7), 1);
+    assertEquals(numKeys, map.size());
+    assertEquals(1, map.get(key(keyLength, 7)));
+    assertEquals(numKeys, map.entrySet().count());
+  }
+
+  @Test
+  public void testPutGetNarrow() {
+    testPutGet(1, 8);
+    testPutGet(1, 4);
+  }
+
+  @Test
+  public void testPutGetWide() {
+    testPutGet(2, 16);
+    testPutGet(2, 10);
+  }
+
+  @Test
+  public void testKeysOfDifferentLengths() {
+    KeyMap map = new LongKeyMap(0, 2);
+    map.put(new byte[] {0, 1}, 0);
+    map.put(new byte[] {0, 1, 0, 0}, 1);
+    assertEquals(0, map.get(new byte[] {0, 1}));
+    assertEquals(1, map.get(new byte[] {0, 1, 0, 0}));
+    assertEquals(KeyMap.NO_VALUE, map.get(new byte[] {0, 1, 0}));
+    assertEquals(KeyMap.NO_VALUE, map.get(new byte[17]));
+    List<Entry<byte[], Integer>> entries = map.entrySet().collect(Collectors.toList());
+    assertEquals(2, entries.size());
+    for (Entry<byte[], Integer> e : entries) {
+      byte[] expected = e.getValue() == 0 ? new byte[] {0, 1} : new byte[] {0, 1, 0, 0};
+      assertArrayEquals(expected, e.getKey());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyTooLong() {
+    new LongKeyMap(0, 1).put(new byte[10], 0);
+  }
+}
@@ -9,4 +9,9 @@ public class OffHeapColumnTest extends BaseColumnTest {
   protected Column createColumn() {
     return new OffHeapColumn();
   }
+
+  @Override
+  protected Column createColumn(int valueBits) {
+    return new OffHeapColumn(0, valueBits);
+  }
 }
@@ -1,12 +1,90 @@
 package org.cubedb.offheap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import org.cubedb.core.Metric;
 import org.cubedb.core.BaseMetricTest;
 
+import org.junit.Test;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 /** Created by krash on 28.06.17. */
 public class OffHeapMetricTest extends BaseMetricTest {
   @Override
   protected Metric createMetric() {
     return new OffHeapMetric();
   }
+
+  @Test
+  public void testNarrowBlocks() {
+    OffHeapMetric metric = new OffHeapMetric();
+    for (int i = 0; i < OffHeapMetric.BUFFER_SIZE * 2; i++) {
+      metric.append(1000 + i % 2);
+    }
+    // full blocks are sealed around their smallest value
+    OffHeapMetric.Block[] blocks = metric.getBlocks();
+    assertEquals(2, blocks.length);
+    for (OffHeapMetric.Block block : blocks) {
+      assertEquals(1, block.valueBits);
+      assertEquals(1000, block.base);
+    }
+    assertEquals(OffHeapMetric.BUFFER_SIZE / 4, metric.size());
+
+    // a value which does not fit widens the block it is written to
+    metric.incrementBy(OffHeapMetric.BUFFER_SIZE, 1000);
+    assertEquals(1, metric.getBlocks()[0].valueBits);
+    assertEquals(16, metric.getBlocks()[1].valueBits);
+    assertEquals(2000, metric.get(OffHeapMetric.BUFFER_SIZE));
+    assertEquals(1001, metric.get(OffHeapMetric.BUFFER_SIZE + 1));
+
+    // the last block takes a byte per value until it is full
+    metric.append(-5);
+    assertEquals(8, metric.getBlocks()[2].valueBits);
+    assertEquals(-5, metric.get(OffHeapMetric.BUFFER_SIZE * 2));
+    metric.append(Long.MAX_VALUE);
+    assertEquals(64, metric.getBlocks()[2].valueBits);
+    assertEquals(-5, metric.get(OffHeapMetric.BUFFER_SIZE * 2));
+    assertEquals(Long.MAX_VALUE, metric.get(OffHeapMetric.BUFFER_SIZE * 2 + 1));
+  }
+
+  @Test
+  public void testWidenWithHeadroom() {
+    OffHeapMetric metric = new OffHeapMetric();
+    for (int i = 0; i < OffHeapMetric.BUFFER_SIZE; i++) {
+      metric.append(i % 2);
+    }
+    assertEquals(1, metric.getBlocks()[0].valueBits);
+    metric.incrementBy(0, 200);
+    OffHeapMetric.Block block = metric.getBlocks()[0];
+    assertEquals(16, block.valueBits);
+    // the counter keeps growing in place
+    metric.incrementBy(0, 200);
+    assertSame(block, metric.getBlocks()[0]);
+    assertEquals(400, metric.get(0));
+    assertEquals(1, metric.get(1));
+  }
+
+  @Test
+  public void testSerialization() {
+    OffHeapMetric metric = new OffHeapMetric(5);
+    long[] values = new long[OffHeapMetric.BUFFER_SIZE + 10];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i % 3 == 0 ? -i : i * 100000L;
+      metric.append(values[i]);
+    }
+    Kryo kryo = new Kryo();
+    Output output = new Output(1024, -1);
+    kryo.writeObject(output, metric);
+    OffHeapMetric copy = kryo.readObject(new Input(output.toBytes()), OffHeapMetric.class);
+    assertEquals(metric.getNumRecords(), copy.getNumRecords());
+    assertEquals(metric.size(), copy.size());
+    assertTrue(copy.size() < values.length * Long.BYTES);
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], copy.get(i + 5));
+    }
+  }
 }
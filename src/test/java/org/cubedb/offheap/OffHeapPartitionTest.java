@@ -3,6 +3,8 @@ package org.cubedb.offheap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -13,6 +15,7 @@ import com.esotericsoftware.kryo.io.Output;
 
 import org.cubedb.core.Constants;
 import org.cubedb.core.Partition;
+import org.cubedb.core.beans.ColumnarBatch;
 import org.cubedb.core.beans.DataRow;
 import org.cubedb.core.beans.Filter;
 import org.cubedb.core.beans.SearchResult;
@@ -27,8 +30,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -287,6 +293,422 @@ public class OffHeapPartitionTest {
     assertTrue(0 < c);
   }
 
+  @Test
+  public void testGetWithFiltersAcrossBlocks() {
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 2 + 100;
+    List<DataRow> data = new ArrayList<DataRow>();
+    for (int i = 0; i < numRecords; i++) {
+      data.add(
+          TestUtils.genDataRow(
+              "id", "id_" + i, "a", "a_" + i % 7, "b", "b_" + i % 11, "x", "x_" + i % 3));
+    }
+    OffHeapPartition p = createPartition();
+    p.insertData(data);
+    assertEquals(numRecords, p.getNumRecords());
+
+    List<Filter> filters = TestUtils.getFilterFor("a", "a_1");
+    filters.addAll(TestUtils.getFilterFor("b", "b_2", "b_3"));
+    SearchResult result = p.get(filters, null);
+    for (int v = 0; v < 11; v++) {
+      long expectedA = 0;
+      long expectedB = 0;
+      long expectedX = 0;
+      for (int i = 0; i < numRecords; i++) {
+        boolean aMatches = i % 7 == 1;
+        boolean bMatches = i % 11 == 2 || i % 11 == 3;
+        if (bMatches && i % 7 == v) expectedA++;
+        if (aMatches && i % 11 == v) expectedB++;
+        if (aMatches && bMatches && i % 3 == v) expectedX++;
+      }
+      assertEquals(expectedA, getCount(result, "a", "a_" + v));
+      assertEquals(expectedB, getCount(result, "b", "b_" + v));
+      assertEquals(expectedX, getCount(result, "x", "x_" + v));
+    }
+  }
+
+  @Test
+  public void testColumnWidths() {
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 2 + 100;
+    OffHeapPartition p = createPartition();
+    for (int i = 0; i < numRecords; i++) {
+      p.insert(
+          TestUtils.genDataRow(
+              "id", "id_" + i, "flag", "true", "a", "a_" + i % 7, "b", "b_" + i % 200));
+      if (i == 10) {
+        // narrow columns are widened as new values come
+        assertEquals(1, p.columns.get("flag").getValueBits());
+        assertEquals(4, p.columns.get("a").getValueBits());
+        assertEquals(4, p.columns.get("b").getValueBits());
+      }
+    }
+    assertEquals(16, p.columns.get("id").getValueBits());
+    assertEquals(1, p.columns.get("flag").getValueBits());
+    assertEquals(4, p.columns.get("a").getValueBits());
+    assertEquals(8, p.columns.get("b").getValueBits());
+
+    List<Filter> filters = TestUtils.getFilterFor("a", "a_3");
+    filters.addAll(TestUtils.getFilterFor("flag", "true"));
+    SearchResult result = p.get(filters, null);
+    for (int v = 0; v < 200; v++) {
+      long expected = 0;
+      for (int i = 0; i < numRecords; i++) {
+        if (i % 7 == 3 && i % 200 == v) expected++;
+      }
+      assertEquals(expected, getCount(result, "b", "b_" + v));
+    }
+  }
+
+  @Test
+  public void testWideIds() throws IOException {
+    final int numRecords = 70000;
+    List<DataRow> data = new ArrayList<DataRow>();
+    for (int i = 0; i < numRecords; i++) {
+      data.add(TestUtils.genDataRow("id", "id_" + i, "a", "a_" + i % 3));
+    }
+    OffHeapPartition p = createPartition();
+    p.insertData(data);
+    assertEquals(numRecords, p.getNumRecords());
+    assertEquals(32, p.columns.get("id").getValueBits());
+    // keys take four bytes for the wide ids and two for the others
+    assertEquals(
+        (long) numRecords * (Integer.BYTES + Short.BYTES),
+        p.getStats().get(Constants.STATS_LOOKUP_SIZE));
+    // ids past a short are not confused with the ones they used to wrap to
+    for (int i : new int[] {1, 32767, 32768, 65535, 65537, numRecords - 1}) {
+      SearchResult result = p.get(TestUtils.getFilterFor("id", "id_" + i), null);
+      assertEquals(1L, getCount(result, "a", "a_" + i % 3));
+      assertEquals(1L, getCount(result, "id", "id_" + i));
+    }
+
+    // existing rows are found in maps built from the columns, too
+    final Kryo kryo = new Kryo();
+    final Output output = new Output(1024, -1);
+    kryo.writeObject(output, p);
+    OffHeapPartition newP = kryo.readObject(new Input(output.toBytes()), OffHeapPartition.class);
+    newP.insertData(data);
+    assertEquals(numRecords, newP.getNumRecords());
+    SearchResult result = newP.get(TestUtils.getFilterFor("id", "id_65537"), null);
+    assertEquals(2L, getCount(result, "a", "a_" + 65537 % 3));
+  }
+
+  @Test
+  public void testInsertIntoLargeReadOnlyPartition() throws Exception {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int oldRebuildSize = Constants.KEY_MAP_REBUILD_MAX_SIZE;
+    OffHeapPartition p = createPartition();
+    OffHeapPartition expected = createPartition();
+    List<DataRow> data = TestUtils.genMultiColumnData("f", 3, 10);
+    p.insertData(data);
+    expected.insertData(data);
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = data.size() - 1;
+      assertTrue(p.optimize());
+      p.insertData(data);
+      expected.insertData(data);
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = oldRebuildSize;
+    }
+    // the rows inserted again are new rows, which are updated by later inserts
+    assertEquals(data.size() * 2, p.getNumRecords());
+    p.insertData(data);
+    expected.insertData(data);
+    assertEquals(data.size() * 2, p.getNumRecords());
+    List<Filter> filters = TestUtils.getFilterFor("f_1", "f_1_2");
+    assertEquals(expected.get(filters, "f_0"), p.get(filters, "f_0"));
+    List<Filter> noFilters = new ArrayList<Filter>();
+    assertEquals(expected.get(noFilters, null), p.get(noFilters, null));
+  }
+
+  @Test
+  public void testMergeRowsInsertedAgain() throws Exception {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int oldRebuildSize = Constants.KEY_MAP_REBUILD_MAX_SIZE;
+    final int oldCompactionSize = Constants.COMPACTION_MIN_SIZE;
+    OffHeapPartition p = createPartition();
+    OffHeapPartition expected = createPartition();
+    List<DataRow> data = TestUtils.genMultiColumnData("f", 3, 10);
+    p.insertData(data);
+    expected.insertData(data);
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = data.size() - 1;
+      // the partition is too small to be compacted for its size alone
+      Constants.COMPACTION_MIN_SIZE = Integer.MAX_VALUE;
+      assertTrue(p.optimize());
+      p.insertData(data);
+      expected.insertData(data);
+      assertEquals(data.size() * 2, p.getNumRecords());
+
+      // the next compaction merges the rows inserted again into the existing ones
+      assertTrue(p.optimize());
+      assertEquals(data.size(), p.getNumRecords());
+      assertEquals(data.size(), p.asDataRowStream().count());
+      List<Filter> filters = TestUtils.getFilterFor("f_1", "f_1_2");
+      assertEquals(expected.get(filters, "f_0"), p.get(filters, "f_0"));
+      List<Filter> noFilters = new ArrayList<Filter>();
+      assertEquals(expected.get(noFilters, null), p.get(noFilters, null));
+
+      // rows inserted again after the next expiry are merged as well
+      p.insertData(data);
+      expected.insertData(data);
+      assertTrue(p.optimize());
+      assertTrue(p.optimize());
+      assertEquals(data.size(), p.getNumRecords());
+      assertEquals(expected.get(noFilters, "f_2"), p.get(noFilters, "f_2"));
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = oldRebuildSize;
+      Constants.COMPACTION_MIN_SIZE = oldCompactionSize;
+    }
+  }
+
+  @Test
+  public void testCompactionChangesVersion() throws Exception {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int oldCompactionSize = Constants.COMPACTION_MIN_SIZE;
+    OffHeapPartition p = createPartition();
+    p.insertData(TestUtils.genMultiColumnData("f", 3, 10));
+    final long version = p.getVersion();
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      Constants.COMPACTION_MIN_SIZE = 0;
+      assertTrue(p.optimize());
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+      Constants.COMPACTION_MIN_SIZE = oldCompactionSize;
+    }
+    // cached results of the rows before the compaction are not used anymore
+    assertTrue(p.isCompacted);
+    assertTrue(p.getVersion() > version);
+  }
+
+  @Test
+  public void testGetFromReadOnlyPartition() throws Exception {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int oldCompactionSize = Constants.COMPACTION_MIN_SIZE;
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 2 + 100;
+    OffHeapPartition p = createPartition();
+    for (int i = 0; i < numRecords; i++) {
+      p.insert(TestUtils.genDataRow("id", "id_" + i, "a", "a_" + i % 97, "b", "b_" + i % 5));
+    }
+    List<Filter> filters = TestUtils.getFilterFor("a", "a_1", "a_2");
+    filters.addAll(TestUtils.getFilterFor("b", "b_2"));
+    SearchResult expected = p.get(filters, "b");
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      // compaction would run-length encode the filtered columns, which are not indexed
+      Constants.COMPACTION_MIN_SIZE = Integer.MAX_VALUE;
+      assertTrue(p.optimize());
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+      Constants.COMPACTION_MIN_SIZE = oldCompactionSize;
+    }
+    assertEquals(expected, p.get(filters, "b"));
+    assertTrue((Long) p.getStats().get(Constants.STATS_INDEX_SIZE) > 0L);
+
+    // new rows are visible to the search after the partition becomes writable again
+    p.insert(TestUtils.genDataRow("id", "id_new", "a", "a_1", "b", "b_2"));
+    assertEquals(1L, getCount(p.get(filters, null), "id", "id_new"));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 2 + 100;
+    OffHeapPartition p = createPartition();
+    for (int i = 0; i < numRecords; i++) {
+      DataRow row = TestUtils.genDataRow("id", "id_" + i, "a", "a_" + i % 97, "b", "b_" + i % 5);
+      row.getCounters().put("c", (long) i);
+      p.insert(row);
+    }
+    List<Filter> filters = TestUtils.getFilterFor("a", "a_1", "a_2");
+    filters.addAll(TestUtils.getFilterFor("b", "b_2"));
+    List<Filter> noFilters = new ArrayList<Filter>();
+    SearchResult expected = p.get(filters, "b");
+    SearchResult expectedById = p.get(TestUtils.getFilterFor("id", "id_7"), "a");
+    SearchResult expectedTotal = p.get(noFilters, null);
+    long size = (Long) p.getStats().get(Constants.STATS_COLUMN_SIZE);
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      assertTrue(p.optimize());
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+    }
+    // rows are sorted by b, then a, so both columns are a few runs
+    assertTrue(p.columns.get("a") instanceof RunLengthColumn);
+    assertTrue(p.columns.get("b") instanceof RunLengthColumn);
+    assertFalse(p.columns.get("id") instanceof RunLengthColumn);
+    assertEquals(5, ((RunLengthColumn) p.columns.get("b")).getNumRuns());
+    assertEquals("b_0", p.lookups.get("b").getKey(p.columns.get("b").get(0)));
+    assertTrue((Long) p.getStats().get(Constants.STATS_COLUMN_SIZE) < size);
+    assertEquals(expected, p.get(filters, "b"));
+    assertEquals(expectedById, p.get(TestUtils.getFilterFor("id", "id_7"), "a"));
+    assertEquals(expectedTotal, p.get(noFilters, null));
+    assertEquals(numRecords, p.asDataRowStream().count());
+
+    // the partition becomes writable again
+    p.insert(TestUtils.genDataRow("id", "id_new", "a", "a_1", "b", "b_2"));
+    assertFalse(p.columns.get("a") instanceof RunLengthColumn);
+    assertEquals(numRecords + 1, p.getNumRecords());
+    assertEquals(1L, getCount(p.get(filters, null), "id", "id_new"));
+  }
+
+  @Test
+  public void testZoneMaps() {
+    // rows arrive country by country, so most blocks have a single country
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 6 + 100;
+    List<DataRow> rows = new ArrayList<DataRow>();
+    for (int i = 0; i < numRecords; i++) {
+      int country = i * 7 / numRecords;
+      rows.add(
+          TestUtils.genDataRow(
+              "id", "id_" + i, "country", "c_" + country, "os", "os_" + i % (3 + country)));
+    }
+    OffHeapPartition clustered = createPartition();
+    clustered.insertData(rows);
+    Collections.shuffle(rows, new Random(0));
+    OffHeapPartition shuffled = createPartition();
+    shuffled.insertData(rows);
+
+    List<List<Filter>> filterSets = new ArrayList<List<Filter>>();
+    filterSets.add(TestUtils.getFilterFor("country", "c_2"));
+    filterSets.add(TestUtils.getFilterFor("country", "c_2", "c_5"));
+    List<Filter> filters = TestUtils.getFilterFor("country", "c_3");
+    filters.addAll(TestUtils.getFilterFor("os", "os_1", "os_5"));
+    filterSets.add(filters);
+    filters = TestUtils.getFilterFor("country", "c_0");
+    filters.addAll(TestUtils.getFilterFor("os", "os_8"));
+    filterSets.add(filters);
+    for (List<Filter> f : filterSets) {
+      assertEquals(shuffled.get(f, null), clustered.get(f, null));
+      assertEquals(shuffled.get(f, "os"), clustered.get(f, "os"));
+    }
+    // os_8 only exists in country c_6, so blocks of other countries are skipped
+    assertEquals(0L, getCount(clustered.get(filterSets.get(3), null), "country", "c_0"));
+  }
+
+  @Test
+  public void testUnfilteredResultsAreCached() {
+    OffHeapPartition p = createPartition();
+    p.insertData(TestUtils.genMultiColumnData("f", 3, 3));
+    SearchResult result = p.get(new ArrayList<Filter>(), null);
+    assertSame(result, p.get(new ArrayList<Filter>(), null));
+    assertSame(p.get(new ArrayList<Filter>(), "f_1"), p.get(new ArrayList<Filter>(), "f_1"));
+    assertNotSame(result, p.get(TestUtils.getFilterFor("f_1", "f_1_0"), null));
+
+    long count = getCount(result, "f_1", "f_1_0");
+    p.insert(TestUtils.genDataRow("f_0", "f_0_0", "f_1", "f_1_0", "f_2", "f_2_0"));
+    SearchResult newResult = p.get(new ArrayList<Filter>(), null);
+    assertNotSame(result, newResult);
+    assertEquals(count + 1, getCount(newResult, "f_1", "f_1_0"));
+  }
+
+  private long getCount(SearchResult result, String field, String value) {
+    Long count = result.getResults().get(createRow(field, value, "c"));
+    return count == null ? 0L : count.longValue();
+  }
+
+  @Test
+  public void testInsertColumnarBatch() {
+    ColumnarBatch batch =
+        new ColumnarBatch(
+            "cube",
+            "p",
+            new String[] {"f1", "f2"},
+            new String[] {"c"},
+            new String[] {"v1", "v2", null},
+            4,
+            new int[][] {{0, 1, 0, 2}, {1, -1, 1, 0}},
+            new long[][] {{1, 2, 3, 4}});
+    OffHeapPartition p = createPartition();
+    p.insert(batch);
+    p.insert(batch);
+
+    List<DataRow> data = new ArrayList<DataRow>();
+    data.add(TestUtils.genDataRow("f1", "v1", "f2", "v2"));
+    data.add(TestUtils.genDataRow("f1", "v2"));
+    data.add(TestUtils.genDataRow("f1", "v1", "f2", "v2"));
+    data.add(TestUtils.genDataRow("f1", null, "f2", "v1"));
+    data.get(0).getCounters().put("c", 1L);
+    data.get(1).getCounters().put("c", 2L);
+    data.get(2).getCounters().put("c", 3L);
+    data.get(3).getCounters().put("c", 4L);
+    OffHeapPartition expected = createPartition();
+    expected.insertData(data);
+    expected.insertData(data);
+
+    assertEquals(expected.getNumRecords(), p.getNumRecords());
+    assertEquals(
+        expected.get(new ArrayList<Filter>(), null).getResults(),
+        p.get(new ArrayList<Filter>(), null).getResults());
+    assertEquals(
+        expected.get(TestUtils.getFilterFor("f2", "v2"), "f1").getResults(),
+        p.get(TestUtils.getFilterFor("f2", "v2"), "f1").getResults());
+    assertEquals(8L, getCount(p.get(TestUtils.getFilterFor("f2", "v2"), null), "f1", "v1"));
+  }
+
+  @Test
+  public void testGetDuringInsert() throws InterruptedException {
+    final OffHeapPartition p = createPartition();
+    final int numRecords = Constants.INITIAL_PARTITION_SIZE * 5;
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    final Thread insertor =
+        new Thread(
+            () -> {
+              for (int i = 0; i < numRecords; i++) {
+                // the second column appears in the middle of the insertion
+                DataRow row =
+                    i < numRecords / 2
+                        ? TestUtils.genDataRow("id", "r" + i, "f0", "v" + i % 10)
+                        : TestUtils.genDataRow("id", "r" + i, "f0", "v" + i % 10, "f1", "v" + i);
+                p.insert(row);
+              }
+            });
+
+    class Searcher implements Runnable {
+      @Override
+      public void run() {
+        try {
+          long lastTotal = 0;
+          long lastMatches = 0;
+          while (insertor.isAlive()) {
+            SearchResult all = p.get(new ArrayList<Filter>(), null);
+            // the metric does not exist before the first insert
+            Map<String, Long> totals = all.getTotalCounts().get("c");
+            long total = totals == null ? 0 : totals.get(SearchResult.FAKE_GROUP_FIELD_VALUE);
+            assertTrue(total >= lastTotal);
+            lastTotal = total;
+            SearchResult filtered = p.get(TestUtils.getFilterFor("f0", "v1"), "f1");
+            long matches = getCount(filtered, "f0", "v1");
+            assertTrue(matches >= lastMatches);
+            lastMatches = matches;
+          }
+        } catch (Throwable e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }
+    }
+
+    Thread[] searchers = new Thread[Runtime.getRuntime().availableProcessors()];
+    insertor.start();
+    for (int i = 0; i < searchers.length; i++) {
+      searchers[i] = new Thread(new Searcher());
+      searchers[i].start();
+    }
+    insertor.join();
+    for (int i = 0; i < searchers.length; i++) {
+      searchers[i].join();
+    }
+    assertEquals(new ArrayList<Throwable>(), errors);
+    assertEquals(numRecords, p.getNumRecords());
+    SearchResult result = p.get(TestUtils.getFilterFor("f0", "v1"), null);
+    assertEquals(numRecords / 10, getCount(result, "f0", "v1"));
+  }
+
   @Test
   public void testGetWithMultiColumnsNoFilterParallel() throws InterruptedException {
     int numColumns = 11;
@@ -453,6 +875,22 @@ public class OffHeapPartitionTest {
     log.info("Took {} ms to read {} records", (t1 - t0) / 1000000, data.size());
     log.info("{}", newP.getStats());
     destination.deleteOnExit();
+
+    // the key map is built by the first insert, existing rows get updated
+    assertTrue((Boolean) newP.getStats().get(Constants.STATS_IS_READONLY_PARTITION));
+    final int oldRebuildSize = Constants.KEY_MAP_REBUILD_MAX_SIZE;
+    try {
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = 0;
+      newP.insertData(data);
+    } finally {
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = oldRebuildSize;
+    }
+    assertFalse((Boolean) newP.getStats().get(Constants.STATS_IS_READONLY_PARTITION));
+    assertEquals(p.getNumRecords(), newP.getNumRecords());
+    assertEquals(
+        cP * 2,
+        TestUtils.checkMatchMultiFilter(
+            newP, "c", "f1_0", "f1_0_0", "f1_0", "f1_0_1", "f1_0", "f1_0_2"));
   }
 
   @Test
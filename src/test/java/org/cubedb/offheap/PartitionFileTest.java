@@ -0,0 +1,208 @@
+package org.cubedb.offheap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.cubedb.core.Constants;
+import org.cubedb.core.beans.DataRow;
+import org.cubedb.core.beans.Filter;
+import org.cubedb.utils.TestUtils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PartitionFileTest {
+
+  private static final int NUM_RECORDS = Constants.INITIAL_PARTITION_SIZE * 2 + 100;
+
+  private DataRow genRow(int i) {
+    // f2 appears later, and stays tiny
+    DataRow row =
+        i < NUM_RECORDS - 10
+            ? TestUtils.genDataRow("id", "id_" + i, "f1", "v_" + i % 7)
+            : TestUtils.genDataRow("id", "id_" + i, "f1", "v_" + i % 7, "f2", "ü " + i);
+    row.getCounters().put("c2", (long) i);
+    return row;
+  }
+
+  private OffHeapPartition createPartition() {
+    OffHeapPartition p = new OffHeapPartition();
+    for (int i = 0; i < NUM_RECORDS; i++) {
+      p.insert(genRow(i));
+    }
+    return p;
+  }
+
+  private void assertSameResults(OffHeapPartition expected, OffHeapPartition actual) {
+    assertEquals(expected.getNumRecords(), actual.getNumRecords());
+    List<Filter> noFilters = new ArrayList<Filter>();
+    assertEquals(expected.get(noFilters, "f1"), actual.get(noFilters, "f1"));
+    List<Filter> filters = TestUtils.getFilterFor("f1", "v_3");
+    assertEquals(expected.get(filters, "f2"), actual.get(filters, "f2"));
+  }
+
+  @Test
+  public void testWriteRead() throws IOException {
+    OffHeapPartition p = createPartition();
+    File file = File.createTempFile("partition_", PartitionFile.EXTENSION);
+    file.deleteOnExit();
+    PartitionFile.write(p, file.toPath());
+    assertEquals(0, Files.size(file.toPath()) % PartitionFile.PAGE_SIZE);
+
+    OffHeapPartition newP = PartitionFile.read(file.toPath());
+    assertSameResults(p, newP);
+    // zone maps are read instead of being built from the columns
+    assertEquals(p.zoneMapsById.length, newP.zoneMapsById.length);
+    for (int i = 0; i < p.zoneMapsById.length; i++) {
+      assertArrayEquals(p.zoneMapsById[i].getSummaries(), newP.zoneMapsById[i].getSummaries());
+    }
+
+    // inserts into the read partition do not modify the file
+    final byte[] content = Files.readAllBytes(file.toPath());
+    p.insert(genRow(NUM_RECORDS - 1));
+    newP.insert(genRow(NUM_RECORDS - 1));
+    for (DataRow row : TestUtils.genMultiColumnData("f", 3, 4)) {
+      p.insert(row);
+      newP.insert(row);
+    }
+    assertSameResults(p, newP);
+    assertEquals(
+        new String(content, "ISO-8859-1"),
+        new String(Files.readAllBytes(file.toPath()), "ISO-8859-1"));
+  }
+
+  @Test
+  public void testWriteReadCompacted() throws IOException {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    OffHeapPartition p = createPartition();
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      assertTrue(p.optimize());
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+    }
+    assertTrue(p.columns.get("f1") instanceof RunLengthColumn);
+    File file = File.createTempFile("partition_", PartitionFile.EXTENSION);
+    file.deleteOnExit();
+    PartitionFile.write(p, file.toPath());
+
+    OffHeapPartition newP = PartitionFile.read(file.toPath());
+    assertTrue(newP.columns.get("f1") instanceof RunLengthColumn);
+    assertTrue(newP.isCompacted);
+    assertFalse(newP.hasDuplicateRows);
+    assertSameResults(p, newP);
+    p.insert(genRow(NUM_RECORDS - 1));
+    newP.insert(genRow(NUM_RECORDS - 1));
+    assertSameResults(p, newP);
+  }
+
+  @Test
+  public void testWriteReadDuplicateRows() throws IOException {
+    final long oldTtl = Constants.KEY_MAP_TTL;
+    final int oldRebuildSize = Constants.KEY_MAP_REBUILD_MAX_SIZE;
+    final int oldCompactionSize = Constants.COMPACTION_MIN_SIZE;
+    OffHeapPartition p = createPartition();
+    try {
+      Constants.KEY_MAP_TTL = -1L;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = 0;
+      Constants.COMPACTION_MIN_SIZE = Integer.MAX_VALUE;
+      assertTrue(p.optimize());
+      // rows inserted into a large read-only partition get new rows
+      p.insert(genRow(0));
+      assertEquals(NUM_RECORDS + 1, p.getNumRecords());
+      File file = File.createTempFile("partition_", PartitionFile.EXTENSION);
+      file.deleteOnExit();
+      PartitionFile.write(p, file.toPath());
+
+      // the read partition still merges its rows
+      OffHeapPartition newP = PartitionFile.read(file.toPath());
+      assertTrue(newP.hasDuplicateRows);
+      assertFalse(newP.isCompacted);
+      assertTrue(newP.optimize());
+      assertEquals(NUM_RECORDS, newP.getNumRecords());
+      assertTrue(newP.isCompacted);
+      assertTrue(p.optimize());
+      assertSameResults(p, newP);
+    } finally {
+      Constants.KEY_MAP_TTL = oldTtl;
+      Constants.KEY_MAP_REBUILD_MAX_SIZE = oldRebuildSize;
+      Constants.COMPACTION_MIN_SIZE = oldCompactionSize;
+    }
+  }
+
+  @Test
+  public void testWriteReadEmpty() throws IOException {
+    Path file = Files.createTempFile("partition_", PartitionFile.EXTENSION);
+    file.toFile().deleteOnExit();
+    PartitionFile.write(new OffHeapPartition(), file);
+    OffHeapPartition p = PartitionFile.read(file);
+    assertEquals(0, p.getNumRecords());
+    p.insert(TestUtils.genDataRow("f1", "v1"));
+    assertEquals(1, p.getNumRecords());
+  }
+
+  @Test(expected = IOException.class)
+  public void testReadTruncated() throws IOException {
+    Path file = Files.createTempFile("partition_", PartitionFile.EXTENSION);
+    file.toFile().deleteOnExit();
+    PartitionFile.write(createPartition(), file);
+    byte[] content = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(content, content.length - 1));
+    PartitionFile.read(file);
+  }
+
+  @Test
+  public void testReadCorrupt() throws IOException {
+    Path file = Files.createTempFile("partition_", PartitionFile.EXTENSION);
+    file.toFile().deleteOnExit();
+    OffHeapPartition p = createPartition();
+    PartitionFile.write(p, file);
+    byte[] content = Files.readAllBytes(file);
+    assertEquals(p.firstAppendTs, PartitionFile.read(file).firstAppendTs);
+    assertEquals(p.lastAppendTs, PartitionFile.read(file).lastAppendTs);
+
+    // blocks are only checked on request
+    content[content.length - 1] ^= 1;
+    Files.write(file, content);
+    PartitionFile.read(file);
+    Constants.VERIFY_PARTITION_BLOCKS = true;
+    try {
+      PartitionFile.read(file);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Corrupt blocks"));
+    } finally {
+      Constants.VERIFY_PARTITION_BLOCKS = false;
+    }
+
+    content[PartitionFile.PAGE_SIZE / 2] ^= 1;
+    Files.write(file, content);
+    try {
+      PartitionFile.read(file);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Corrupt header"));
+    }
+  }
+
+  @Test
+  public void testFileNames() {
+    for (String name : new String[] {"2017-06-01 12", "a/b", "..", "ü%"}) {
+      String fileName = PartitionFile.getFileName(name);
+      assertEquals(-1, fileName.indexOf('/'));
+      assertEquals(name, PartitionFile.getPartitionName(fileName));
+    }
+    assertNull(PartitionFile.getPartitionName("p.part.tmp"));
+  }
+}
@@ -0,0 +1,98 @@
+package org.cubedb.offheap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.cubedb.core.Column;
+import org.cubedb.offheap.matchers.IdMatcher;
+
+import org.junit.Test;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.Arrays;
+
+public class RunLengthColumnTest {
+
+  // runs of 100 rows of 1, 3 rows of 2, 60 rows of 3 and 37 rows of 2
+  private int[] genValues() {
+    int[] values = new int[200];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i < 100 ? 1 : i < 103 ? 2 : i < 163 ? 3 : 2;
+    }
+    return values;
+  }
+
+  @Test
+  public void testEncode() {
+    int[] values = genValues();
+    RunLengthColumn column = RunLengthColumn.encode(values, values.length, 8);
+    assertEquals(4, column.getNumRuns());
+    assertEquals(values.length, column.getNumRecords());
+    assertEquals(8, column.getValueBits());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], column.get(i));
+    }
+    assertEquals(0, column.get(values.length));
+
+    int[] block = new int[70];
+    column.getBlock(150, block, block.length);
+    for (int i = 0; i < block.length; i++) {
+      assertEquals(150 + i < values.length ? values[150 + i] : 0, block[i]);
+    }
+
+    // values changing every row take less space as a column
+    int[] distinct = new int[100];
+    for (int i = 0; i < distinct.length; i++) {
+      distinct[i] = i;
+    }
+    assertNull(RunLengthColumn.encode(distinct, distinct.length, 8));
+  }
+
+  @Test
+  public void testMatch() {
+    int[] values = genValues();
+    RunLengthColumn column = RunLengthColumn.encode(values, values.length, 8);
+    IdMatcher matcher = new IdMatcher(new int[] {2});
+    long[] bitmap = new long[3];
+    long[] expected = new long[3];
+    for (int from : new int[] {0, 64, 90, 101}) {
+      column.match(matcher, from, 150, bitmap);
+      matcher.match(Arrays.copyOfRange(values, from, from + 150), 150, expected);
+      for (int i = Math.max(0, values.length - from); i < 150; i++) {
+        expected[i >>> 6] &= ~(1L << i);
+      }
+      assertArrayEquals(expected, bitmap);
+    }
+  }
+
+  @Test
+  public void testWiden() {
+    int[] values = genValues();
+    Column column = RunLengthColumn.encode(values, values.length, 4).widen(8);
+    assertEquals(8, column.getValueBits());
+    assertEquals(values.length, column.getNumRecords());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], column.get(i));
+    }
+    column.append(200);
+    assertEquals(200, column.get(values.length));
+  }
+
+  @Test
+  public void testSerialization() {
+    int[] values = genValues();
+    RunLengthColumn column = RunLengthColumn.encode(values, values.length, 2);
+    Kryo kryo = new Kryo();
+    Output output = new Output(1024, -1);
+    kryo.writeObject(output, column);
+    RunLengthColumn copy = kryo.readObject(new Input(output.toBytes()), RunLengthColumn.class);
+    assertEquals(column.getNumRuns(), copy.getNumRuns());
+    assertEquals(2, copy.getValueBits());
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], copy.get(i));
+    }
+  }
+}
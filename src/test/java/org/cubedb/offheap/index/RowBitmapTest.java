@@ -0,0 +1,46 @@
+package org.cubedb.offheap.index;
+
+import static org.junit.Assert.assertEquals;
+
+import org.cubedb.core.Constants;
+import org.junit.Test;
+
+public class RowBitmapTest {
+
+  private static void assertBlock(RowBitmap bitmap, int blockId, int step) {
+    long[] words = new long[Constants.INITIAL_PARTITION_SIZE / 64];
+    bitmap.orInto(blockId, words);
+    for (int i = 0; i < Constants.INITIAL_PARTITION_SIZE; i++) {
+      boolean expected = (blockId * Constants.INITIAL_PARTITION_SIZE + i) % step == 0;
+      assertEquals(expected, (words[i >>> 6] & (1L << i)) != 0);
+    }
+  }
+
+  @Test
+  public void testSparseAndDenseBlocks() {
+    RowBitmap bitmap = new RowBitmap();
+    final int sparseStep = 100;
+    final int denseStep = 3;
+    int cardinality = 0;
+    // block 0 is sparse, block 1 is dense, block 2 is empty, block 3 is sparse
+    for (int row = 0; row < Constants.INITIAL_PARTITION_SIZE * 4; row++) {
+      int blockId = row / Constants.INITIAL_PARTITION_SIZE;
+      int step = blockId == 1 ? denseStep : sparseStep;
+      if (blockId != 2 && row % step == 0) {
+        bitmap.add(row);
+        cardinality++;
+      }
+    }
+    assertEquals(cardinality, bitmap.getCardinality());
+    assertBlock(bitmap, 0, sparseStep);
+    assertBlock(bitmap, 1, denseStep);
+    assertBlock(bitmap, 3, sparseStep);
+
+    long[] words = new long[Constants.INITIAL_PARTITION_SIZE / 64];
+    bitmap.orInto(2, words);
+    bitmap.orInto(4, words);
+    for (long w : words) {
+      assertEquals(0L, w);
+    }
+  }
+}
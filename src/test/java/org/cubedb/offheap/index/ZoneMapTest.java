@@ -0,0 +1,63 @@
+package org.cubedb.offheap.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.cubedb.core.Constants;
+import org.cubedb.offheap.matchers.IdMatcher;
+import org.junit.Test;
+
+public class ZoneMapTest {
+
+  private static int match(ZoneMap zoneMap, int blockId, int... values) {
+    return zoneMap.match(new IdMatcher(values), blockId);
+  }
+
+  @Test
+  public void testMatch() {
+    ZoneMap zoneMap = new ZoneMap();
+    // block 0 has ids 1 and 3, block 1 has id 2 only, block 2 has ids 70 to 100
+    for (int row = 0; row < Constants.INITIAL_PARTITION_SIZE * 3; row++) {
+      int blockId = row / Constants.INITIAL_PARTITION_SIZE;
+      zoneMap.add(blockId == 0 ? 1 + row % 2 * 2 : blockId == 1 ? 2 : 70 + row % 31);
+    }
+    zoneMap.add(5);
+    assertEquals(Constants.INITIAL_PARTITION_SIZE * 3 + 1, zoneMap.getNumRows());
+
+    assertEquals(ZoneMap.MATCHES_NONE, match(zoneMap, 0, 2));
+    assertEquals(ZoneMap.MATCHES_NONE, match(zoneMap, 0, 0, 4, 200, -1));
+    assertEquals(ZoneMap.MATCHES_SOME, match(zoneMap, 0, 3));
+    assertEquals(ZoneMap.MATCHES_ALL, match(zoneMap, 0, 1, 3));
+    assertEquals(ZoneMap.MATCHES_ALL, match(zoneMap, 0, 1, 2, 3));
+
+    assertEquals(ZoneMap.MATCHES_ALL, match(zoneMap, 1, 2));
+    assertEquals(ZoneMap.MATCHES_NONE, match(zoneMap, 1, 1, 3));
+
+    // ids above 63 are only summarized by the smallest and the largest one
+    assertEquals(ZoneMap.MATCHES_NONE, match(zoneMap, 2, 5, 69, 101));
+    assertEquals(ZoneMap.MATCHES_SOME, match(zoneMap, 2, 85));
+    assertEquals(ZoneMap.MATCHES_SOME, match(zoneMap, 2, 70, 100));
+
+    // the last block is not full
+    assertEquals(ZoneMap.MATCHES_ALL, match(zoneMap, 3, 5));
+    assertEquals(ZoneMap.MATCHES_NONE, match(zoneMap, 3, 2));
+  }
+
+  @Test
+  public void testWrap() {
+    for (int numRows : new int[] {0, 1, Constants.INITIAL_PARTITION_SIZE * 2}) {
+      ZoneMap zoneMap = new ZoneMap();
+      for (int row = 0; row < numRows; row++) {
+        zoneMap.add(row % 3);
+      }
+      ZoneMap wrapped = ZoneMap.wrap(zoneMap.getSummaries(), numRows);
+      assertArrayEquals(zoneMap.getSummaries(), wrapped.getSummaries());
+      // rows are appended to a wrapped zone map as usual
+      zoneMap.add(7);
+      wrapped.add(7);
+      assertArrayEquals(zoneMap.getSummaries(), wrapped.getSummaries());
+      int lastBlock = numRows / Constants.INITIAL_PARTITION_SIZE;
+      assertEquals(match(zoneMap, lastBlock, 7), match(wrapped, lastBlock, 7));
+    }
+  }
+}